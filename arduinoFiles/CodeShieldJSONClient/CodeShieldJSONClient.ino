@@ -19,6 +19,28 @@
 #define HALL 3
 #define THERMISTOR 4
 #define PHOTOCELL 5
+#define NUM_REPORTERS 7   // pot, hall, thermistor, photocell, button, switch, encoder
+#define ENCODER_REPORTER 6
+
+// binary protocol - see the description below
+#define BIN_SYNC 0xA5
+#define BIN_MODE 1
+#define BIN_DIGITAL 2
+#define BIN_ANALOG 3
+#define BIN_PIEZO 4
+#define BIN_SERVO 5
+#define BIN_READ 6
+#define BIN_RGB 7
+#define BIN_CONFIG 8
+#define BIN_SUBSCRIBE 9
+#define BIN_SAMPLE 0x80   // set in the first payload byte of a pushed sample
+
+// optional commands this sketch knows - reported by {"query":"features"}
+#define FEATURE_RGB 1
+#define FEATURE_CONFIG 2
+#define FEATURE_STREAM 4
+#define FEATURES (FEATURE_RGB | FEATURE_CONFIG | FEATURE_STREAM)
+#define NUM_CONFIG_PINS 16
 
 
 // create an encoder instance and a global variable for position
@@ -31,6 +53,17 @@ long encoderPosition = -999 ;
 int servoPosition = 0 ;
 
 long position = -999 ;
+
+// set once the host has asked for the binary protocol
+short binary_mode = 0 ;
+
+// id of the last pin profile applied - 0 means none since reset
+unsigned int configured_profile = 0 ;
+
+// reporters pushed to the host without being asked - 0 means none
+int stream_mask = 0 ;
+unsigned int stream_interval = 0 ;   // msec between pushed samples
+unsigned long last_stream = 0 ;      // millis() of the last pushed sample
 /*
  * Simple Arduino proxy; does what it's told
  * via the USB connection, and reports back
@@ -51,6 +84,38 @@ long position = -999 ;
  * {"write":{"type":"servo","value":90, "pin":5}}      // set the servo position
  * {"read":{"encoder":100}}                            // return encoder value - numerical parameter is not used but
                                                        //                        needs to be filled in
+ * {"read":{"mask":127}}                               // return the reporters selected by the mask bits in one reply:
+                                                       // {"pinValues":{"mask":127,"values":[pot,hall,therm,photo,button,switch,encoder]}}
+ * {"query":"binary"}                                  // answer {"binary":1} and switch to the binary protocol
+ * {"baud":115200}                                     // answer {} and then change the serial baud rate
+ * {"rgb":{"type":"analog","red":255,"green":128,"blue":0}} // set all three rgb leds at once (type analog or digital)
+ * {"query":"features"}                                // answer {"features":7} - the optional commands known here
+ * {"config":{"profile":7,"inputs":12340,"pullups":49152,"outputs":3656}}
+ *                                                     // set up all pins from bit masks, inputs, inputs with pull up
+ *                                                     // and outputs set low. Answers
+ *                                                     // {"configured":{"profile":7,"failed":mask,"skipped":0}}
+ *                                                     // skipped is 1 if that profile was already set up
+ * {"subscribe":{"mask":127,"interval":20}}            // answer {} and from then on push the reporters in the mask
+ *                                                     // every interval msec without being asked:
+ *                                                     // {"sample":{"time":millis,"mask":127,"values":[...]}}
+ *                                                     // a mask of 0 stops the samples
+ *
+ * Binary protocol - every command is 0xA5, an op code and its arguments:
+ *   A5 01 pin mode          mode 0 = input, 1 = output
+ *   A5 02 pin value         digital write
+ *   A5 03 pin value         analog write
+ *   A5 04 fH fL tH tL       piezo frequency and msec, high byte first
+ *   A5 05 degrees           servo position
+ *   A5 06 mask              read reporters
+ *   A5 07 type r g b        rgb leds, type 0 = digital, 1 = analog
+ *   A5 08 id in pu out      pin profile, all four are two bytes
+ *   A5 09 mask iH iL        push the reporters in the mask every i msec
+ * every reply is 0xA5, a payload length and the payload. Success is A5 00,
+ * a read returns the mask and then each selected value high byte first,
+ * two bytes each except the encoder which takes four. A config returns
+ * the profile id and the failed pin mask, two bytes each, and the skipped
+ * flag. A pushed sample is A5, the length, the mask with 0x80 added, the
+ * four byte millis() time and the values as in a read.
  */
 
 /* This is a modification of the work done by Chris Warburton http://chriswarbo.net/index.php?page=cedi&type=misc&id=1%2F3%2F6%2F10
@@ -68,6 +133,12 @@ void setup()
 
 void loop()
 {
+  // once switched over, commands arrive in the binary protocol
+  if (binary_mode) {
+    read_binary();
+    return;
+  }
+
   // Look for some commands in JSON
   char* input = 0;
 
@@ -94,7 +165,6 @@ char read_char()
   // forever if you don't send it anything)
   char data = -1;
   while ((Serial.available() < 0) || (data < 0)) {
-    delay(1);
     data = Serial.read();
 
     // get encoder data in this loop
@@ -102,11 +172,170 @@ char read_char()
     if (newPos != encoderPosition) {
       encoderPosition = newPos;
     }
+    stream_samples();
 
+    // only wait when there is nothing to read - the host pipelines
+    // commands, so the receive buffer must be drained at full speed
+    if (data < 0) {
+      delay(1);
+    }
+  }
+  return data;
+}
+
+int read_byte()
+{
+  // Like read_char, but returns all 256 byte values - the binary
+  // protocol uses bytes that would look negative as a char
+  int data = Serial.read();
+  while (data < 0) {
+    // get encoder data in this loop
+    long newPos = encoder.read();
+    if (newPos != encoderPosition) {
+      encoderPosition = newPos;
+    }
+    stream_samples();
+    delay(1);
+    data = Serial.read();
   }
   return data;
 }
 
+void read_binary()
+{
+  // Read one binary command and run it. Bytes in front of
+  // the sync byte are skipped.
+  int op;
+  int pin;
+  int pin_value;
+  int duration;
+
+  if (read_byte() != BIN_SYNC) {
+    return;
+  }
+  op = read_byte();
+  switch (op) {
+  case BIN_MODE:
+    pin = read_byte();
+    pin_value = read_byte();
+    pinMode(pin, pin_value ? OUTPUT : INPUT);
+    send_binary_ack();
+    break;
+  case BIN_DIGITAL:
+    pin = read_byte();
+    pin_value = read_byte();
+    digitalWrite(pin, pin_value ? HIGH : LOW);
+    send_binary_ack();
+    break;
+  case BIN_ANALOG:
+    pin = read_byte();
+    pin_value = read_byte();
+    analogWrite(pin, pin_value);
+    send_binary_ack();
+    break;
+  case BIN_PIEZO:
+    pin_value = read_byte() << 8;
+    pin_value |= read_byte();
+    duration = read_byte() << 8;
+    duration |= read_byte();
+    play_tone(pin_value, duration);
+    send_binary_ack();
+    break;
+  case BIN_SERVO:
+    move_servo(read_byte());
+    send_binary_ack();
+    break;
+  case BIN_READ:
+    send_binary_values(read_byte());
+    break;
+  case BIN_CONFIG: {
+    unsigned int profile = read_word();
+    unsigned int inputs = read_word();
+    unsigned int pullups = read_word();
+    unsigned int outputs = read_word();
+    short skipped = (profile == configured_profile);
+    unsigned int failed = apply_config(profile, inputs, pullups, outputs);
+    Serial.write(BIN_SYNC);
+    Serial.write(5);
+    Serial.write((byte)(profile >> 8));
+    Serial.write((byte)profile);
+    Serial.write((byte)(failed >> 8));
+    Serial.write((byte)failed);
+    Serial.write(skipped);
+    break;
+  }
+  case BIN_SUBSCRIBE:
+    pin_value = read_byte();
+    duration = read_word();
+    subscribe(pin_value, duration);
+    send_binary_ack();
+    break;
+  case BIN_RGB: {
+    short type = read_byte() ? 2 : 1;
+    int red = read_byte();
+    int green = read_byte();
+    int blue = read_byte();
+    write_rgb(type, red, green, blue);
+    send_binary_ack();
+    break;
+  }
+  default:
+    // unknown op - answer anyway so the host stays in step
+    Serial.write(BIN_SYNC);
+    Serial.write(1);
+    Serial.write(0xFF);
+    break;
+  }
+}
+
+unsigned int read_word() {
+  // two bytes, high byte first
+  unsigned int word = read_byte() << 8;
+  return word | read_byte();
+}
+
+void send_binary_ack() {
+  Serial.write(BIN_SYNC);
+  Serial.write(0);
+}
+
+void send_binary_values(int mask) {
+  // A5 length mask values...
+  Serial.write(BIN_SYNC);
+  Serial.write(binary_values_length(mask) + 1);
+  Serial.write(mask);
+  write_binary_values(mask);
+}
+
+int binary_values_length(int mask) {
+  // bytes taken by the values of the reporters in the mask
+  int reporter;
+  int length = 0;
+  for (reporter = 0; reporter < NUM_REPORTERS; reporter++) {
+    if (mask & (1 << reporter)) {
+      length += (reporter == ENCODER_REPORTER) ? 4 : 2;
+    }
+  }
+  return length;
+}
+
+void write_binary_values(int mask) {
+  // each value high byte first, the encoder in four bytes
+  int reporter;
+  long value;
+  for (reporter = 0; reporter < NUM_REPORTERS; reporter++) {
+    if (mask & (1 << reporter)) {
+      value = read_reporter(reporter);
+      if (reporter == ENCODER_REPORTER) {
+        Serial.write((byte)(value >> 24));
+        Serial.write((byte)(value >> 16));
+      }
+      Serial.write((byte)(value >> 8));
+      Serial.write((byte)value);
+    }
+  }
+}
+
 
 char* read_json()
 {
@@ -589,6 +818,18 @@ void run_command(char* name, char* value) {
   if (compare_strings(name,"query")) {
     run_query(value);
   }
+  if (compare_strings(name,"baud")) {
+    run_baud(value);
+  }
+  if (compare_strings(name,"rgb")) {
+    run_rgb(value);
+  }
+  if (compare_strings(name,"config")) {
+    run_config(value);
+  }
+  if (compare_strings(name,"subscribe")) {
+    run_subscribe(value);
+  }
 }
 
 
@@ -633,6 +874,22 @@ void run_read(char* value) {
           return ;
         }
 
+        // batched read of several reporters in one reply
+        if (compare_strings(value+index, "mask"))
+        {
+          index = index + value_length(value+index);  // Skip over the name
+          index = index + skip_space(value+index);    // Skip whitespace
+          if (value[index] == ':') {
+            index++;    // Skip the colon
+          }
+          else {
+            return;     // No colon. Abort.
+          }
+          index = index + skip_space(value+index);    // Skip whitespace
+          send_pin_values((int) compile_digits(value+index));
+          return ;
+        }
+
         if (compare_strings(value+index, "pin")) {
           //Serial.println("Found pin");
           // This is the number of the pin to read
@@ -726,6 +983,52 @@ void run_read(char* value) {
   }
 }
 
+long read_reporter(int reporter) {
+  // Reporters are numbered in the order of the batched read mask bits
+  switch (reporter) {
+  case 0:
+    return analogRead(POT);
+  case 1:
+    return analogRead(HALL);
+  case 2:
+    return analogRead(THERMISTOR);
+  case 3:
+    return analogRead(PHOTOCELL);
+  case 4:
+    return digitalRead(BUTTON);
+  case 5:
+    return digitalRead(SWITCH);
+  case 6:
+    return encoderPosition;
+  }
+  return 0;
+}
+
+void send_pin_values(int mask) {
+  // Send every reporter selected by the mask in one reply
+  // {"pinValues":{"mask":127,"values":[1,2,3,4,5,6,7]}}
+  Serial.print("{\"pinValues\":{\"mask\":");
+  Serial.print(mask);
+  print_values(mask);
+}
+
+void print_values(int mask) {
+  // ,"values":[...]}} for the reporters in the mask
+  short first = 1;
+  int reporter;
+  Serial.print(",\"values\":[");
+  for (reporter = 0; reporter < NUM_REPORTERS; reporter++) {
+    if (mask & (1 << reporter)) {
+      if (!first) {
+        Serial.print(",");
+      }
+      first = 0;
+      Serial.print(read_reporter(reporter));
+    }
+  }
+  Serial.print("]}}\n");
+}
+
 void run_write(char* value) {
   // Writes the specified value to the specified pin and sends
   // back some empty JSON. The type must be given, to keep the
@@ -876,22 +1179,13 @@ void run_write(char* value) {
        // pin_value = 550 ;
         //pin = 1000 ;
         //Serial.println(pin) ;
-        tone(3, pin_value, pin) ;
-        delay(pin) ;
-        noTone(3) ;
+        play_tone(pin_value, pin) ;
 
       }
       if( type == 4 ) // do servo motion
       {
      //   Servo servo ;
-
-        servo.attach(SERVO) ;
- 
-        delay(100) ;
-        servo.write(pin_value) ;
-        delay(300) ;
-        servo.detach() ;
-        delay(300) ;
+        move_servo(pin_value) ;
         //pinMode(HALL, INPUT) ;
       }
 
@@ -901,6 +1195,23 @@ void run_write(char* value) {
   }
 }
 
+void play_tone(int freq, int duration) {
+  // play the piezo for the duration and wait until it is done
+  tone(PIEZO, freq, duration) ;
+  delay(duration) ;
+  noTone(PIEZO) ;
+}
+
+void move_servo(int degrees) {
+  // the servo is only attached while it moves
+  servo.attach(SERVO) ;
+  delay(100) ;
+  servo.write(degrees) ;
+  delay(300) ;
+  servo.detach() ;
+  delay(300) ;
+}
+
 void run_mode(char* value) {
   // Sets the mode of a pin to input or output.
 
@@ -993,6 +1304,275 @@ void run_mode(char* value) {
   }
 }
 
+void write_rgb(short type, int red, int green, int blue) {
+  // Set the three rgb leds one straight after the other.
+  // type 1 = digital, 2 = analog
+  if (type == 1) {
+    digitalWrite(RGB_RED, red ? HIGH : LOW);
+    digitalWrite(RGB_GREEN, green ? HIGH : LOW);
+    digitalWrite(RGB_BLUE, blue ? HIGH : LOW);
+  }
+  else {
+    analogWrite(RGB_RED, red);
+    analogWrite(RGB_GREEN, green);
+    analogWrite(RGB_BLUE, blue);
+  }
+}
+
+void run_rgb(char* value) {
+  // Sets all three rgb leds from one command so no in
+  // between color shows. We should have been given a JSON
+  // object containing "type":"analog" or "type":"digital"
+  // and "red":r, "green":g, "blue":b
+  int value_size = json_length(value);
+  int index = 0;   // Loop index for walking the value
+  int levels[3] = { -1, -1, -1 };    // red, green, blue
+  int level;       // which of the levels we found
+  short type = 0;    // 0 = unknown, 1 = digital, 2 = analog
+  if (value_size > 2) {    // We want some contents between our '{' and '}'
+    index++;    // Skip the '{'
+    // Loop until we reach the '}'
+    while (index < value_size - 2) {
+      if (value[index] != '"') {
+        index++;    // Skip anything that is not a name
+        continue;
+      }
+      level = -1;
+      if (compare_strings(value+index, "red")) {
+        level = 0;
+      }
+      if (compare_strings(value+index, "green")) {
+        level = 1;
+      }
+      if (compare_strings(value+index, "blue")) {
+        level = 2;
+      }
+      if (compare_strings(value+index, "type")) {
+        level = 3;
+      }
+      index = index + value_length(value+index);  // Skip over the name
+      index = index + skip_space(value+index);    // Skip whitespace
+      if (value[index] != ':') {
+        return;    // No colon. Bail out.
+      }
+      index++;    // Skip the colon
+      index = index + skip_space(value+index);    // Skip whitespace
+      if (level == 3) {
+        if (compare_strings(value+index, "digital")) {
+          type = 1;
+        }
+        if (compare_strings(value+index, "analog")) {
+          type = 2;
+        }
+      }
+      else if (level >= 0) {
+        levels[level] = (int)(compile_digits(value+index)+0.5);
+      }
+      index = index + value_length(value+index);  // Skip over the value
+      index = index + skip_space(value+index);    // Skip whitespace
+      if (value[index] == ',') {
+        index++;    // Skip commas
+      }
+      index = index + skip_space(value+index);    // Skip whitespace
+    }
+    if ((type == 0) || (levels[0] < 0) || (levels[1] < 0) || (levels[2] < 0)) {
+      return;    // Something is missing. Bail out.
+    }
+    write_rgb(type, levels[0], levels[1], levels[2]);
+    Serial.print("{}\n");    // Indicates success
+  }
+}
+
+unsigned int apply_config(unsigned int profile, unsigned int inputs,
+unsigned int pullups, unsigned int outputs) {
+  // Sets up every pin of a profile unless it is already in
+  // place. Returns the mask of pins that could not be set up.
+  unsigned int failed = 0;
+  unsigned int bit;
+  int pin;
+  if (profile == configured_profile) {
+    return 0;    // Nothing to do
+  }
+  for (pin = 0; pin < NUM_CONFIG_PINS; pin++) {
+    bit = 1 << pin;
+    if (((inputs | pullups | outputs) & bit) == 0) {
+      continue;
+    }
+    // the serial pins, pins the board does not have, and
+    // pins that are asked to be both input and output fail
+    if ((pin < 2) || (pin >= NUM_DIGITAL_PINS)
+      || (((inputs | pullups) & bit) && (outputs & bit))) {
+      failed |= bit;
+      continue;
+    }
+    if (outputs & bit) {
+      pinMode(pin, OUTPUT);
+      digitalWrite(pin, LOW);
+    }
+    else {
+      pinMode(pin, INPUT);
+      if (pullups & bit) {
+        digitalWrite(pin, HIGH);    // Turn on the pull up
+      }
+    }
+  }
+  if (failed == 0) {
+    configured_profile = profile;
+  }
+  return failed;
+}
+
+void run_config(char* value) {
+  // Sets up the pins from a profile and answers with
+  // {"configured":{"profile":p,"failed":mask,"skipped":0 or 1}}
+  int value_size = json_length(value);
+  int index = 0;   // Loop index for walking the value
+  long fields[4] = { -1, -1, -1, -1 };    // profile, inputs, pullups, outputs
+  int field;       // which of the fields we found
+  if (value_size > 2) {    // We want some contents between our '{' and '}'
+    index++;    // Skip the '{'
+    // Loop until we reach the '}'
+    while (index < value_size - 2) {
+      if (value[index] != '"') {
+        index++;    // Skip anything that is not a name
+        continue;
+      }
+      field = -1;
+      if (compare_strings(value+index, "profile")) {
+        field = 0;
+      }
+      if (compare_strings(value+index, "inputs")) {
+        field = 1;
+      }
+      if (compare_strings(value+index, "pullups")) {
+        field = 2;
+      }
+      if (compare_strings(value+index, "outputs")) {
+        field = 3;
+      }
+      index = index + value_length(value+index);  // Skip over the name
+      index = index + skip_space(value+index);    // Skip whitespace
+      if (value[index] != ':') {
+        return;    // No colon. Bail out.
+      }
+      index++;    // Skip the colon
+      index = index + skip_space(value+index);    // Skip whitespace
+      if (field >= 0) {
+        fields[field] = (long)(compile_digits(value+index)+0.5);
+      }
+      index = index + value_length(value+index);  // Skip over the value
+      index = index + skip_space(value+index);    // Skip whitespace
+    }
+    if ((fields[0] < 0) || (fields[1] < 0) || (fields[2] < 0) || (fields[3] < 0)) {
+      return;    // Something is missing. Bail out.
+    }
+    short skipped = ((unsigned int)fields[0] == configured_profile);
+    unsigned int failed = apply_config(fields[0], fields[1], fields[2], fields[3]);
+    Serial.print("{\"configured\":{\"profile\":");
+    Serial.print((unsigned int)fields[0]);
+    Serial.print(",\"failed\":");
+    Serial.print(failed);
+    Serial.print(",\"skipped\":");
+    Serial.print(skipped);
+    Serial.print("}}\n");
+  }
+}
+
+void run_subscribe(char* value) {
+  // Starts or stops pushing samples and answers with {}
+  // {"subscribe":{"mask":127,"interval":20}}
+  int value_size = json_length(value);
+  int index = 0;   // Loop index for walking the value
+  long fields[2] = { -1, -1 };    // mask, interval
+  int field;       // which of the fields we found
+  if (value_size > 2) {    // We want some contents between our '{' and '}'
+    index++;    // Skip the '{'
+    // Loop until we reach the '}'
+    while (index < value_size - 2) {
+      if (value[index] != '"') {
+        index++;    // Skip anything that is not a name
+        continue;
+      }
+      field = -1;
+      if (compare_strings(value+index, "mask")) {
+        field = 0;
+      }
+      if (compare_strings(value+index, "interval")) {
+        field = 1;
+      }
+      index = index + value_length(value+index);  // Skip over the name
+      index = index + skip_space(value+index);    // Skip whitespace
+      if (value[index] != ':') {
+        return;    // No colon. Bail out.
+      }
+      index++;    // Skip the colon
+      index = index + skip_space(value+index);    // Skip whitespace
+      if (field >= 0) {
+        fields[field] = (long)(compile_digits(value+index)+0.5);
+      }
+      index = index + value_length(value+index);  // Skip over the value
+      index = index + skip_space(value+index);    // Skip whitespace
+    }
+    if ((fields[0] < 0) || (fields[1] < 0)) {
+      return;    // Something is missing. Bail out.
+    }
+    subscribe(fields[0], fields[1]);
+    Serial.print("{}\n");
+  }
+}
+
+void subscribe(int mask, unsigned int interval) {
+  // what stream_samples() pushes from now on
+  stream_mask = mask & ((1 << NUM_REPORTERS) - 1);
+  stream_interval = interval;
+  last_stream = millis() - interval;    // the first one goes out at once
+}
+
+void stream_samples() {
+  // Push a sample once the interval is up. This is only called
+  // while waiting for input, never in the middle of a reply.
+  unsigned long now;
+  if (stream_mask == 0) {
+    return;
+  }
+  now = millis();
+  if (now - last_stream < stream_interval) {
+    return;
+  }
+  last_stream = now;
+  if (binary_mode) {
+    Serial.write(BIN_SYNC);
+    Serial.write(binary_values_length(stream_mask) + 5);
+    Serial.write(stream_mask | BIN_SAMPLE);
+    Serial.write((byte)(now >> 24));
+    Serial.write((byte)(now >> 16));
+    Serial.write((byte)(now >> 8));
+    Serial.write((byte)now);
+    write_binary_values(stream_mask);
+  }
+  else {
+    Serial.print("{\"sample\":{\"time\":");
+    Serial.print(now);
+    Serial.print(",\"mask\":");
+    Serial.print(stream_mask);
+    print_values(stream_mask);
+  }
+}
+
+void run_baud(char* value) {
+  // Changes the serial baud rate. The acknowledgement is
+  // still sent at the old rate, the host follows once it
+  // has received it.
+  long rate = (long)(compile_digits(value)+0.5);
+  if (rate <= 0) {
+    return;    // Bail out
+  }
+  Serial.print("{}\n");
+  Serial.flush();    // wait for the acknowledgement to go out
+  Serial.end();
+  Serial.begin(rate);
+}
+
 void run_query(char* value) {
   // We use "query" as a generic name when all we want
   // to send is a value. We simply branch based on the
@@ -1004,6 +1584,18 @@ void run_query(char* value) {
     // end knows that it can send commands to us.
     Serial.println("{\"status\":\"ready\"}");
   }
+  if (compare_strings(value, "binary")) {
+    // The host wants the binary protocol. Answer in json,
+    // everything after this is binary.
+    Serial.print("{\"binary\":1}\n");
+    binary_mode = 1;
+  }
+  if (compare_strings(value, "features")) {
+    // The host asks which of the optional commands we know
+    Serial.print("{\"features\":");
+    Serial.print(FEATURES);
+    Serial.print("}\n");
+  }
 }
 
 
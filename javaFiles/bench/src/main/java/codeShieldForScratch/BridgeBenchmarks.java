@@ -0,0 +1,301 @@
+/*
+ Scratch 2.0 Hardware Extension for the CodeShield Arduino Interface.
+
+ Written by Alan Yorinks
+ Copyright (c) 2013 Alan Yorinks All right reserved.
+
+ This program is free software; you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public
+ License as published by the Free Software Foundation; either
+ version 2.1 of the License, or (at your option) any later version.
+
+ This library is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ Lesser General Public License for more details.
+
+ You should have received a copy of the GNU Lesser General Public
+ License along with this library; if not, write to the Free Software
+ Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package codeShieldForScratch;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JMH benchmarks for the hot paths of the bridge, run against an
+ * InMemorySerialManager so no board is needed. Every benchmark runs once
+ * for each serial protocol; see README.TXT for how to run them.
+ *
+ * @author afy
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class BridgeBenchmarks {
+
+    static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    static final byte[] POLL = ascii("{\"method\":\"poll\",\"params\":[]}");
+    static final byte[] LED_SELECT = ascii("{\"method\":\"LEDSelect\",\"params\":[1,128]}");
+    // one message for each command block
+    static final String[] COMMANDS = {
+        "{\"method\":\"LEDSelect\",\"params\":[1,128]}",
+        "{\"method\":\"servoDegrees\",\"params\":[90]}",
+        "{\"method\":\"LEDDigitalSelect\",\"params\":[4,1]}",
+        "{\"method\":\"relayState\",\"params\":[1]}",
+        "{\"method\":\"piezoTone\",\"params\":[550,1000]}"
+    };
+    // a read's worth of scratch traffic, the last message split
+    static final byte[] CHUNK = ascii("{\"method\":\"poll\",\"params\":[]}\n"
+            + "{\"method\":\"LEDSelect\",\"params\":[1,128]}\n"
+            + "{\"method\":\"poll\",\"params\":[]}\n"
+            + "{\"method\":\"servoDegr");
+    static final byte[] REST = ascii("ees\",\"params\":[90]}\n");
+
+    @Param({"json", "binary"})
+    String protocol;
+
+    InMemorySerialManager serManager;
+    SerialPipeline pipeline;
+    SensorSampler sampler;
+    CommandScheduler scheduler;
+    MessageTranslator translator;
+    long bytesToScratch = 0;
+    int toggle = 0;
+    int index = 0;
+    // two snapshots far enough apart that every reporter changes
+    SensorSnapshot[] snapshots = {
+        new SensorSnapshot(1, 0, MessageTranslator.ALL_REPORTERS,
+        new int[]{100, 200, 300, 400, 0, 0, 10}),
+        new SensorSnapshot(2, 0, MessageTranslator.ALL_REPORTERS,
+        new int[]{900, 800, 700, 600, 1, 1, 20})
+    };
+    byte[][] messages;
+    JsonCodec codec;
+    CommandRegistry registry;
+    ScratchCommand ledSelect;
+    ScratchCommand ledDigitalSelect;
+    ScratchCommand piezoTone;
+    ScratchCommand relayState;
+    ScratchCommand servoDegrees;
+    File recording;
+    SensorRecorder recorder;
+    LineFramer framer;
+    LineFramer.Handler handler;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        serManager = new InMemorySerialManager(protocol.equals("binary"),
+                SerialManager.FEATURE_RGB | SerialManager.FEATURE_CONFIG);
+        pipeline = new SerialPipeline(serManager, SerialPipeline.DEFAULT_WINDOW);
+        sampler = new SensorSampler(pipeline, MessageTranslator.SAMPLE_INTERVAL);
+        scheduler = new CommandScheduler(pipeline);
+        translator = new MessageTranslator(scheduler, sampler, new ScratchOutput() {
+            @Override
+            public void send(byte[] buf, int offset, int length) {
+                bytesToScratch += length;
+            }
+        });
+
+        messages = new byte[COMMANDS.length][];
+        for (int i = 0; i < COMMANDS.length; i++) {
+            messages[i] = ascii(COMMANDS[i]);
+        }
+        codec = new JsonCodec();
+        registry = CommandRegistry.getDefault();
+        ledSelect = registry.find("LEDSelect");
+        ledDigitalSelect = registry.find("LEDDigitalSelect");
+        piezoTone = registry.find("piezoTone");
+        relayState = registry.find("relayState");
+        servoDegrees = registry.find("servoDegrees");
+
+        recording = File.createTempFile("bench", ".rec");
+        recording.deleteOnExit();
+        recorder = new SensorRecorder(recording.getPath());
+
+        framer = new LineFramer();
+        handler = new LineFramer.Handler() {
+            @Override
+            public void lineReceived(byte[] buf, int offset, int length) {
+                bytesToScratch += length;
+            }
+
+            @Override
+            public void policyRequested() {
+            }
+        };
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        recorder.close();
+        recording.delete();
+    }
+
+    // flip between two values so no write is skipped as redundant
+    int next(int a, int b) {
+        toggle ^= 1;
+        return toggle == 0 ? a : b;
+    }
+
+    // the next of the commands, round robin
+    int nextCommand() {
+        int i = index;
+        index = (index + 1) % COMMANDS.length;
+        return i;
+    }
+
+    @Benchmark
+    public long pollChanged() throws Exception {
+        sampler.snapshot.set(snapshots[next(0, 1)]);
+        translator.handleMsg(POLL, 0, POLL.length);
+        return bytesToScratch;
+    }
+
+    // nothing is ever published, so after the first poll every reporter
+    // is unchanged
+    @Benchmark
+    public long pollUnchanged() throws Exception {
+        translator.handleMsg(POLL, 0, POLL.length);
+        return bytesToScratch;
+    }
+
+    @Benchmark
+    public int convertAJSONtoSJSON() {
+        return translator.convertAJSONtoSJSON(snapshots[next(0, 1)]);
+    }
+
+    // parse and queue only - the scheduler thread does the rest and
+    // coalescing keeps its queue short
+    @Benchmark
+    public void handleMsgLEDSelect() throws Exception {
+        translator.handleMsg(LED_SELECT, 0, LED_SELECT.length);
+    }
+
+    // find the command for a message through the registry
+    @Benchmark
+    public int dispatchRegistry() {
+        byte[] msg = messages[nextCommand()];
+        codec.parseScratch(msg, 0, msg.length);
+        ScratchCommand command = registry.find(codec.methodSource,
+                codec.methodStart, codec.methodLength);
+        int[] params = new int[command.getParamCount()];
+        for (int i = 0; i < params.length; i++) {
+            params[i] = codec.getParam(i);
+        }
+        return params[0];
+    }
+
+    // the same, the way handleMsg did it with org.json and a string switch
+    @Benchmark
+    public int dispatchJsonSwitch() {
+        JSONObject msgObj = new JSONObject(COMMANDS[nextCommand()]);
+        JSONArray paramsArray;
+        switch ((String) msgObj.get("method")) {
+            case "LEDSelect":
+            case "LEDDigitalSelect":
+            case "piezoTone":
+                paramsArray = msgObj.getJSONArray("params");
+                return paramsArray.getInt(0) + paramsArray.getInt(1);
+            case "servoDegrees":
+            case "relayState":
+                paramsArray = msgObj.getJSONArray("params");
+                return paramsArray.getInt(0);
+        }
+        return 0;
+    }
+
+    // append a sample to a recording - the same window is written over and
+    // over so the file stays small
+    @Benchmark
+    public void sensorRecorderRecord() {
+        if (!recorder.window.hasRemaining()) {
+            recorder.window.position(0);
+            recorder.count = 0;
+        }
+        recorder.record(snapshots[next(0, 1)]);
+    }
+
+    @Benchmark
+    public void writeLed() {
+        translator.writeLed(MessageTranslator.RGB_RED, next(10, 200),
+                MessageTranslator.LEDPWM);
+        translator.checkLedReplies();
+    }
+
+    // each command the way the scheduler thread runs it, flipping between
+    // two sets of parameters
+    void command(ScratchCommand command, int[] first, int[] second) {
+        command.run(translator, next(0, 1) == 0 ? first : second);
+    }
+
+    @Benchmark
+    public void commandLEDSelectRed() {
+        command(ledSelect, new int[]{MessageTranslator.RED, 0},
+                new int[]{MessageTranslator.RED, 1});
+    }
+
+    @Benchmark
+    public void commandLEDSelectOrange() {
+        command(ledSelect, new int[]{MessageTranslator.ORANGE, 0},
+                new int[]{MessageTranslator.ORANGE, 1});
+    }
+
+    @Benchmark
+    public void commandLEDDigitalSelectWhite() {
+        command(ledDigitalSelect, new int[]{MessageTranslator.WHITE, 0},
+                new int[]{MessageTranslator.WHITE, 1});
+    }
+
+    @Benchmark
+    public void commandPiezoTone() {
+        command(piezoTone, new int[]{550, 10}, new int[]{550, 10});
+    }
+
+    @Benchmark
+    public void commandRelayState() {
+        command(relayState, new int[]{0}, new int[]{1});
+    }
+
+    @Benchmark
+    public void commandServoDegrees() {
+        command(servoDegrees, new int[]{0}, new int[]{180});
+    }
+
+    // split a read's worth of scratch traffic into messages
+    @Benchmark
+    public long lineFramerProcess() throws IOException {
+        ByteBuffer buffer = framer.getBuffer();
+        buffer.put(CHUNK);
+        framer.process(handler);
+        buffer = framer.getBuffer();
+        buffer.put(REST);
+        framer.process(handler);
+        return bytesToScratch;
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ Scratch 2.0 Hardware Extension for the CodeShield Arduino Interface.
+
+ Written by Alan Yorinks
+ Copyright (c) 2013 Alan Yorinks All right reserved.
+
+ This program is free software; you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public
+ License as published by the Free Software Foundation; either
+ version 2.1 of the License, or (at your option) any later version.
+
+ This library is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ Lesser General Public License for more details.
+
+ You should have received a copy of the GNU Lesser General Public
+ License along with this library; if not, write to the Free Software
+ Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package codeShieldForScratch;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A SerialManager with no port behind it. Every command written is answered
+ * at once, on the writing thread, with the reply the sketch would send, so
+ * benchmarks measure the bridge and nothing else.
+ *
+ * @author afy
+ */
+public class InMemorySerialManager extends SerialManager {
+
+    static final byte[] JSON_ACK = "{}\n".getBytes(StandardCharsets.US_ASCII);
+    static final byte[] BINARY_ACK = {(byte) BinaryCodec.SYNC, 0};
+    static final byte[] JSON_READING = ("{\"pinValues\":{\"mask\":127,"
+            + "\"values\":[512,300,611,420,1,0,-17]}}\n").getBytes(StandardCharsets.US_ASCII);
+    static final byte[] BINARY_READING = {(byte) BinaryCodec.SYNC, 17, 127,
+        2, 0, 1, 44, 2, 99, 1, (byte) 164, 0, 1, 0, 0,
+        (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xEF};
+    long commandsWritten = 0;
+    long bytesWritten = 0;
+
+    // constructor
+    public InMemorySerialManager(boolean binary, int features) {
+        super("in-memory");
+        this.binary = binary;
+        this.features = features;
+    }
+
+    // nothing to open
+    @Override
+    public boolean open() {
+        return true;
+    }
+
+    @Override
+    public void writeToArduino(byte[] toArduino) {
+        commandsWritten++;
+        bytesWritten += toArduino.length;
+        byte[] reply = isRead(toArduino)
+                ? (binary ? BINARY_READING : JSON_READING)
+                : (binary ? BINARY_ACK : JSON_ACK);
+        receiveBytes(reply, 0, reply.length);
+    }
+
+    @Override
+    public void closeSerial() {
+    }
+
+    boolean isRead(byte[] command) {
+        if (binary) {
+            return command.length > 1 && command[1] == BinaryCodec.OP_READ;
+        }
+        return command.length > 3 && command[2] == 'r' && command[3] == 'e';
+    }
+}
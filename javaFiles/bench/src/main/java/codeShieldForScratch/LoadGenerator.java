@@ -0,0 +1,523 @@
+/*
+ Scratch 2.0 Hardware Extension for the CodeShield Arduino Interface.
+
+ Written by Alan Yorinks
+ Copyright (c) 2013 Alan Yorinks All right reserved.
+
+ This program is free software; you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public
+ License as published by the Free Software Foundation; either
+ version 2.1 of the License, or (at your option) any later version.
+
+ This library is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ Lesser General Public License for more details.
+
+ You should have received a copy of the GNU Lesser General Public
+ License along with this library; if not, write to the Free Software
+ Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package codeShieldForScratch;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.locks.LockSupport;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Plays the part of Scratch: connects to the bridge, does the Flash policy
+ * exchange, then polls at a steady rate while firing command blocks at
+ * another, and reports what it saw.
+ *
+ * Usage: LoadGenerator [name=value ...]
+ * <pre>
+ *   host      bridge to connect to (127.0.0.1)
+ *   port      its port (50207)
+ *   board     start a bridge in this process on a simulated board, for
+ *             example board=sim:actuators=0 - needed for command latency
+ *   sample    sample interval in msec of that bridge (50)
+ *   protocol  its serial protocol, binary or json (binary)
+ *   seconds   length of the run (10)
+ *   warmup    seconds run before measuring starts (1)
+ *   poll      polls per second (30)
+ *   commands  commands per second, 0 for none (10)
+ *   mix       commands and their weights
+ *             (LEDSelect:4,relayState:2,servoDegrees:1,piezoTone:1)
+ *   led       led the LED commands select (4, white)
+ *   tone      msec of each piezo tone (50)
+ *   late      msec after which a reporter update counts as late (150)
+ *   seed      seed for picking commands from the mix (1)
+ * </pre>
+ *
+ * The potentiometer, hall effect and photocell of the simulated board change
+ * all the time, so for those the gaps between updates are how stale
+ * Scratch's value gets, and a gap over the late limit is an update that was
+ * dropped or held up. A reporter that does not change is not sent at all,
+ * so the gaps of the slower ones mostly show how fast their input moves.
+ *
+ * Scratch is not told when a command has been carried out, so command
+ * latency - from the line leaving here to the board acking it - is only
+ * measured when the bridge runs here on a simulated board. A command a
+ * newer one replaced before it was sent, or that would not have changed
+ * the outputs, is counted as merged.
+ *
+ * @author afy
+ */
+public class LoadGenerator {
+
+    static final String[] DEVICES = {"led", "relay", "servo", "piezo"};
+    static final byte[] POLICY_REQUEST
+            = "<policy-file-request/>\0".getBytes(StandardCharsets.US_ASCII);
+    static final byte[] POLL
+            = "{\"method\":\"poll\",\"params\":[]}\n".getBytes(StandardCharsets.US_ASCII);
+    // settings
+    String host = "127.0.0.1";
+    int port = MessageManager.PORT;
+    String board = null;
+    int sample = MessageTranslator.SAMPLE_INTERVAL;
+    boolean binary = true;
+    int seconds = 10;
+    int warmup = 1;
+    int pollRate = 30;
+    int commandRate = 10;
+    LinkedHashMap<String, Integer> mix = new LinkedHashMap<>();
+    int led = MessageTranslator.WHITE;
+    int toneMillis = 50;
+    long lateNanos = 150 * 1000000L;
+    long seed = 1;
+    // what was seen - guarded by this
+    volatile boolean measuring = false;
+    long pollsSent = 0;
+    long pollsAnswered = 0;
+    long lastPollSent = 0;
+    LatencyProfile pollTime = new LatencyProfile("poll round trip");
+    long[] updates = new long[MessageTranslator.NUM_SENSORS];
+    long[] lateUpdates = new long[MessageTranslator.NUM_SENSORS];
+    long[] lastUpdate = new long[MessageTranslator.NUM_SENSORS];
+    LatencyProfile[] gaps = new LatencyProfile[MessageTranslator.NUM_SENSORS];
+    Map<String, Device> devices = new LinkedHashMap<>();
+
+    /**
+     * Commands sent to one device and how they fared
+     */
+    static class Device {
+
+        String name;
+        ArrayDeque<Long> inFlight = new ArrayDeque<>(); // send times, oldest first
+        long sent = 0;
+        long acked = 0;
+        long merged = 0;
+        LatencyProfile latency;
+
+        Device(String name) {
+            this.name = name;
+            latency = new LatencyProfile(name);
+        }
+    }
+
+    // constructor
+    LoadGenerator(String[] args) {
+        mix.put("LEDSelect", 4);
+        mix.put("relayState", 2);
+        mix.put("servoDegrees", 1);
+        mix.put("piezoTone", 1);
+        for (String arg : args) {
+            String[] pair = arg.split("=", 2);
+            if (pair.length != 2) {
+                throw new IllegalArgumentException("expected name=value: " + arg);
+            }
+            String value = pair[1];
+            switch (pair[0]) {
+                case "host":
+                    host = value;
+                    break;
+                case "port":
+                    port = Integer.parseInt(value);
+                    break;
+                case "board":
+                    board = value;
+                    break;
+                case "sample":
+                    sample = Integer.parseInt(value);
+                    break;
+                case "protocol":
+                    binary = !value.equalsIgnoreCase("json");
+                    break;
+                case "seconds":
+                    seconds = Integer.parseInt(value);
+                    break;
+                case "warmup":
+                    warmup = Integer.parseInt(value);
+                    break;
+                case "poll":
+                    pollRate = Integer.parseInt(value);
+                    break;
+                case "commands":
+                    commandRate = Integer.parseInt(value);
+                    break;
+                case "mix":
+                    mix.clear();
+                    for (String entry : value.split(",")) {
+                        String[] weight = entry.split(":");
+                        mix.put(weight[0], weight.length > 1
+                                ? Integer.parseInt(weight[1]) : 1);
+                    }
+                    break;
+                case "led":
+                    led = Integer.parseInt(value);
+                    break;
+                case "tone":
+                    toneMillis = Integer.parseInt(value);
+                    break;
+                case "late":
+                    lateNanos = Long.parseLong(value) * 1000000L;
+                    break;
+                case "seed":
+                    seed = Long.parseLong(value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("unknown setting: " + pair[0]);
+            }
+        }
+        for (String name : DEVICES) {
+            devices.put(name, new Device(name));
+        }
+        for (int i = 0; i < gaps.length; i++) {
+            gaps[i] = new LatencyProfile(MessageTranslator.REPORTER_NAMES[i]);
+        }
+    }
+
+    // the device a Scratch command drives
+    static String deviceOf(String method) {
+        switch (method) {
+            case "LEDSelect":
+            case "LEDDigitalSelect":
+                return "led";
+            case "relayState":
+                return "relay";
+            case "servoDegrees":
+                return "servo";
+            case "piezoTone":
+                return "piezo";
+            default:
+                throw new IllegalArgumentException("unknown command: " + method);
+        }
+    }
+
+    // the device an output pin belongs to
+    static String deviceOfPin(int pin) {
+        switch (pin) {
+            case MessageTranslator.RELAY:
+                return "relay";
+            case MessageTranslator.PIEZO:
+                return "piezo";
+            case MessageTranslator.SERVO:
+                return "servo";
+            default:
+                return "led";
+        }
+    }
+
+    // run the bridge here, on a simulated board that reports its acks
+    void startBridge() {
+        SerialManager.TRY_BINARY = binary;
+        SimulatedBoard simulated = new SimulatedBoard(board) {
+            @Override
+            void outputAcked(int pin, long started) {
+                acked(deviceOfPin(pin), started, System.nanoTime());
+            }
+        };
+        BoardContext context = new BoardContext(simulated, port, sample);
+        if (!context.open()) {
+            throw new IllegalStateException("simulated board did not start");
+        }
+        final TCPServerManager server = new TCPServerManager(port,
+                context.getScheduler(), context.getSampler());
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                server.openSocketServer();
+            }
+        }, "TCPServerManager");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // connect, retrying for a while in case the bridge is still starting
+    Socket connect() throws IOException, InterruptedException {
+        long giveUp = System.nanoTime() + 10000000000L;
+        while (true) {
+            try {
+                Socket socket = new Socket(host, port);
+                socket.setTcpNoDelay(true);
+                return socket;
+            } catch (IOException ex) {
+                if (System.nanoTime() > giveUp) {
+                    throw ex;
+                }
+                Thread.sleep(100);
+            }
+        }
+    }
+
+    // send the policy request and wait for the null terminated policy
+    static void policyExchange(Socket socket) throws IOException {
+        socket.getOutputStream().write(POLICY_REQUEST);
+        InputStream in = socket.getInputStream();
+        StringBuilder policy = new StringBuilder();
+        int b;
+        while ((b = in.read()) > 0) {
+            policy.append((char) b);
+        }
+        if (b < 0 || policy.indexOf("cross-domain-policy") < 0) {
+            throw new IOException("no policy from the bridge: " + policy);
+        }
+    }
+
+    // a command was acked by the simulated board
+    // only commands sent while measuring are in flight, so acks for the
+    // warm up find nothing sent before the board got them
+    synchronized void acked(String name, long started, long now) {
+        Device device = devices.get(name);
+        Long sent = null;
+        while (!device.inFlight.isEmpty()
+                && device.inFlight.peekFirst() < started) {
+            if (sent != null) {
+                device.merged++;
+            }
+            sent = device.inFlight.pollFirst();
+            if (name.equals("piezo")) {
+                // every tone is played, in order
+                break;
+            }
+            // otherwise the newest command that was out when the board
+            // got this one is the one acked - those before it were merged
+        }
+        if (sent == null) {
+            return;
+        }
+        device.acked++;
+        device.latency.record(now - sent);
+    }
+
+    // a line from the bridge - only updates are expected
+    synchronized void lineReceived(String line, long now) {
+        if (!measuring || line.isEmpty()) {
+            return;
+        }
+        JSONObject message = new JSONObject(line);
+        if (!"update".equals(message.optString("method"))) {
+            return;
+        }
+        pollsAnswered++;
+        pollTime.record(now - lastPollSent);
+        JSONArray params = message.getJSONArray("params");
+        for (int i = 0; i < params.length(); i++) {
+            String name = params.getJSONArray(i).getString(0);
+            for (int r = 0; r < MessageTranslator.NUM_SENSORS; r++) {
+                if (MessageTranslator.REPORTER_NAMES[r].equals(name)) {
+                    reporterUpdated(r, now);
+                }
+            }
+        }
+    }
+
+    void reporterUpdated(int reporter, long now) {
+        updates[reporter]++;
+        if (lastUpdate[reporter] != 0) {
+            long gap = now - lastUpdate[reporter];
+            gaps[reporter].record(gap);
+            if (gap > lateNanos) {
+                lateUpdates[reporter]++;
+            }
+        }
+        lastUpdate[reporter] = now;
+    }
+
+    // read the replies until the socket closes
+    void readReplies(Socket socket) {
+        try {
+            InputStream in = socket.getInputStream();
+            byte[] buf = new byte[4096];
+            StringBuilder line = new StringBuilder();
+            int n;
+            while ((n = in.read(buf)) > 0) {
+                long now = System.nanoTime();
+                for (int i = 0; i < n; i++) {
+                    if (buf[i] == '\n') {
+                        lineReceived(line.toString(), now);
+                        line.setLength(0);
+                    } else {
+                        line.append((char) buf[i]);
+                    }
+                }
+            }
+        } catch (IOException ex) {
+            // closed at the end of the run
+        }
+    }
+
+    // pick commands from the mix and build their lines
+    static class CommandSource {
+
+        ArrayList<String> choices = new ArrayList<>();
+        Random random;
+        Map<String, Integer> counts = new LinkedHashMap<>(); // lines per command
+        int led;
+        int toneMillis;
+
+        CommandSource(Map<String, Integer> mix, long seed, int led, int toneMillis) {
+            for (Map.Entry<String, Integer> entry : mix.entrySet()) {
+                deviceOf(entry.getKey()); // reject unknown names up front
+                for (int i = 0; i < entry.getValue(); i++) {
+                    choices.add(entry.getKey());
+                }
+            }
+            random = new Random(seed);
+            this.led = led;
+            this.toneMillis = toneMillis;
+        }
+
+        String nextMethod() {
+            return choices.get(random.nextInt(choices.size()));
+        }
+
+        // parameters change every time so no command is skipped as
+        // redundant unless the bridge merged it
+        String line(String method) {
+            Integer last = counts.get(method);
+            int count = last == null ? 1 : last + 1;
+            counts.put(method, count);
+            String params;
+            switch (method) {
+                case "LEDSelect":
+                    // off every other time - once the servo has been used
+                    // the leds are only written on or off
+                    params = led + "," + (count % 2) * (1 + count % 254);
+                    break;
+                case "LEDDigitalSelect":
+                case "relayState":
+                    params = (method.equals("relayState") ? "" : led + ",")
+                            + (count % 2);
+                    break;
+                case "servoDegrees":
+                    params = "" + (count * 7) % 181;
+                    break;
+                default:
+                    params = (200 + count % 800) + "," + toneMillis;
+                    break;
+            }
+            return "{\"method\":\"" + method + "\",\"params\":[" + params + "]}\n";
+        }
+    }
+
+    // send polls and commands at their rates until the run ends
+    void drive(Socket socket) throws IOException {
+        OutputStream out = socket.getOutputStream();
+        CommandSource source = new CommandSource(mix, seed, led, toneMillis);
+        long start = System.nanoTime();
+        long measureFrom = start + warmup * 1000000000L;
+        long end = measureFrom + seconds * 1000000000L;
+        long pollPeriod = 1000000000L / Math.max(1, pollRate);
+        long commandPeriod = commandRate > 0 ? 1000000000L / commandRate : Long.MAX_VALUE;
+        long nextPoll = start;
+        long nextCommand = commandRate > 0 ? start : Long.MAX_VALUE;
+        while (true) {
+            long now = System.nanoTime();
+            if (now >= end) {
+                break;
+            }
+            if (!measuring && now >= measureFrom) {
+                synchronized (this) {
+                    measuring = true;
+                }
+            }
+            if (pollRate > 0 && now >= nextPoll) {
+                synchronized (this) {
+                    if (measuring) {
+                        pollsSent++;
+                    }
+                    lastPollSent = System.nanoTime();
+                }
+                out.write(POLL);
+                nextPoll += pollPeriod;
+            }
+            if (now >= nextCommand) {
+                String method = source.nextMethod();
+                byte[] line = source.line(method).getBytes(StandardCharsets.US_ASCII);
+                synchronized (this) {
+                    if (measuring) {
+                        Device device = devices.get(deviceOf(method));
+                        device.sent++;
+                        device.inFlight.addLast(System.nanoTime());
+                    }
+                }
+                out.write(line);
+                nextCommand += commandPeriod;
+            }
+            long wake = Math.min(pollRate > 0 ? nextPoll : end, Math.min(nextCommand, end));
+            LockSupport.parkNanos(wake - System.nanoTime());
+        }
+        synchronized (this) {
+            measuring = false;
+        }
+    }
+
+    synchronized void report() {
+        System.out.println("Load: " + pollRate + " polls/s, " + commandRate
+                + " commands/s " + mix + " for " + seconds + " s");
+        System.out.println("polls sent=" + pollsSent + " answered=" + pollsAnswered
+                + " empty=" + (pollsSent - pollsAnswered));
+        System.out.println(pollTime);
+        System.out.println("reporter updates (gap between updates, late > "
+                + lateNanos / 1000000 + " ms):");
+        for (int r = 0; r < MessageTranslator.NUM_SENSORS; r++) {
+            System.out.println("  " + gaps[r] + " updates=" + updates[r]
+                    + " late=" + lateUpdates[r]);
+        }
+        System.out.println("command latency, line sent to board ack:");
+        for (Device device : devices.values()) {
+            if (device.sent == 0) {
+                continue;
+            }
+            String acks = board == null ? " (needs board=sim)" : " " + device.latency;
+            System.out.println("  " + device.name + ": sent=" + device.sent
+                    + " acked=" + device.acked + " merged=" + device.merged
+                    + " unacked=" + device.inFlight.size() + acks);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        LoadGenerator generator = new LoadGenerator(args);
+        if (generator.board != null) {
+            generator.startBridge();
+        }
+        final Socket socket = generator.connect();
+        policyExchange(socket);
+        final LoadGenerator reader = generator;
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                reader.readReplies(socket);
+            }
+        }, "LoadGenerator reader");
+        thread.setDaemon(true);
+        thread.start();
+        generator.drive(socket);
+        // give the last commands time to be acked
+        Thread.sleep(generator.board != null ? 1500 : 200);
+        generator.report();
+        socket.close();
+        System.exit(0);
+    }
+}
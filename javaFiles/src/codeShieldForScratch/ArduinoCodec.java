@@ -0,0 +1,95 @@
+/*
+ Scratch 2.0 Hardware Extension for the CodeShield Arduino Interface.
+
+ Written by Alan Yorinks
+ Copyright (c) 2013 Alan Yorinks All right reserved.
+
+ This program is free software; you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public
+ License as published by the Free Software Foundation; either
+ version 2.1 of the License, or (at your option) any later version.
+
+ This library is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ Lesser General Public License for more details.
+
+ You should have received a copy of the GNU Lesser General Public
+ License along with this library; if not, write to the Free Software
+ Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package codeShieldForScratch;
+
+/**
+ * Builds the commands sent to the Arduino and reads its replies.
+ *
+ * The sketch understands either the json protocol (JsonCodec) or, once
+ * SerialManager has negotiated it, the compact binary one (BinaryCodec).
+ * The encode methods fill in a buffer owned by the codec that is only
+ * valid until the next call, so each thread needs its own codec.
+ *
+ * @author afy
+ */
+public interface ArduinoCodec {
+
+    // write one pin - type is JsonCodec.TYPE_ANALOG or TYPE_DIGITAL
+    byte[] encodeWrite(int pin, int type, int value);
+
+    // set a pin to input or output
+    byte[] encodeMode(int pin, boolean output);
+
+    // set the three rgb leds in one command - the sketch must support it
+    byte[] encodeRgb(int type, int red, int green, int blue);
+
+    // play a tone on the piezo
+    byte[] encodePiezo(int freq, int duration);
+
+    // move the servo
+    byte[] encodeServo(int degrees);
+
+    // read the reporters selected by the mask bits
+    byte[] encodeRead(int mask);
+
+    // set up all the pins of a profile in one command - the sketch must
+    // support it
+    byte[] encodeConfig(PinProfile profile);
+
+    // read the reply to encodeConfig()
+    PinProfile.Result parseConfigured(byte[] source, int offset, int length);
+
+    // check for the reply the sketch sends when a command succeeded
+    boolean isAck(byte[] source, int offset, int length);
+
+    /**
+     * Read the reporter values out of a reply to encodeRead()
+     *
+     * @param source buffer holding the reply
+     * @param offset start of the reply
+     * @param length length of the reply
+     * @param values receives the readings, indexed like REPORTER_NAMES
+     * @return mask of the reporters that were read
+     */
+    int parseReadings(byte[] source, int offset, int length, int[] values);
+
+    // ask the sketch to push the reporters in the mask every interval
+    // msec - a mask of 0 stops it. The sketch must support it.
+    byte[] encodeSubscribe(int mask, int interval);
+
+    // check for a sample the sketch pushed rather than a reply
+    boolean isSample(byte[] source, int offset, int length);
+
+    /**
+     * Read the reporter values out of a pushed sample. The sketch's time
+     * stamp is available from getSampleTime() afterwards.
+     *
+     * @param source buffer holding the sample
+     * @param offset start of the sample
+     * @param length length of the sample
+     * @param values receives the readings, indexed like REPORTER_NAMES
+     * @return mask of the reporters in the sample
+     */
+    int parseSample(byte[] source, int offset, int length, int[] values);
+
+    // millis() on the board when the last parsed sample was taken
+    int getSampleTime();
+}
@@ -0,0 +1,249 @@
+/*
+ Scratch 2.0 Hardware Extension for the CodeShield Arduino Interface.
+
+ Written by Alan Yorinks
+ Copyright (c) 2013 Alan Yorinks All right reserved.
+
+ This program is free software; you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public
+ License as published by the Free Software Foundation; either
+ version 2.1 of the License, or (at your option) any later version.
+
+ This library is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ Lesser General Public License for more details.
+
+ You should have received a copy of the GNU Lesser General Public
+ License along with this library; if not, write to the Free Software
+ Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package codeShieldForScratch;
+
+import org.json.JSONException;
+
+/**
+ * Codec for the compact binary protocol.
+ *
+ * Every command is a sync byte, an op code and a fixed number of argument
+ * bytes that depends on the op:
+ *
+ * <pre>
+ *   A5 01 pin mode            pin mode, 0 = input, 1 = output
+ *   A5 02 pin value           digital write
+ *   A5 03 pin value           analog write
+ *   A5 04 fH fL tH tL         piezo tone, frequency and msec, big endian
+ *   A5 05 degrees             servo position
+ *   A5 06 mask                read the reporters selected by the mask
+ *   A5 07 type red green blue set the rgb leds, type 0 = digital, 1 = analog
+ *   A5 08 id inputs pullups outputs
+ *                             set up the pins of a profile, all four are
+ *                             two bytes
+ *   A5 09 mask iH iL          push the reporters in the mask every i msec
+ * </pre>
+ *
+ * Every reply is a sync byte, a payload length and the payload. A
+ * successful command is answered with an empty payload (A5 00). A read is
+ * answered with the mask followed by the selected values in reporter
+ * order - two bytes each, except the encoder which takes four. A config
+ * is answered with the profile id, the mask of pins that failed (two
+ * bytes each) and 1 if the profile was already set. A sample pushed by
+ * the sketch has the mask with SAMPLE_FLAG added, the four byte millis()
+ * time stamp and then the values like a read. All values are big endian.
+ *
+ * @author afy
+ */
+public class BinaryCodec implements ArduinoCodec {
+
+    public static final int SYNC = 0xA5;
+    public static final int OP_MODE = 1;
+    public static final int OP_DIGITAL = 2;
+    public static final int OP_ANALOG = 3;
+    public static final int OP_PIEZO = 4;
+    public static final int OP_SERVO = 5;
+    public static final int OP_READ = 6;
+    public static final int OP_RGB = 7;
+    public static final int OP_CONFIG = 8;
+    public static final int OP_SUBSCRIBE = 9;
+    public static final int SAMPLE_FLAG = 0x80; // marks a pushed sample
+    public static final int ENCODER_INDEX = 6; // the only 4 byte reading
+    // one reusable buffer per command length
+    byte[] cmd1 = {(byte) SYNC, 0, 0};
+    byte[] cmd2 = {(byte) SYNC, 0, 0, 0};
+    byte[] cmd3 = {(byte) SYNC, 0, 0, 0, 0};
+    byte[] cmd4 = {(byte) SYNC, 0, 0, 0, 0, 0};
+    byte[] cmd8 = {(byte) SYNC, 0, 0, 0, 0, 0, 0, 0, 0, 0};
+    int sampleTime = 0;        // time stamp of the last parsed sample
+
+    @Override
+    public byte[] encodeWrite(int pin, int type, int value) {
+        if (type == JsonCodec.TYPE_ANALOG) {
+            return command2(OP_ANALOG, pin, clamp(value, 255));
+        }
+        return command2(OP_DIGITAL, pin, clamp(value, 1));
+    }
+
+    @Override
+    public byte[] encodeMode(int pin, boolean output) {
+        return command2(OP_MODE, pin, output ? 1 : 0);
+    }
+
+    @Override
+    public byte[] encodeRgb(int type, int red, int green, int blue) {
+        int max = type == JsonCodec.TYPE_ANALOG ? 255 : 1;
+        cmd4[1] = (byte) OP_RGB;
+        cmd4[2] = (byte) (type == JsonCodec.TYPE_ANALOG ? 1 : 0);
+        cmd4[3] = (byte) clamp(red, max);
+        cmd4[4] = (byte) clamp(green, max);
+        cmd4[5] = (byte) clamp(blue, max);
+        return cmd4;
+    }
+
+    // the sketch does not answer a tone with no duration, so the shortest
+    // one sent is 1 msec
+    @Override
+    public byte[] encodePiezo(int freq, int duration) {
+        freq = clamp(freq, 0xFFFF);
+        duration = clamp(Math.max(1, duration), 0xFFFF);
+        cmd4[1] = (byte) OP_PIEZO;
+        cmd4[2] = (byte) (freq >> 8);
+        cmd4[3] = (byte) freq;
+        cmd4[4] = (byte) (duration >> 8);
+        cmd4[5] = (byte) duration;
+        return cmd4;
+    }
+
+    @Override
+    public byte[] encodeServo(int degrees) {
+        return command1(OP_SERVO, clamp(degrees, 180));
+    }
+
+    @Override
+    public byte[] encodeRead(int mask) {
+        return command1(OP_READ, clamp(mask, 0xFF));
+    }
+
+    @Override
+    public byte[] encodeSubscribe(int mask, int interval) {
+        cmd3[1] = (byte) OP_SUBSCRIBE;
+        cmd3[2] = (byte) clamp(mask, 0x7F);
+        put16(cmd3, 3, clamp(interval, 0xFFFF));
+        return cmd3;
+    }
+
+    @Override
+    public byte[] encodeConfig(PinProfile profile) {
+        cmd8[1] = (byte) OP_CONFIG;
+        put16(cmd8, 2, profile.getId());
+        put16(cmd8, 4, profile.getInputs());
+        put16(cmd8, 6, profile.getPullups());
+        put16(cmd8, 8, profile.getOutputs());
+        return cmd8;
+    }
+
+    @Override
+    public PinProfile.Result parseConfigured(byte[] source, int offset, int length) {
+        if (length != 7 || (source[offset] & 0xFF) != SYNC
+                || source[offset + 1] != 5) {
+            throw new JSONException("bad binary config reply");
+        }
+        PinProfile.Result result = new PinProfile.Result();
+        result.profile = get16(source, offset + 2);
+        result.failed = get16(source, offset + 4);
+        result.skipped = source[offset + 6] != 0;
+        return result;
+    }
+
+    @Override
+    public boolean isAck(byte[] source, int offset, int length) {
+        return length == 2 && (source[offset] & 0xFF) == SYNC
+                && source[offset + 1] == 0;
+    }
+
+    @Override
+    public int parseReadings(byte[] source, int offset, int length, int[] values) {
+        if (length < 3 || (source[offset] & 0xFF) != SYNC
+                || (source[offset + 1] & 0xFF) != length - 2) {
+            throw new JSONException("bad binary read reply");
+        }
+        int mask = source[offset + 2] & 0xFF;
+        parseValues(source, offset + 3, offset + length, mask, values);
+        return mask;
+    }
+
+    // an unknown op is answered with the one byte payload FF, which is
+    // not a sample
+    @Override
+    public boolean isSample(byte[] source, int offset, int length) {
+        return length > 3 && (source[offset] & 0xFF) == SYNC
+                && (source[offset + 2] & SAMPLE_FLAG) != 0;
+    }
+
+    @Override
+    public int parseSample(byte[] source, int offset, int length, int[] values) {
+        if (length < 7 || !isSample(source, offset, length)
+                || (source[offset + 1] & 0xFF) != length - 2) {
+            throw new JSONException("bad binary sample");
+        }
+        int mask = source[offset + 2] & ~SAMPLE_FLAG & 0xFF;
+        sampleTime = (get16(source, offset + 3) << 16) | get16(source, offset + 5);
+        parseValues(source, offset + 7, offset + length, mask, values);
+        return mask;
+    }
+
+    @Override
+    public int getSampleTime() {
+        return sampleTime;
+    }
+
+    // the values of a read or a sample, in reporter order
+    static void parseValues(byte[] source, int pos, int end, int mask, int[] values) {
+        for (int i = 0; i < MessageTranslator.NUM_SENSORS; i++) {
+            if ((mask & (1 << i)) == 0) {
+                continue;
+            }
+            if (i == ENCODER_INDEX) {
+                if (pos + 4 > end) {
+                    throw new JSONException("short binary read reply");
+                }
+                values[i] = ((source[pos] & 0xFF) << 24)
+                        | ((source[pos + 1] & 0xFF) << 16)
+                        | ((source[pos + 2] & 0xFF) << 8)
+                        | (source[pos + 3] & 0xFF);
+                pos += 4;
+            } else {
+                if (pos + 2 > end) {
+                    throw new JSONException("short binary read reply");
+                }
+                values[i] = ((source[pos] & 0xFF) << 8) | (source[pos + 1] & 0xFF);
+                pos += 2;
+            }
+        }
+    }
+
+    byte[] command1(int op, int arg) {
+        cmd1[1] = (byte) op;
+        cmd1[2] = (byte) arg;
+        return cmd1;
+    }
+
+    byte[] command2(int op, int arg1, int arg2) {
+        cmd2[1] = (byte) op;
+        cmd2[2] = (byte) arg1;
+        cmd2[3] = (byte) arg2;
+        return cmd2;
+    }
+
+    static void put16(byte[] dst, int offset, int value) {
+        dst[offset] = (byte) (value >> 8);
+        dst[offset + 1] = (byte) value;
+    }
+
+    static int get16(byte[] src, int offset) {
+        return ((src[offset] & 0xFF) << 8) | (src[offset + 1] & 0xFF);
+    }
+
+    static int clamp(int value, int max) {
+        return Math.max(0, Math.min(max, value));
+    }
+}
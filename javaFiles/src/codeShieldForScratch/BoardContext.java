@@ -0,0 +1,219 @@
+/*
+ Scratch 2.0 Hardware Extension for the CodeShield Arduino Interface.
+
+ Written by Alan Yorinks
+ Copyright (c) 2013 Alan Yorinks All right reserved.
+
+ This program is free software; you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public
+ License as published by the Free Software Foundation; either
+ version 2.1 of the License, or (at your option) any later version.
+
+ This library is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ Lesser General Public License for more details.
+
+ You should have received a copy of the GNU Lesser General Public
+ License along with this library; if not, write to the Free Software
+ Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package codeShieldForScratch;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Everything that belongs to one board: its serial link, pipeline,
+ * sampler, command scheduler and metrics, and the TCP port its Scratch
+ * clients connect to. A bridge can drive any number of these.
+ *
+ * When the board fails - it stops answering, resets or its cable is
+ * pulled - it is opened again on its scheduler thread, so no command runs
+ * meanwhile, every RECONNECT_MS until it is back. Opening resets the board,
+ * so its pins are then set up again.
+ *
+ * @author afy
+ */
+public class BoardContext implements LinkListener {
+
+    public static int RECONNECT_MS = 2000; // wait before opening a failed board again
+    SerialManager serialManager; // arduino comm interface
+    int tcpPort;               // where its Scratch clients connect
+    int sampleInterval;        // msec between sensor samples asked for
+    SerialPipeline pipeline = null;
+    SensorSampler sampler = null;
+    CommandScheduler scheduler = null;
+    String recordFile = null;  // where to record the samples, if anywhere
+    SensorReplay replay = null; // recording played in place of the sensors
+    int skipped = 0;           // reporters the Scratch projects do not use
+    boolean reconnecting = false; // a reconnect is queued - guarded by this
+    Runnable reconnect = new Runnable() {
+        @Override
+        public void run() {
+            reconnect();
+        }
+    };
+
+    // constructor
+    public BoardContext(SerialManager serialManager, int tcpPort,
+            int sampleInterval) {
+        this.serialManager = serialManager;
+        this.tcpPort = tcpPort;
+        this.sampleInterval = sampleInterval;
+    }
+
+    // a board on a serial port - "sim" gives the simulated board and
+    // "replay:FILE" plays a recording to Scratch, with the simulated board
+    // taking the commands
+    public static BoardContext create(String comPort, int tcpPort,
+            int sampleInterval) {
+        if (SensorReplay.isReplay(comPort)) {
+            BoardContext board = new BoardContext(
+                    new SimulatedBoard(SimulatedBoard.PREFIX), tcpPort, sampleInterval);
+            board.replay = new SensorReplay(comPort);
+            return board;
+        }
+        SerialManager serialManager = SimulatedBoard.isSimulated(comPort)
+                ? new SimulatedBoard(comPort)
+                : new SerialManager(comPort);
+        return new BoardContext(serialManager, tcpPort, sampleInterval);
+    }
+
+    // never read some reporters - set before opening
+    public void setSkipped(int skipped) {
+        this.skipped = skipped;
+    }
+
+    // record the sensor samples to a file - set before opening
+    public void setRecordFile(String recordFile) {
+        this.recordFile = recordFile;
+    }
+
+    /**
+     * Open the serial port and get the board ready for Scratch
+     *
+     * @return false if the board did not answer properly or its files
+     * could not be opened - nothing is left open then
+     */
+    public boolean open() {
+        // the files first, so a bad one does not leave the port open
+        SensorRecorder recorder = null;
+        try {
+            if (replay != null) {
+                replay.open();
+            }
+            if (recordFile != null) {
+                recorder = new SensorRecorder(recordFile);
+            }
+        } catch (IOException ex) {
+            Logger.getLogger(BoardContext.class.getName()).log(Level.SEVERE,
+                    serialManager.comPort, ex);
+            return false;
+        }
+
+        if (!serialManager.open()) {
+            serialManager.closePort();
+            if (recorder != null) {
+                recorder.close();
+            }
+            return false;
+        }
+
+        // from here on all commands go through the pipeline so several
+        // can be on the wire at once
+        // the window and the sample interval follow what was measured
+        // when the link was calibrated
+        LinkProfile link = serialManager.getLinkProfile();
+        pipeline = new SerialPipeline(serialManager, link.suggestedWindow());
+
+        // the sampler keeps a snapshot of the reporters up to date so
+        // Scratch polls never wait for the serial link
+        int interval = Math.max(sampleInterval, link.minimumSampleInterval());
+        if (interval != sampleInterval) {
+            System.out.println(serialManager.comPort + ": sample interval raised to "
+                    + interval + " ms to suit the serial link");
+        }
+        sampler = new SensorSampler(pipeline, interval);
+        sampler.setSkipped(skipped);
+        if (replay != null) {
+            sampler.setReplay(replay);
+        }
+        if (recorder != null) {
+            sampler.setRecorder(recorder);
+        }
+
+        // commands from all Scratch clients are run one at a time here
+        scheduler = new CommandScheduler(pipeline);
+        pipeline.setLinkListener(this);
+
+        // close the port when the bridge is stopped
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                serialManager.closeSerial();
+            }
+        }, "close " + serialManager.comPort));
+        return true;
+    }
+
+    // the board failed - get it going again on its scheduler thread
+    @Override
+    public void linkFailed(String reason) {
+        synchronized (this) {
+            if (reconnecting) {
+                return;
+            }
+            reconnecting = true;
+        }
+        scheduler.execute(reconnect);
+    }
+
+    // open the board again - runs on the scheduler thread
+    void reconnect() {
+        System.out.println(getComPort() + ": opening the board again");
+        if (!serialManager.reopen()) {
+            System.out.println(getComPort() + ": board did not come back - trying again in "
+                    + RECONNECT_MS + " ms");
+            SharedExecutors.samplers().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    scheduler.execute(reconnect);
+                }
+            }, RECONNECT_MS, TimeUnit.MILLISECONDS);
+            return;
+        }
+        // a failure from here on needs a reconnect of its own
+        synchronized (this) {
+            pipeline.resume();
+            reconnecting = false;
+        }
+        scheduler.boardReset();
+    }
+
+    public String getComPort() {
+        return serialManager.comPort;
+    }
+
+    public int getTcpPort() {
+        return tcpPort;
+    }
+
+    public SerialManager getSerialManager() {
+        return serialManager;
+    }
+
+    public SensorSampler getSampler() {
+        return sampler;
+    }
+
+    public CommandScheduler getScheduler() {
+        return scheduler;
+    }
+
+    public BridgeMetrics getMetrics() {
+        return serialManager.getMetrics();
+    }
+}
@@ -0,0 +1,328 @@
+/*
+ Scratch 2.0 Hardware Extension for the CodeShield Arduino Interface.
+
+ Written by Alan Yorinks
+ Copyright (c) 2013 Alan Yorinks All right reserved.
+
+ This program is free software; you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public
+ License as published by the Free Software Foundation; either
+ version 2.1 of the License, or (at your option) any later version.
+
+ This library is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ Lesser General Public License for more details.
+
+ You should have received a copy of the GNU Lesser General Public
+ License along with this library; if not, write to the Free Software
+ Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package codeShieldForScratch;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Counters and histograms for one board: serial round trips by command
+ * type, polls received and answered, how old the readings are that polls
+ * are answered from, serial bytes each way and reply timeouts.
+ *
+ * Recording only bumps atomic counters, so it can be left on. Rates and
+ * queue depths are worked out when somebody looks - over JMX or the
+ * MetricsEndpoint.
+ *
+ * @author afy
+ */
+public class BridgeMetrics implements BridgeMetricsMBean {
+
+    static final long RATE_WINDOW = 5000000000L; // nsec rates are taken over
+    String board;
+    long started = System.nanoTime();
+    ConcurrentHashMap<String, LatencyProfile> roundTrips = new ConcurrentHashMap<>();
+    LatencyProfile reporterAge = new LatencyProfile("reporter age at poll");
+    AtomicLong pollsReceived = new AtomicLong();
+    AtomicLong pollsAnswered = new AtomicLong();
+    AtomicLong bytesToBoard = new AtomicLong();
+    AtomicLong bytesFromBoard = new AtomicLong();
+    AtomicLong replyTimeouts = new AtomicLong();
+    AtomicLong samplesPushed = new AtomicLong();
+    AtomicLong samplesLate = new AtomicLong();
+    AtomicLong writesToScratch = new AtomicLong();
+    AtomicLong readingsHeld = new AtomicLong();
+    // where the queue depths come from - set once the board is running
+    volatile SerialPipeline pipeline = null;
+    volatile CommandScheduler scheduler = null;
+    // rate window - guarded by this
+    long windowStart = started;
+    long windowTo = 0;
+    long windowFrom = 0;
+    long rateTo = 0;
+    long rateFrom = 0;
+
+    // constructor
+    public BridgeMetrics(String board) {
+        this.board = board;
+    }
+
+    // a reply arrived for a command of this type
+    public void roundTrip(String command, long nanos) {
+        LatencyProfile profile = roundTrips.get(command);
+        if (profile == null) {
+            LatencyProfile created = new LatencyProfile(command);
+            profile = roundTrips.putIfAbsent(command, created);
+            if (profile == null) {
+                profile = created;
+            }
+        }
+        profile.record(nanos);
+    }
+
+    /**
+     * A poll came in
+     *
+     * @param answered true if it got an update
+     * @param readingAge nsec since the readings were taken, -1 before the
+     * first sample
+     */
+    public void poll(boolean answered, long readingAge) {
+        pollsReceived.incrementAndGet();
+        if (answered) {
+            pollsAnswered.incrementAndGet();
+        }
+        if (readingAge >= 0) {
+            reporterAge.record(readingAge);
+        }
+    }
+
+    public void sent(int bytes) {
+        bytesToBoard.addAndGet(bytes);
+    }
+
+    public void received(int bytes) {
+        bytesFromBoard.addAndGet(bytes);
+    }
+
+    // a sample the sketch pushed - late if it came after a gap
+    public void samplePushed(boolean late) {
+        samplesPushed.incrementAndGet();
+        if (late) {
+            samplesLate.incrementAndGet();
+        }
+    }
+
+    // everything waiting for a scratch client has been written
+    public void wroteToScratch() {
+        writesToScratch.incrementAndGet();
+    }
+
+    // a reading taken while an actuator had the pin - the last valid
+    // value was kept instead
+    public void readingHeld() {
+        readingsHeld.incrementAndGet();
+    }
+
+    // the board did not answer a command within REPLY_TIMEOUT
+    public void replyTimedOut() {
+        replyTimeouts.incrementAndGet();
+    }
+
+    public void watch(SerialPipeline pipeline) {
+        this.pipeline = pipeline;
+    }
+
+    public void watch(CommandScheduler scheduler) {
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Make the metrics visible over JMX
+     */
+    public void register() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+                    new ObjectName("codeShieldForScratch:type=BridgeMetrics,board="
+                            + ObjectName.quote(board)));
+        } catch (JMException ex) {
+            System.out.println("Metrics not registered with JMX: " + ex);
+        }
+    }
+
+    @Override
+    public String getBoard() {
+        return board;
+    }
+
+    @Override
+    public long getUptimeSeconds() {
+        return (System.nanoTime() - started) / 1000000000L;
+    }
+
+    @Override
+    public long getPollsReceived() {
+        return pollsReceived.get();
+    }
+
+    @Override
+    public long getPollsAnswered() {
+        return pollsAnswered.get();
+    }
+
+    @Override
+    public long getWritesToScratch() {
+        return writesToScratch.get();
+    }
+
+    @Override
+    public long getReadingsHeld() {
+        return readingsHeld.get();
+    }
+
+    @Override
+    public long getBytesToBoard() {
+        return bytesToBoard.get();
+    }
+
+    @Override
+    public long getBytesFromBoard() {
+        return bytesFromBoard.get();
+    }
+
+    @Override
+    public long getBytesToBoardPerSecond() {
+        updateRates();
+        synchronized (this) {
+            return rateTo;
+        }
+    }
+
+    @Override
+    public long getBytesFromBoardPerSecond() {
+        updateRates();
+        synchronized (this) {
+            return rateFrom;
+        }
+    }
+
+    // start a new rate window once the current one is long enough
+    synchronized void updateRates() {
+        long now = System.nanoTime();
+        long elapsed = now - windowStart;
+        if (elapsed < RATE_WINDOW && windowStart != started) {
+            return;
+        }
+        long to = bytesToBoard.get();
+        long from = bytesFromBoard.get();
+        if (elapsed > 0) {
+            rateTo = (to - windowTo) * 1000000000L / elapsed;
+            rateFrom = (from - windowFrom) * 1000000000L / elapsed;
+        }
+        if (elapsed >= RATE_WINDOW) {
+            windowStart = now;
+            windowTo = to;
+            windowFrom = from;
+        }
+    }
+
+    @Override
+    public long getReplyTimeouts() {
+        return replyTimeouts.get();
+    }
+
+    @Override
+    public boolean isBoardFailed() {
+        SerialPipeline watched = pipeline;
+        return watched != null && watched.isFailed();
+    }
+
+    @Override
+    public long getSamplesPushed() {
+        return samplesPushed.get();
+    }
+
+    @Override
+    public long getSamplesLate() {
+        return samplesLate.get();
+    }
+
+    @Override
+    public int getCommandsInFlight() {
+        SerialPipeline watched = pipeline;
+        return watched == null ? 0 : watched.getInFlight();
+    }
+
+    @Override
+    public int getCommandsQueued() {
+        CommandScheduler watched = scheduler;
+        return watched == null ? 0 : watched.getPending();
+    }
+
+    @Override
+    public long getReporterAgeP99Micros() {
+        return reporterAge.getPercentileMicros(99);
+    }
+
+    @Override
+    public long getReporterAgeMaxMicros() {
+        return reporterAge.getMaxMicros();
+    }
+
+    @Override
+    public String[] getRoundTrips() {
+        ArrayList<String> lines = new ArrayList<>();
+        for (Map.Entry<String, LatencyProfile> entry : roundTrips.entrySet()) {
+            lines.add(entry.getValue().toString());
+        }
+        java.util.Collections.sort(lines);
+        return lines.toArray(new String[lines.size()]);
+    }
+
+    @Override
+    public void reset() {
+        for (LatencyProfile profile : roundTrips.values()) {
+            profile.reset();
+        }
+        reporterAge.reset();
+        pollsReceived.set(0);
+        pollsAnswered.set(0);
+        writesToScratch.set(0);
+        readingsHeld.set(0);
+        replyTimeouts.set(0);
+        samplesPushed.set(0);
+        samplesLate.set(0);
+    }
+
+    // the plain text form - one value per line
+    @Override
+    public String toString() {
+        StringBuilder text = new StringBuilder();
+        text.append("board ").append(board).append('\n');
+        text.append("uptime_seconds ").append(getUptimeSeconds()).append('\n');
+        text.append("polls_received ").append(getPollsReceived()).append('\n');
+        text.append("polls_answered ").append(getPollsAnswered()).append('\n');
+        text.append("writes_to_scratch ").append(getWritesToScratch()).append('\n');
+        text.append(reporterAge).append('\n');
+        text.append("bytes_to_board ").append(getBytesToBoard()).append('\n');
+        text.append("bytes_from_board ").append(getBytesFromBoard()).append('\n');
+        text.append("bytes_to_board_per_second ")
+                .append(getBytesToBoardPerSecond()).append('\n');
+        text.append("bytes_from_board_per_second ")
+                .append(getBytesFromBoardPerSecond()).append('\n');
+        text.append("reply_timeouts ").append(getReplyTimeouts()).append('\n');
+        text.append("board_failed ").append(isBoardFailed() ? 1 : 0).append('\n');
+        text.append("samples_pushed ").append(getSamplesPushed()).append('\n');
+        text.append("samples_late ").append(getSamplesLate()).append('\n');
+        text.append("readings_held ").append(getReadingsHeld()).append('\n');
+        text.append("commands_in_flight ").append(getCommandsInFlight()).append('\n');
+        text.append("commands_queued ").append(getCommandsQueued()).append('\n');
+        for (String line : getRoundTrips()) {
+            text.append("round trip ").append(line).append('\n');
+        }
+        return text.toString();
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ Scratch 2.0 Hardware Extension for the CodeShield Arduino Interface.
+
+ Written by Alan Yorinks
+ Copyright (c) 2013 Alan Yorinks All right reserved.
+
+ This program is free software; you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public
+ License as published by the Free Software Foundation; either
+ version 2.1 of the License, or (at your option) any later version.
+
+ This library is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ Lesser General Public License for more details.
+
+ You should have received a copy of the GNU Lesser General Public
+ License along with this library; if not, write to the Free Software
+ Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package codeShieldForScratch;
+
+/**
+ * What the bridge shows of one board over JMX
+ *
+ * @author afy
+ */
+public interface BridgeMetricsMBean {
+
+    String getBoard();
+
+    long getUptimeSeconds();
+
+    long getPollsReceived();
+
+    // polls answered with an update - the rest had nothing new
+    long getPollsAnswered();
+
+    // socket writes to the scratch clients - at most one per read
+    long getWritesToScratch();
+
+    long getBytesToBoard();
+
+    long getBytesFromBoard();
+
+    // bytes per second over the last few seconds
+    long getBytesToBoardPerSecond();
+
+    long getBytesFromBoardPerSecond();
+
+    long getReplyTimeouts();
+
+    // the board left a command unanswered and has not replied since
+    boolean isBoardFailed();
+
+    // samples the sketch pushed, and those that came after a gap
+    long getSamplesPushed();
+
+    long getSamplesLate();
+
+    // readings dropped because an actuator had the shared pin
+    long getReadingsHeld();
+
+    int getCommandsInFlight();
+
+    int getCommandsQueued();
+
+    // age of the readings polls are answered from, in microseconds
+    long getReporterAgeP99Micros();
+
+    long getReporterAgeMaxMicros();
+
+    // one line per command type: count, mean and percentiles
+    String[] getRoundTrips();
+
+    // forget the histograms and counters collected so far
+    void reset();
+}
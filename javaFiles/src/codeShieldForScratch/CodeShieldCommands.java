@@ -0,0 +1,152 @@
+/*
+ Scratch 2.0 Hardware Extension for the CodeShield Arduino Interface.
+
+ Written by Alan Yorinks
+ Copyright (c) 2013 Alan Yorinks All right reserved.
+
+ This program is free software; you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public
+ License as published by the Free Software Foundation; either
+ version 2.1 of the License, or (at your option) any later version.
+
+ This library is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ Lesser General Public License for more details.
+
+ You should have received a copy of the GNU Lesser General Public
+ License along with this library; if not, write to the Free Software
+ Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package codeShieldForScratch;
+
+/**
+ * The commands behind the CodeShield blocks in codeShield.json. They are
+ * defined in the CommandRegistry under the block selectors.
+ *
+ * @author afy
+ */
+public class CodeShieldCommands {
+
+    // devices for the write behind queue - a newer command for a device
+    // replaces one that has not been sent yet
+    static final String WHITE_LED_DEVICE = "whiteLed";
+    static final String RED_DEVICE = "red";
+    static final String GREEN_DEVICE = "green";
+    static final String BLUE_DEVICE = "blue";
+    static final String RGB_DEVICE = "rgb";  // mixed colors drive all three
+    static final String SERVO_DEVICE = "servo";
+    static final String RELAY_DEVICE = "relay";
+    static final Object[] RGB_PARTS = {RED_DEVICE, GREEN_DEVICE, BLUE_DEVICE};
+
+    // add the commands to the registry
+    static void define() {
+        CommandRegistry.define("LEDSelect", new Led(MessageTranslator.LEDPWM));
+        CommandRegistry.define("LEDDigitalSelect", new Led(MessageTranslator.LEDDIGITAL));
+
+        // every tone is played - nothing replaces it
+        CommandRegistry.define("piezoTone", new ScratchCommand(2, null) {
+            @Override
+            public void run(MessageTranslator translator, int[] params) {
+                // the sketch answers once the tone is over, so a tone must
+                // end well before its reply would be given up on
+                int duration = Math.min(params[1], SerialManager.REPLY_TIMEOUT / 2);
+                // pin 3 is the piezo's, not the hall effect's, while it plays
+                translator.arbiter.claim(MessageTranslator.PIEZO, duration);
+                PendingReply reply = translator.pipeline.submit("piezo",
+                        translator.piezoTone(params[0], duration));
+                // the sketch leaves the pin low when the tone ends
+                translator.shadow.wrote(MessageTranslator.PIEZO,
+                        MessageTranslator.LEDDIGITAL, 0);
+                translator.checkReply(reply);
+            }
+        });
+
+        CommandRegistry.define("servoDegrees", new ScratchCommand(1, SERVO_DEVICE) {
+            @Override
+            public void run(MessageTranslator translator, int[] params) {
+                // servo library has a bug in controlling pwm for
+                // pins 9 & 10, so we have a workaround for the LEDS
+                translator.scheduler.onlyDigitalLedWrite = true;
+                // pin 5 drives the servo, not the photocell, while it moves
+                translator.arbiter.claim(MessageTranslator.SERVO, PinArbiter.SERVO_MS);
+                PendingReply reply = translator.pipeline.submit("servo",
+                        translator.servo(params[0]));
+                translator.shadow.forget(MessageTranslator.SERVO);
+                translator.checkReply(reply);
+            }
+        });
+
+        CommandRegistry.define("relayState", new ScratchCommand(1, RELAY_DEVICE) {
+            @Override
+            public void run(MessageTranslator translator, int[] params) {
+                int relayState = params[0] != 0 ? 1 : 0;
+                // pin 2 is the relay's, not the potentiometer's, while on -
+                // it is taken before the relay turns on and given back
+                // once it is off
+                if (relayState == 1) {
+                    translator.arbiter.hold(MessageTranslator.RELAY);
+                }
+                if (translator.shadow.needsWrite(MessageTranslator.RELAY,
+                        MessageTranslator.LEDDIGITAL, relayState)) {
+                    PendingReply reply = translator.pipeline.submit("relay",
+                            translator.relay(relayState));
+                    translator.shadow.wrote(MessageTranslator.RELAY,
+                            MessageTranslator.LEDDIGITAL, relayState);
+                    translator.checkReply(reply);
+                }
+                if (relayState == 0) {
+                    translator.arbiter.release(MessageTranslator.RELAY);
+                }
+            }
+        });
+    }
+
+    /**
+     * LEDSelect and LEDDigitalSelect - the device is the led picked by the
+     * first parameter
+     */
+    static class Led extends ScratchCommand {
+
+        int type;              // LEDPWM or LEDDIGITAL
+
+        Led(int type) {
+            super(2, null);
+            this.type = type;
+        }
+
+        @Override
+        public Object device(int[] params) {
+            switch (params[0]) {
+                case MessageTranslator.WHITE:
+                    return WHITE_LED_DEVICE;
+                case MessageTranslator.RED:
+                    return RED_DEVICE;
+                case MessageTranslator.GREEN:
+                    return GREEN_DEVICE;
+                case MessageTranslator.BLUE:
+                    return BLUE_DEVICE;
+                case MessageTranslator.ORANGE:
+                case MessageTranslator.YELLOW:
+                case MessageTranslator.INDIGO:
+                case MessageTranslator.VIOLET:
+                    return RGB_DEVICE;
+                default:
+                    // selectLED ignores it, but keep it in order anyway
+                    return new Object();
+            }
+        }
+
+        // a mix rewrites all three rgb leds
+        @Override
+        public Object[] replaces(int[] params) {
+            return device(params) == RGB_DEVICE ? RGB_PARTS : NONE;
+        }
+
+        @Override
+        public void run(MessageTranslator translator, int[] params) {
+            translator.selectLED(params[0], params[1], type);
+            translator.checkLedReplies();
+        }
+    }
+}
@@ -0,0 +1,223 @@
+/*
+ Scratch 2.0 Hardware Extension for the CodeShield Arduino Interface.
+
+ Written by Alan Yorinks
+ Copyright (c) 2013 Alan Yorinks All right reserved.
+
+ This program is free software; you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public
+ License as published by the Free Software Foundation; either
+ version 2.1 of the License, or (at your option) any later version.
+
+ This library is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ Lesser General Public License for more details.
+
+ You should have received a copy of the GNU Lesser General Public
+ License along with this library; if not, write to the Free Software
+ Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package codeShieldForScratch;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Finds the command behind a Scratch method name.
+ *
+ * The registry is built once at startup from the blockSpecs of the
+ * extension file Scratch loads, codeShield.json, so the bridge knows
+ * exactly the blocks Scratch offers. Each command block is checked
+ * against the command defined for its selector: a block without a
+ * command, or with a different number of parameters, is reported and left
+ * out. A new block is added by defining a ScratchCommand for its selector
+ * (see CodeShieldCommands) and adding it to codeShield.json - the
+ * translator does not change.
+ *
+ * Looking a method up is one hash of the name bytes as they sit in the
+ * message and one compare - nothing is allocated.
+ *
+ * @author afy
+ */
+public class CommandRegistry {
+
+    // where codeShield.json is looked for - the first one found is used
+    public static String[] SPEC_FILES = {
+        "codeShield.json", "../scratchFiles/codeShield.json",
+        "../../scratchFiles/codeShield.json"
+    };
+    // every command known, by selector
+    static final LinkedHashMap<String, ScratchCommand> DEFINED = new LinkedHashMap<>();
+    static CommandRegistry registry = null; // built on first use
+
+    static {
+        CodeShieldCommands.define();
+    }
+    byte[][] names;            // hash table of selectors, open addressing
+    ScratchCommand[] commands; // the command of each selector
+    int size = 0;
+
+    /**
+     * Define the command for a block selector. Must be done before the
+     * registry is first used.
+     *
+     * @param selector the method name Scratch sends
+     * @param command
+     */
+    public static synchronized void define(String selector, ScratchCommand command) {
+        DEFINED.put(selector, command);
+    }
+
+    // the registry for codeShield.json, or for all defined commands if it
+    // cannot be found
+    public static synchronized CommandRegistry getDefault() {
+        if (registry == null) {
+            registry = load();
+        }
+        return registry;
+    }
+
+    static CommandRegistry load() {
+        for (String fileName : SPEC_FILES) {
+            File file = new File(fileName);
+            if (!file.isFile()) {
+                continue;
+            }
+            try {
+                String json = new String(Files.readAllBytes(file.toPath()),
+                        StandardCharsets.UTF_8);
+                CommandRegistry loaded = fromSpecs(json);
+                System.out.println(loaded.size + " command blocks from " + fileName);
+                return loaded;
+            } catch (IOException | JSONException ex) {
+                System.out.println("problem reading " + fileName + ": " + ex);
+            }
+        }
+        System.out.println("codeShield.json not found - using the built in blocks");
+        return new CommandRegistry(DEFINED);
+    }
+
+    /**
+     * Build a registry from the text of an extension file
+     *
+     * @param json the extension description with its blockSpecs
+     * @return the registry
+     * @throws JSONException if the file is not an extension description
+     */
+    public static CommandRegistry fromSpecs(String json) throws JSONException {
+        JSONArray specs = new JSONObject(json).getJSONArray("blockSpecs");
+        LinkedHashMap<String, ScratchCommand> blocks = new LinkedHashMap<>();
+        for (int i = 0; i < specs.length(); i++) {
+            JSONArray spec = specs.getJSONArray(i);
+            String type = spec.getString(0).trim();
+            String selector = spec.getString(2);
+            if (type.equals("r") || type.equals("R") || type.equals("b")) {
+                // reporters are answered from the sampler
+                continue;
+            }
+            ScratchCommand command;
+            synchronized (CommandRegistry.class) {
+                command = DEFINED.get(selector);
+            }
+            int params = countParams(spec.getString(1));
+            if (command == null) {
+                System.out.println("No command for block " + selector + " - ignored");
+            } else if (command.getParamCount() != params) {
+                System.out.println("Block " + selector + " has " + params
+                        + " parameters, its command takes "
+                        + command.getParamCount() + " - ignored");
+            } else {
+                blocks.put(selector, command);
+            }
+        }
+        return new CommandRegistry(blocks);
+    }
+
+    // the %n, %s, %m.menu ... parameters in a block's text
+    static int countParams(String text) {
+        int count = 0;
+        for (int i = 0; i < text.length() - 1; i++) {
+            if (text.charAt(i) == '%' && Character.isLetter(text.charAt(i + 1))) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    // constructor
+    public CommandRegistry(Map<String, ScratchCommand> blocks) {
+        int capacity = 8;
+        while (capacity < blocks.size() * 2) {
+            capacity *= 2;
+        }
+        names = new byte[capacity][];
+        commands = new ScratchCommand[capacity];
+        for (Map.Entry<String, ScratchCommand> block : blocks.entrySet()) {
+            byte[] name = block.getKey().getBytes(StandardCharsets.UTF_8);
+            int slot = hash(name, 0, name.length) & (capacity - 1);
+            while (names[slot] != null) {
+                slot = (slot + 1) & (capacity - 1);
+            }
+            names[slot] = name;
+            commands[slot] = block.getValue();
+            size++;
+        }
+    }
+
+    static int hash(byte[] buf, int offset, int length) {
+        int h = length;
+        for (int i = offset; i < offset + length; i++) {
+            h = 31 * h + buf[i];
+        }
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Find the command for a method name
+     *
+     * @param buf buffer holding the name
+     * @param offset start of the name
+     * @param length length of the name
+     * @return the command, or null if there is no such block
+     */
+    public ScratchCommand find(byte[] buf, int offset, int length) {
+        int slot = hash(buf, offset, length) & (names.length - 1);
+        while (true) {
+            byte[] name = names[slot];
+            if (name == null) {
+                return null;
+            }
+            if (name.length == length && regionEquals(buf, offset, name)) {
+                return commands[slot];
+            }
+            slot = (slot + 1) & (names.length - 1);
+        }
+    }
+
+    // the same from a string - allocates
+    public ScratchCommand find(String selector) {
+        byte[] name = selector.getBytes(StandardCharsets.UTF_8);
+        return find(name, 0, name.length);
+    }
+
+    static boolean regionEquals(byte[] buf, int offset, byte[] name) {
+        for (int i = 0; i < name.length; i++) {
+            if (buf[offset + i] != name[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public int size() {
+        return size;
+    }
+}
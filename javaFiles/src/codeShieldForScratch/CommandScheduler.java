@@ -0,0 +1,269 @@
+/*
+ Scratch 2.0 Hardware Extension for the CodeShield Arduino Interface.
+
+ Written by Alan Yorinks
+ Copyright (c) 2013 Alan Yorinks All right reserved.
+
+ This program is free software; you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public
+ License as published by the Free Software Foundation; either
+ version 2.1 of the License, or (at your option) any later version.
+
+ This library is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ Lesser General Public License for more details.
+
+ You should have received a copy of the GNU Lesser General Public
+ License along with this library; if not, write to the Free Software
+ Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package codeShieldForScratch;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the Scratch commands of every client connected to one board, one at
+ * a time and in arrival order, off the socket server thread so that it
+ * never waits for the serial link. The threads come from a pool shared by
+ * all boards, but only one of them works for a board at any time.
+ *
+ * Actuator commands are written behind: they wait in a queue keyed by the
+ * device they drive, and a newer command for a device replaces the one
+ * still waiting, so a script that drives an LED or the servo in a tight
+ * loop only ever has its latest value sent. The newer command takes the
+ * place in the queue of the one it replaces, so a device that is driven
+ * all the time waits no longer than any other.
+ *
+ * It also holds the state that belongs to the board rather than to any one
+ * Scratch client.
+ *
+ * @author afy
+ */
+public class CommandScheduler {
+
+    public static int INIT_RETRY_MS = 1000; // wait before setting up a failed board again
+    SerialPipeline pipeline;   // arduino comm interface
+    Executor executor;         // shared by all boards
+    ArrayDeque<Runnable> tasks = new ArrayDeque<>(); // guarded by itself
+    boolean running = false;   // a pool thread is working through tasks
+    Runnable runTasks = new Runnable() {
+        @Override
+        public void run() {
+            runTasks();
+        }
+    };
+    // servo library has a bug in controlling pwm for pins 9 & 10 - once the
+    // servo has been used the leds are only written digitally
+    volatile boolean onlyDigitalLedWrite = false;
+    boolean boardInitialized = false; // only used on the scheduler thread
+    boolean initRetryQueued = false;  // only used on the scheduler thread
+    // what sets the pins up, from the first client - scheduler thread only
+    MessageTranslator initTranslator = null;
+    SensorSampler initSampler = null;
+    OutputShadow shadow;       // output pin state - scheduler thread only
+    // actuator commands not sent yet, by device - guarded by itself
+    LinkedHashMap<Object, Runnable> pending = new LinkedHashMap<>();
+    boolean draining = false;  // a drain task is queued or running
+    long commandsReceived = 0; // guarded by pending
+    long commandsSent = 0;
+    // sends the pending commands one after the other
+    Runnable drain = new Runnable() {
+        @Override
+        public void run() {
+            drainPending();
+        }
+    };
+
+    // constructor
+    public CommandScheduler(SerialPipeline pipeline) {
+        this.pipeline = pipeline;
+        this.shadow = new OutputShadow(pipeline.getSerialManager());
+        pipeline.getSerialManager().getMetrics().watch(this);
+        executor = SharedExecutors.commands();
+    }
+
+    // queue a task - errors are reported but do not stop the scheduler
+    public void execute(Runnable task) {
+        synchronized (tasks) {
+            tasks.addLast(task);
+            if (!running) {
+                running = true;
+                executor.execute(runTasks);
+            }
+        }
+    }
+
+    // run the queued tasks in order, then give the thread back to the pool
+    void runTasks() {
+        while (true) {
+            Runnable task;
+            synchronized (tasks) {
+                task = tasks.pollFirst();
+                if (task == null) {
+                    running = false;
+                    return;
+                }
+            }
+            try {
+                task.run();
+            } catch (Exception e) {
+                System.err.println("problem running command");
+                e.printStackTrace(System.err);
+            }
+        }
+    }
+
+    /**
+     * Set up the board pins and start the sampler, the first time a client
+     * asks. A board that fails is tried again every INIT_RETRY_MS until it
+     * comes up, so its clients get readings as soon as it does.
+     *
+     * @param translator sends the set up commands
+     * @param sampler started once the pins are set up
+     */
+    public void initBoard(final MessageTranslator translator,
+            final SensorSampler sampler) {
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                if (initTranslator == null) {
+                    initTranslator = translator;
+                    initSampler = sampler;
+                }
+                tryInit();
+            }
+        });
+    }
+
+    // set up the pins unless that is done or a retry is waiting - only
+    // called on the scheduler thread
+    void tryInit() {
+        if (boardInitialized || initRetryQueued) {
+            return;
+        }
+        if (initTranslator.initArduino()) {
+            boardInitialized = true;
+            // start reading the reporters now that the pins are set up
+            initSampler.start();
+            return;
+        }
+        System.out.println("Arduino Init Failed - trying again in "
+                + INIT_RETRY_MS + " ms");
+        initRetryQueued = true;
+        SharedExecutors.samplers().schedule(new Runnable() {
+            @Override
+            public void run() {
+                execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        initRetryQueued = false;
+                        tryInit();
+                    }
+                });
+            }
+        }, INIT_RETRY_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * The board was reset and is talking again. Its pins are back at their
+     * power up state, so the shadow forgets them and, if a client had them
+     * set up, they are set up again. Only called on the scheduler thread.
+     */
+    public void boardReset() {
+        shadow.invalidate();
+        if (boardInitialized) {
+            boardInitialized = false;
+            tryInit();
+        }
+    }
+
+    /**
+     * Queue an actuator command. A command still waiting for the same device
+     * is dropped in favour of this one.
+     *
+     * @param device what the command drives - a fresh object for commands
+     * that must never be dropped
+     * @param command sends the command and checks the reply
+     * @param replaces other devices whose waiting commands this one makes
+     * pointless
+     */
+    public void submit(Object device, Runnable command, Object... replaces) {
+        synchronized (pending) {
+            commandsReceived++;
+            for (Object other : replaces) {
+                pending.remove(other);
+            }
+            // a device already waiting keeps its place
+            pending.put(device, command);
+            if (!draining) {
+                draining = true;
+                execute(drain);
+            }
+        }
+    }
+
+    // send the waiting commands, oldest first - runs on the scheduler thread
+    void drainPending() {
+        while (true) {
+            Runnable command;
+            synchronized (pending) {
+                Iterator<Map.Entry<Object, Runnable>> first
+                        = pending.entrySet().iterator();
+                if (!first.hasNext()) {
+                    draining = false;
+                    return;
+                }
+                command = first.next().getValue();
+                first.remove();
+                commandsSent++;
+            }
+            try {
+                command.run();
+            } catch (Exception e) {
+                System.err.println("problem running command");
+                e.printStackTrace(System.err);
+            }
+        }
+    }
+
+    // actuator commands waiting to be sent
+    public int getPending() {
+        synchronized (pending) {
+            return pending.size();
+        }
+    }
+
+    public long getCommandsReceived() {
+        synchronized (pending) {
+            return commandsReceived;
+        }
+    }
+
+    public long getCommandsSent() {
+        synchronized (pending) {
+            return commandsSent;
+        }
+    }
+
+    @Override
+    public String toString() {
+        synchronized (pending) {
+            return "Commands received: " + commandsReceived
+                    + " sent: " + commandsSent;
+        }
+    }
+
+    public OutputShadow getShadow() {
+        return shadow;
+    }
+
+    public SerialPipeline getPipeline() {
+        return pipeline;
+    }
+}
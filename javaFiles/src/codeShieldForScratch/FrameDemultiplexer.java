@@ -0,0 +1,74 @@
+/*
+ Scratch 2.0 Hardware Extension for the CodeShield Arduino Interface.
+
+ Written by Alan Yorinks
+ Copyright (c) 2013 Alan Yorinks All right reserved.
+
+ This program is free software; you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public
+ License as published by the Free Software Foundation; either
+ version 2.1 of the License, or (at your option) any later version.
+
+ This library is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ Lesser General Public License for more details.
+
+ You should have received a copy of the GNU Lesser General Public
+ License along with this library; if not, write to the Free Software
+ Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package codeShieldForScratch;
+
+/**
+ * Separates the samples a subscribed sketch pushes on its own from the
+ * replies to commands, so the samples never get matched to a command.
+ *
+ * Only used on the serial event thread.
+ *
+ * @author afy
+ */
+public class FrameDemultiplexer {
+
+    SerialManager serManager;
+    // sample checks for either protocol - they do not depend on parser state
+    JsonCodec jsonCodec = new JsonCodec();
+    BinaryCodec binaryCodec = new BinaryCodec();
+    volatile FrameListener sampleListener = null;
+    volatile long samplesDropped = 0; // samples nobody was listening for
+
+    // constructor
+    public FrameDemultiplexer(SerialManager serManager) {
+        this.serManager = serManager;
+    }
+
+    // where samples go - null drops them
+    public void setSampleListener(FrameListener listener) {
+        this.sampleListener = listener;
+    }
+
+    /**
+     * Hand a frame to the sample listener if it is a sample
+     *
+     * @param frame buffer holding the frame
+     * @param length length of the frame, which starts at 0
+     * @return true if it was a sample, false if it is a reply
+     */
+    public boolean routeSample(byte[] frame, int length) {
+        ArduinoCodec codec = serManager.isBinary() ? binaryCodec : jsonCodec;
+        if (!codec.isSample(frame, 0, length)) {
+            return false;
+        }
+        FrameListener listener = sampleListener;
+        if (listener == null) {
+            samplesDropped++;
+        } else {
+            listener.frameReceived(frame, 0, length);
+        }
+        return true;
+    }
+
+    public long getSamplesDropped() {
+        return samplesDropped;
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ Scratch 2.0 Hardware Extension for the CodeShield Arduino Interface.
+
+ Written by Alan Yorinks
+ Copyright (c) 2013 Alan Yorinks All right reserved.
+
+ This program is free software; you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public
+ License as published by the Free Software Foundation; either
+ version 2.1 of the License, or (at your option) any later version.
+
+ This library is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ Lesser General Public License for more details.
+
+ You should have received a copy of the GNU Lesser General Public
+ License along with this library; if not, write to the Free Software
+ Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package codeShieldForScratch;
+
+/**
+ * A fixed size ring buffer that collects the bytes received from the Arduino
+ * and splits them into newline terminated frames, or into length prefixed
+ * frames when the binary protocol is in use.
+ *
+ * The buffer is only ever touched by the serial event thread, so it is not
+ * synchronized.
+ *
+ * @author afy
+ */
+public class FrameRingBuffer {
+
+    byte[] ring;        // the storage - size is a power of 2
+    int mask;           // ring.length - 1
+    long head = 0;      // next byte to be taken out of the ring
+    long tail = 0;      // next free slot in the ring
+    long scan = 0;      // how far we have already looked for a terminator
+    byte terminator;    // frame terminator
+
+    // constructor
+    public FrameRingBuffer(int size, byte terminator) {
+        // round the size up to a power of 2 so we can mask instead of divide
+        int capacity = 1;
+        while (capacity < size) {
+            capacity <<= 1;
+        }
+        this.ring = new byte[capacity];
+        this.mask = capacity - 1;
+        this.terminator = terminator;
+    }
+
+    /**
+     * Add received bytes to the ring
+     *
+     * @param src bytes received from the serial port
+     * @param offset first byte to use
+     * @param length number of bytes to use
+     * @return false if the ring overflowed and the partial frame was dropped
+     */
+    public boolean put(byte[] src, int offset, int length) {
+        boolean returnValue = true;
+
+        // a frame that does not fit the ring is garbage - throw it away
+        if ((tail - head) + length > ring.length) {
+            clear();
+            returnValue = false;
+            if (length > ring.length) {
+                offset += length - ring.length;
+                length = ring.length;
+            }
+        }
+
+        // copy in at most two pieces - up to the end of the array and
+        // then wrapped around to the front
+        int start = (int) (tail & mask);
+        int firstPart = Math.min(length, ring.length - start);
+        System.arraycopy(src, offset, ring, start, firstPart);
+        if (firstPart < length) {
+            System.arraycopy(src, offset + firstPart, ring, 0, length - firstPart);
+        }
+        tail += length;
+        return returnValue;
+    }
+
+    /**
+     * Take the next complete frame out of the ring
+     *
+     * @param dst where to copy the frame - must be at least as large as the
+     * ring
+     * @return the length of the frame including its terminator, or 0 if no
+     * complete frame is available yet
+     */
+    public int takeFrame(byte[] dst) {
+        while (scan < tail) {
+            if (ring[(int) (scan & mask)] == terminator) {
+                int length = (int) (scan - head + 1);
+                int start = (int) (head & mask);
+                int firstPart = Math.min(length, ring.length - start);
+                System.arraycopy(ring, start, dst, 0, firstPart);
+                if (firstPart < length) {
+                    System.arraycopy(ring, 0, dst, firstPart, length - firstPart);
+                }
+                scan++;
+                head = scan;
+                return length;
+            }
+            scan++;
+        }
+        return 0;
+    }
+
+    /**
+     * Take the next length prefixed frame out of the ring. A frame is a sync
+     * byte, a length byte and that many payload bytes. Anything in front of
+     * the sync byte is thrown away, except for a copy of the text given,
+     * which is taken out as a frame of its own - a sketch that has reset
+     * sends its ready banner as text.
+     *
+     * @param dst where to copy the frame - must be at least as large as the
+     * ring
+     * @param sync the byte that starts every frame
+     * @param text text to pick out from between frames, or null
+     * @return the length of the frame including sync and length bytes, or 0
+     * if no complete frame is available yet
+     */
+    public int takeSizedFrame(byte[] dst, byte sync, byte[] text) {
+        while (head < tail && ring[(int) (head & mask)] != sync) {
+            int found = text == null ? -1 : startsWith(text);
+            if (found == 0) {
+                return 0; // the rest of the text may still be on its way
+            }
+            if (found > 0) {
+                System.arraycopy(text, 0, dst, 0, text.length);
+                head += text.length;
+                scan = head;
+                return text.length;
+            }
+            head++;
+        }
+        scan = head;
+        if (tail - head < 2) {
+            return 0;
+        }
+        int length = (ring[(int) ((head + 1) & mask)] & 0xFF) + 2;
+        if (tail - head < length) {
+            return 0;
+        }
+        int start = (int) (head & mask);
+        int firstPart = Math.min(length, ring.length - start);
+        System.arraycopy(ring, start, dst, 0, firstPart);
+        if (firstPart < length) {
+            System.arraycopy(ring, 0, dst, firstPart, length - firstPart);
+        }
+        head += length;
+        scan = head;
+        return length;
+    }
+
+    // 1 if the ring starts with the bytes given, 0 if all that is waiting
+    // matches but more is needed to tell, -1 if not
+    int startsWith(byte[] bytes) {
+        for (int i = 0; i < bytes.length; i++) {
+            if (head + i == tail) {
+                return 0;
+            }
+            if (ring[(int) ((head + i) & mask)] != bytes[i]) {
+                return -1;
+            }
+        }
+        return 1;
+    }
+
+    // number of bytes waiting in the ring
+    public int available() {
+        return (int) (tail - head);
+    }
+
+    // the capacity of the ring
+    public int capacity() {
+        return ring.length;
+    }
+
+    // throw away everything in the ring
+    public void clear() {
+        head = tail;
+        scan = tail;
+    }
+}
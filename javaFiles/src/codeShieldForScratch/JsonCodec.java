@@ -0,0 +1,821 @@
+/*
+ Scratch 2.0 Hardware Extension for the CodeShield Arduino Interface.
+
+ Written by Alan Yorinks
+ Copyright (c) 2013 Alan Yorinks All right reserved.
+
+ This program is free software; you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public
+ License as published by the Free Software Foundation; either
+ version 2.1 of the License, or (at your option) any later version.
+
+ This library is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ Lesser General Public License for more details.
+
+ You should have received a copy of the GNU Lesser General Public
+ License along with this library; if not, write to the Free Software
+ Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package codeShieldForScratch;
+
+import java.nio.charset.StandardCharsets;
+import org.json.JSONException;
+
+/**
+ * Streaming codec for the few fixed json shapes used by the bridge.
+ *
+ * Scratch messages and Arduino replies are parsed straight out of byte
+ * buffers into fields of the codec, and Arduino commands are produced by
+ * patching numbers into pre-rendered byte templates. Numbers are padded
+ * with leading spaces so every template keeps its length, which the sketch
+ * skips like any other whitespace. Once constructed, a codec does not
+ * allocate, so each thread that needs one should own one.
+ *
+ * Parsing follows org.json for these shapes: numeric params are truncated
+ * to int, quoted integer params are accepted and anything else is reported
+ * with a JSONException. Unlike org.json, numbers with more than MAX_DIGITS
+ * digits before the point are rejected rather than overflowing.
+ *
+ * @author afy
+ */
+public class JsonCodec implements ArduinoCodec {
+
+    // scratch methods the codec picks out itself - commands are looked up
+    // in the CommandRegistry from methodSource, methodStart and methodLength
+    public static final int UNKNOWN_METHOD = -1;
+    public static final int POLL = 0;
+    public static final String[] METHOD_NAMES = {"poll"};
+    public static final int MAX_PARAMS = 8;
+    // longest number parsed - any 18 digits fit in the long accumulator
+    public static final int MAX_DIGITS = 18;
+    // arduino pin types - same values as the translator's LED types
+    public static final int TYPE_DIGITAL = MessageTranslator.LEDDIGITAL;
+    public static final int TYPE_ANALOG = MessageTranslator.LEDPWM;
+    static final byte[][] METHOD_BYTES = ascii(METHOD_NAMES);
+    static final byte[][] REPORTER_BYTES = ascii(MessageTranslator.REPORTER_NAMES);
+    static final byte[] KEY_METHOD = ascii("method");
+    static final byte[] KEY_PARAMS = ascii("params");
+    static final byte[] KEY_PIN_VALUE = ascii("pinValue");
+    static final byte[] KEY_PIN_VALUES = ascii("pinValues");
+    static final byte[] KEY_PIN = ascii("pin");
+    static final byte[] KEY_VALUE = ascii("value");
+    static final byte[] KEY_VALUES = ascii("values");
+    static final byte[] KEY_MASK = ascii("mask");
+    static final byte[] KEY_CONFIGURED = ascii("configured");
+    static final byte[] KEY_PROFILE = ascii("profile");
+    static final byte[] KEY_FAILED = ascii("failed");
+    static final byte[] KEY_SKIPPED = ascii("skipped");
+    static final byte[] KEY_TIME = ascii("time");
+    static final byte[] SAMPLE_HEAD = ascii("{\"sample\":");
+    static final byte[] UPDATE_HEAD = ascii("{\"method\":\"update\",\"params\":[");
+    static final byte[] UPDATE_TAIL = ascii("]}\n");
+    // parse results for the last scratch message
+    public int method = UNKNOWN_METHOD;
+    public int paramCount = 0;
+    public final int[] params = new int[MAX_PARAMS];
+    int paramErrors = 0;      // bit n set if param n is not a number
+    byte[] methodSource;      // where the method name was found
+    int methodStart;
+    int methodLength;
+    // parser state
+    byte[] buf;
+    int pos;
+    int end;
+    int keyStart;             // the last key read
+    int keyLength;
+    int sampleTime = 0;       // time stamp of the last parsed sample
+    // command templates - numbers are patched in at the marked offsets
+    byte[] analogWrite = ascii("{\"write\":{\"pin\":  ,\"type\":\"analog\",\"value\":   }}");
+    byte[] digitalWrite = ascii("{\"write\":{\"pin\":  ,\"type\":\"digital\",\"value\": }}");
+    byte[] inputMode = ascii("{\"mode\":{\"mode\":\"input\",\"pin\":  }}");
+    byte[] outputMode = ascii("{\"mode\":{\"mode\":\"output\",\"pin\":  }}");
+    byte[] piezo = ascii("{\"write\":{\"type\":\"piezo\",\"freq\":     ,\"time\":     }}");
+    byte[] servo = ascii("{\"write\":{\"type\":\"servo\",\"pin\":5,\"value\":   }}");
+    byte[] read = ascii("{\"read\":{\"mask\":   }}");
+    byte[] analogRgb = ascii("{\"rgb\":{\"type\":\"analog\",\"red\":   ,\"green\":   ,\"blue\":   }}");
+    byte[] digitalRgb = ascii("{\"rgb\":{\"type\":\"digital\",\"red\": ,\"green\": ,\"blue\": }}");
+    // where the numbers go in the templates
+    final int analogPinAt = fieldAt(analogWrite, "\"pin\":");
+    final int analogValueAt = fieldAt(analogWrite, "\"value\":");
+    final int digitalPinAt = fieldAt(digitalWrite, "\"pin\":");
+    final int digitalValueAt = fieldAt(digitalWrite, "\"value\":");
+    final int inputPinAt = fieldAt(inputMode, "\"pin\":");
+    final int outputPinAt = fieldAt(outputMode, "\"pin\":");
+    final int piezoFreqAt = fieldAt(piezo, "\"freq\":");
+    final int piezoTimeAt = fieldAt(piezo, "\"time\":");
+    final int servoValueAt = fieldAt(servo, "\"value\":");
+    final int readMaskAt = fieldAt(read, "\"mask\":");
+    final int analogRedAt = fieldAt(analogRgb, "\"red\":");
+    final int analogGreenAt = fieldAt(analogRgb, "\"green\":");
+    final int analogBlueAt = fieldAt(analogRgb, "\"blue\":");
+    final int digitalRedAt = fieldAt(digitalRgb, "\"red\":");
+    final int digitalGreenAt = fieldAt(digitalRgb, "\"green\":");
+    final int digitalBlueAt = fieldAt(digitalRgb, "\"blue\":");
+    // scratch output
+    byte[] out = new byte[256];
+    int outLength = 0;
+    byte[] digits = new byte[11];
+
+    // convert a string constant to bytes
+    static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    // offset of the number field that follows a marker in a template
+    static int fieldAt(byte[] template, String marker) {
+        return new String(template, StandardCharsets.US_ASCII).indexOf(marker)
+                + marker.length();
+    }
+
+    static byte[][] ascii(String[] strings) {
+        byte[][] result = new byte[strings.length][];
+        for (int i = 0; i < strings.length; i++) {
+            result[i] = ascii(strings[i]);
+        }
+        return result;
+    }
+
+    /**
+     * Parse a scratch message of the form {"method":name,"params":[...]}
+     * into method, paramCount and params.
+     *
+     * @param source buffer holding the message
+     * @param offset start of the message
+     * @param length length of the message
+     */
+    public void parseScratch(byte[] source, int offset, int length) {
+        start(source, offset, length);
+        method = UNKNOWN_METHOD;
+        methodSource = null;
+        paramCount = 0;
+        paramErrors = 0;
+
+        expect('{');
+        skipWhitespace();
+        if (peek() != '}') {
+            do {
+                skipWhitespace();
+                readKey();
+                if (keyIs(KEY_METHOD)) {
+                    parseMethod();
+                } else if (keyIs(KEY_PARAMS)) {
+                    parseParams();
+                } else {
+                    skipValue();
+                }
+                skipWhitespace();
+            } while (tryConsume(','));
+        }
+        expect('}');
+        if (methodSource == null) {
+            throw new JSONException("JSONObject[\"method\"] not found.");
+        }
+    }
+
+    /**
+     * Get a parsed parameter the way JSONArray.getInt() would
+     *
+     * @param index
+     * @return
+     */
+    public int getParam(int index) {
+        if (index >= paramCount || index >= MAX_PARAMS) {
+            throw new JSONException("JSONArray[" + index + "] not found.");
+        }
+        if ((paramErrors & (1 << index)) != 0) {
+            throw new JSONException("JSONArray[" + index + "] is not a number.");
+        }
+        return params[index];
+    }
+
+    // the method name of the last message - allocates, so only use it for
+    // error reports
+    public String getMethodName() {
+        if (methodSource == null) {
+            return "";
+        }
+        return new String(methodSource, methodStart, methodLength,
+                StandardCharsets.UTF_8);
+    }
+
+    // check for the empty json object the sketch sends as an acknowledgement
+    @Override
+    public boolean isAck(byte[] source, int offset, int length) {
+        start(source, offset, length);
+        skipWhitespace();
+        if (!tryConsume('{')) {
+            return false;
+        }
+        skipWhitespace();
+        if (!tryConsume('}')) {
+            return false;
+        }
+        skipWhitespace();
+        return pos == end;
+    }
+
+    /**
+     * Parse a {"pinValues":{"mask":m,"values":[...]}} or a
+     * {"pinValue":{"type":t,"pin":p,"value":v}} reply from the Arduino.
+     *
+     * @param source buffer holding the reply
+     * @param offset start of the reply
+     * @param length length of the reply
+     * @param values receives the readings, indexed like REPORTER_NAMES
+     * @return mask of the reporters that were read
+     */
+    @Override
+    public int parseReadings(byte[] source, int offset, int length, int[] values) {
+        start(source, offset, length);
+        int mask = 0;
+
+        expect('{');
+        skipWhitespace();
+        readKey();
+        if (keyIs(KEY_PIN_VALUES)) {
+            mask = parsePinValues(values);
+        } else if (keyIs(KEY_PIN_VALUE)) {
+            mask = parsePinValue(values);
+        } else {
+            throw new JSONException("JSONObject[\"pinValue\"] not found.");
+        }
+        skipWhitespace();
+        expect('}');
+        return mask;
+    }
+
+    /**
+     * Fill in the write template for one pin
+     *
+     * @param pin arduino pin
+     * @param type TYPE_ANALOG or TYPE_DIGITAL
+     * @param value 0-255 for analog, 0 or 1 for digital
+     * @return the command - valid until the next call
+     */
+    @Override
+    public byte[] encodeWrite(int pin, int type, int value) {
+        if (type == TYPE_ANALOG) {
+            patch(analogWrite, analogPinAt, 2, pin);
+            patch(analogWrite, analogValueAt, 3, value);
+            return analogWrite;
+        }
+        patch(digitalWrite, digitalPinAt, 2, pin);
+        patch(digitalWrite, digitalValueAt, 1, value);
+        return digitalWrite;
+    }
+
+    // fill in the pin mode template
+    @Override
+    public byte[] encodeMode(int pin, boolean output) {
+        if (output) {
+            patch(outputMode, outputPinAt, 2, pin);
+            return outputMode;
+        }
+        patch(inputMode, inputPinAt, 2, pin);
+        return inputMode;
+    }
+
+    // the config command only goes out once per connection - build it
+    @Override
+    public byte[] encodeConfig(PinProfile profile) {
+        return ascii("{\"config\":{\"profile\":" + profile.getId()
+                + ",\"inputs\":" + profile.getInputs()
+                + ",\"pullups\":" + profile.getPullups()
+                + ",\"outputs\":" + profile.getOutputs() + "}}");
+    }
+
+    /**
+     * Parse a {"configured":{"profile":p,"failed":f,"skipped":s}} reply
+     *
+     * @param source buffer holding the reply
+     * @param offset start of the reply
+     * @param length length of the reply
+     * @return what the sketch did
+     */
+    @Override
+    public PinProfile.Result parseConfigured(byte[] source, int offset, int length) {
+        PinProfile.Result result = new PinProfile.Result();
+        start(source, offset, length);
+        expect('{');
+        skipWhitespace();
+        readKey();
+        if (!keyIs(KEY_CONFIGURED)) {
+            throw new JSONException("JSONObject[\"configured\"] not found.");
+        }
+        expect('{');
+        do {
+            skipWhitespace();
+            readKey();
+            if (keyIs(KEY_PROFILE)) {
+                result.profile = parseNumber();
+            } else if (keyIs(KEY_FAILED)) {
+                result.failed = parseNumber();
+            } else if (keyIs(KEY_SKIPPED)) {
+                result.skipped = parseNumber() != 0;
+            } else {
+                skipValue();
+            }
+            skipWhitespace();
+        } while (tryConsume(','));
+        expect('}');
+        return result;
+    }
+
+    // only sent when sampling starts - build it
+    @Override
+    public byte[] encodeSubscribe(int mask, int interval) {
+        return ascii("{\"subscribe\":{\"mask\":" + mask
+                + ",\"interval\":" + interval + "}}");
+    }
+
+    // the sketch writes samples without any spaces
+    @Override
+    public boolean isSample(byte[] source, int offset, int length) {
+        if (length < SAMPLE_HEAD.length) {
+            return false;
+        }
+        for (int i = 0; i < SAMPLE_HEAD.length; i++) {
+            if (source[offset + i] != SAMPLE_HEAD[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Parse a {"sample":{"time":t,"mask":m,"values":[...]}} pushed by the
+     * sketch
+     *
+     * @param source buffer holding the sample
+     * @param offset start of the sample
+     * @param length length of the sample
+     * @param values receives the readings, indexed like REPORTER_NAMES
+     * @return mask of the reporters in the sample
+     */
+    @Override
+    public int parseSample(byte[] source, int offset, int length, int[] values) {
+        if (!isSample(source, offset, length)) {
+            throw new JSONException("JSONObject[\"sample\"] not found.");
+        }
+        start(source, offset + SAMPLE_HEAD.length, length - SAMPLE_HEAD.length);
+        int mask = parsePinValues(values);
+        skipWhitespace();
+        expect('}');
+        return mask;
+    }
+
+    @Override
+    public int getSampleTime() {
+        return sampleTime;
+    }
+
+    // fill in the rgb template
+    @Override
+    public byte[] encodeRgb(int type, int red, int green, int blue) {
+        if (type == TYPE_ANALOG) {
+            patch(analogRgb, analogRedAt, 3, red);
+            patch(analogRgb, analogGreenAt, 3, green);
+            patch(analogRgb, analogBlueAt, 3, blue);
+            return analogRgb;
+        }
+        patch(digitalRgb, digitalRedAt, 1, red);
+        patch(digitalRgb, digitalGreenAt, 1, green);
+        patch(digitalRgb, digitalBlueAt, 1, blue);
+        return digitalRgb;
+    }
+
+    // fill in the piezo template - the sketch ignores (and never answers)
+    // a tone with no duration, so the shortest one sent is 1 msec
+    @Override
+    public byte[] encodePiezo(int freq, int duration) {
+        patch(piezo, piezoFreqAt, 5, freq);
+        patch(piezo, piezoTimeAt, 5, Math.max(1, duration));
+        return piezo;
+    }
+
+    // fill in the servo template
+    @Override
+    public byte[] encodeServo(int degrees) {
+        patch(servo, servoValueAt, 3, degrees);
+        return servo;
+    }
+
+    // fill in the batched read template
+    @Override
+    public byte[] encodeRead(int mask) {
+        patch(read, readMaskAt, 3, mask);
+        return read;
+    }
+
+    /**
+     * Build a scratch update message in the output buffer
+     *
+     * @param values readings indexed like REPORTER_NAMES
+     * @param mask the reporters to include
+     * @return the message length - the message is in getOutput()
+     */
+    public int encodeUpdate(int[] values, int mask) {
+        outLength = 0;
+        append(UPDATE_HEAD);
+        boolean first = true;
+        for (int i = 0; i < REPORTER_BYTES.length; i++) {
+            if ((mask & (1 << i)) != 0) {
+                if (!first) {
+                    append((byte) ',');
+                }
+                first = false;
+                append((byte) '[');
+                append((byte) '"');
+                append(REPORTER_BYTES[i]);
+                append((byte) '"');
+                append((byte) ',');
+                appendInt(values[i]);
+                append((byte) ']');
+            }
+        }
+        append(UPDATE_TAIL);
+        return outLength;
+    }
+
+    public byte[] getOutput() {
+        return out;
+    }
+
+    // write a number right aligned into a template field, clamped to fit
+    static void patch(byte[] template, int offset, int width, int value) {
+        int max = 1;
+        for (int i = 0; i < width; i++) {
+            max *= 10;
+        }
+        if (value < 0) {
+            value = 0;
+        }
+        if (value >= max) {
+            value = max - 1;
+        }
+        int i = offset + width - 1;
+        do {
+            template[i--] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value > 0);
+        while (i >= offset) {
+            template[i--] = ' ';
+        }
+    }
+
+    void append(byte b) {
+        if (outLength == out.length) {
+            grow();
+        }
+        out[outLength++] = b;
+    }
+
+    void append(byte[] bytes) {
+        while (outLength + bytes.length > out.length) {
+            grow();
+        }
+        System.arraycopy(bytes, 0, out, outLength, bytes.length);
+        outLength += bytes.length;
+    }
+
+    void appendInt(int value) {
+        long v = value;
+        if (v < 0) {
+            append((byte) '-');
+            v = -v;
+        }
+        int n = 0;
+        do {
+            digits[n++] = (byte) ('0' + v % 10);
+            v /= 10;
+        } while (v > 0);
+        while (n > 0) {
+            append(digits[--n]);
+        }
+    }
+
+    // only happens until the buffer reaches its working size
+    void grow() {
+        byte[] bigger = new byte[out.length * 2];
+        System.arraycopy(out, 0, bigger, 0, outLength);
+        out = bigger;
+    }
+
+    // {"mask":m,"values":[...]} - a sample also has "time":t
+    int parsePinValues(int[] values) {
+        int mask = 0;
+        int valueMask = 0;
+        expect('{');
+        do {
+            skipWhitespace();
+            readKey();
+            if (keyIs(KEY_MASK)) {
+                mask = parseNumber();
+            } else if (keyIs(KEY_TIME)) {
+                sampleTime = parseNumber();
+            } else if (keyIs(KEY_VALUES)) {
+                skipWhitespace();
+                expect('[');
+                skipWhitespace();
+                int reporter = 0;
+                if (!tryConsume(']')) {
+                    do {
+                        skipWhitespace();
+                        // values are listed in mask bit order
+                        while (reporter < values.length
+                                && (mask & (1 << reporter)) == 0) {
+                            reporter++;
+                        }
+                        if (reporter >= values.length) {
+                            throw new JSONException("too many values");
+                        }
+                        values[reporter] = parseNumber();
+                        valueMask |= 1 << reporter;
+                        reporter++;
+                        skipWhitespace();
+                    } while (tryConsume(','));
+                    expect(']');
+                }
+            } else {
+                skipValue();
+            }
+            skipWhitespace();
+        } while (tryConsume(','));
+        expect('}');
+        return valueMask;
+    }
+
+    // {"type":t,"pin":p,"value":v}
+    int parsePinValue(int[] values) {
+        int pin = -1;
+        int value = 0;
+        expect('{');
+        do {
+            skipWhitespace();
+            readKey();
+            if (keyIs(KEY_PIN)) {
+                pin = parseNumber();
+            } else if (keyIs(KEY_VALUE)) {
+                value = parseNumber();
+            } else {
+                skipValue();
+            }
+            skipWhitespace();
+        } while (tryConsume(','));
+        expect('}');
+
+        for (int i = 0; i < MessageTranslator.NUM_SENSORS; i++) {
+            if (MessageTranslator.REPORTER_PINS[i] == pin) {
+                values[i] = value;
+                return 1 << i;
+            }
+        }
+        return 0;
+    }
+
+    // "name" - identify it without making a string
+    void parseMethod() {
+        skipWhitespace();
+        if (peek() != '"') {
+            throw new JSONException("JSONObject[\"method\"] not a string.");
+        }
+        pos++;
+        methodSource = buf;
+        methodStart = pos;
+        skipStringBody();
+        methodLength = pos - 1 - methodStart;
+
+        method = UNKNOWN_METHOD;
+        for (int i = 0; i < METHOD_BYTES.length; i++) {
+            if (regionEquals(methodStart, methodLength, METHOD_BYTES[i])) {
+                method = i;
+                break;
+            }
+        }
+    }
+
+    // [n, n, ...]
+    void parseParams() {
+        skipWhitespace();
+        expect('[');
+        skipWhitespace();
+        if (tryConsume(']')) {
+            return;
+        }
+        do {
+            skipWhitespace();
+            int index = paramCount++;
+            byte c = peek();
+            if (c == '"') {
+                // org.json accepts a quoted integer
+                int value = parseQuotedInt();
+                if (index < MAX_PARAMS) {
+                    if (value == Integer.MIN_VALUE) {
+                        paramErrors |= 1 << index;
+                    } else {
+                        params[index] = value;
+                    }
+                }
+            } else if (c == '-' || (c >= '0' && c <= '9')) {
+                int value = parseNumber();
+                if (index < MAX_PARAMS) {
+                    params[index] = value;
+                }
+            } else {
+                skipValue();
+                if (index < MAX_PARAMS) {
+                    paramErrors |= 1 << index;
+                }
+            }
+            skipWhitespace();
+        } while (tryConsume(','));
+        expect(']');
+    }
+
+    // a json number truncated to an int like Number.intValue()
+    int parseNumber() {
+        boolean negative = tryConsume('-');
+        long whole = 0;
+        int start = pos;
+        while (pos < end && buf[pos] >= '0' && buf[pos] <= '9') {
+            if (pos - start == MAX_DIGITS) {
+                throw new JSONException("number too long at " + start);
+            }
+            whole = whole * 10 + (buf[pos++] - '0');
+        }
+        if (pos == start) {
+            throw new JSONException("number expected at " + pos);
+        }
+        if (pos < end && (buf[pos] == '.' || buf[pos] == 'e' || buf[pos] == 'E')) {
+            // rare - fractions and exponents go through a double
+            return (int) parseFraction(negative, whole);
+        }
+        return (int) (negative ? -whole : whole);
+    }
+
+    // the rest of a number with a fraction or exponent
+    double parseFraction(boolean negative, long whole) {
+        double value = whole;
+        if (tryConsume('.')) {
+            double scale = 0.1;
+            while (pos < end && buf[pos] >= '0' && buf[pos] <= '9') {
+                value += (buf[pos++] - '0') * scale;
+                scale /= 10;
+            }
+        }
+        if (pos < end && (buf[pos] == 'e' || buf[pos] == 'E')) {
+            pos++;
+            boolean negativeExponent = false;
+            if (!tryConsume('+')) {
+                negativeExponent = tryConsume('-');
+            }
+            int exponent = 0;
+            while (pos < end && buf[pos] >= '0' && buf[pos] <= '9') {
+                exponent = exponent * 10 + (buf[pos++] - '0');
+            }
+            value *= Math.pow(10, negativeExponent ? -exponent : exponent);
+        }
+        return negative ? -value : value;
+    }
+
+    // "123" - returns Integer.MIN_VALUE if the string is not an integer
+    int parseQuotedInt() {
+        pos++; // opening quote
+        int start = pos;
+        skipStringBody();
+        int stop = pos - 1;
+        int i = start;
+        boolean negative = false;
+        if (i < stop && buf[i] == '-') {
+            negative = true;
+            i++;
+        }
+        if (i == stop) {
+            return Integer.MIN_VALUE;
+        }
+        long value = 0;
+        for (; i < stop; i++) {
+            if (buf[i] < '0' || buf[i] > '9' || value > Integer.MAX_VALUE) {
+                return Integer.MIN_VALUE;
+            }
+            value = value * 10 + (buf[i] - '0');
+        }
+        value = negative ? -value : value;
+        if (value > Integer.MAX_VALUE || value <= Integer.MIN_VALUE) {
+            return Integer.MIN_VALUE;
+        }
+        return (int) value;
+    }
+
+    // "key": - remember where the name is and move past the colon
+    void readKey() {
+        if (peek() != '"') {
+            throw new JSONException("A JSONObject text must have a key at " + pos);
+        }
+        pos++;
+        keyStart = pos;
+        skipStringBody();
+        keyLength = pos - 1 - keyStart;
+        skipWhitespace();
+        expect(':');
+        skipWhitespace();
+    }
+
+    // check the name found by the last readKey()
+    boolean keyIs(byte[] key) {
+        return regionEquals(keyStart, keyLength, key);
+    }
+
+    // skip any json value
+    void skipValue() {
+        skipWhitespace();
+        byte c = peek();
+        if (c == '"') {
+            pos++;
+            skipStringBody();
+        } else if (c == '{' || c == '[') {
+            char close = (c == '{') ? '}' : ']';
+            pos++;
+            skipWhitespace();
+            if (tryConsume(close)) {
+                return;
+            }
+            do {
+                skipWhitespace();
+                if (close == '}') {
+                    readKey();
+                }
+                skipValue();
+                skipWhitespace();
+            } while (tryConsume(','));
+            expect(close);
+        } else {
+            // number, true, false or null
+            while (pos < end && buf[pos] != ',' && buf[pos] != '}'
+                    && buf[pos] != ']' && buf[pos] > ' ') {
+                pos++;
+            }
+        }
+    }
+
+    // move past the closing quote of a string we are inside of
+    void skipStringBody() {
+        while (pos < end) {
+            byte c = buf[pos++];
+            if (c == '\\') {
+                pos++;
+            } else if (c == '"') {
+                return;
+            }
+        }
+        throw new JSONException("Unterminated string");
+    }
+
+    boolean regionEquals(int start, int length, byte[] literal) {
+        if (length != literal.length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (buf[start + i] != literal[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    void start(byte[] source, int offset, int length) {
+        buf = source;
+        pos = offset;
+        end = offset + length;
+    }
+
+    byte peek() {
+        if (pos >= end) {
+            throw new JSONException("unexpected end of message");
+        }
+        return buf[pos];
+    }
+
+    boolean tryConsume(char c) {
+        if (pos < end && buf[pos] == c) {
+            pos++;
+            return true;
+        }
+        return false;
+    }
+
+    void expect(char c) {
+        skipWhitespace();
+        if (!tryConsume(c)) {
+            throw new JSONException("Expected '" + c + "' at " + pos);
+        }
+    }
+
+    void skipWhitespace() {
+        while (pos < end && buf[pos] <= ' ' && buf[pos] >= 0) {
+            pos++;
+        }
+    }
+}
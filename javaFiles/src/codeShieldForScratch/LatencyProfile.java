@@ -0,0 +1,126 @@
+/*
+ Scratch 2.0 Hardware Extension for the CodeShield Arduino Interface.
+
+ Written by Alan Yorinks
+ Copyright (c) 2013 Alan Yorinks All right reserved.
+
+ This program is free software; you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public
+ License as published by the Free Software Foundation; either
+ version 2.1 of the License, or (at your option) any later version.
+
+ This library is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ Lesser General Public License for more details.
+
+ You should have received a copy of the GNU Lesser General Public
+ License along with this library; if not, write to the Free Software
+ Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package codeShieldForScratch;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Collects round trip times in power of 2 microsecond buckets.
+ *
+ * Recording is lock free so it can be called from the serial event thread
+ * while another thread prints the profile.
+ *
+ * @author afy
+ */
+public class LatencyProfile {
+
+    public static final int NUM_BUCKETS = 32; // bucket n holds < 2^n usec
+    String name;
+    AtomicLongArray buckets = new AtomicLongArray(NUM_BUCKETS);
+    AtomicLong count = new AtomicLong();
+    AtomicLong totalNanos = new AtomicLong();
+    AtomicLong maxNanos = new AtomicLong();
+
+    // constructor
+    public LatencyProfile(String name) {
+        this.name = name;
+    }
+
+    // add one measurement
+    public void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        long micros = nanos / 1000;
+        int bucket = 64 - Long.numberOfLeadingZeros(micros);
+        if (bucket >= NUM_BUCKETS) {
+            bucket = NUM_BUCKETS - 1;
+        }
+        buckets.incrementAndGet(bucket);
+        count.incrementAndGet();
+        totalNanos.addAndGet(nanos);
+
+        long max = maxNanos.get();
+        while (nanos > max && !maxNanos.compareAndSet(max, nanos)) {
+            max = maxNanos.get();
+        }
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    // mean in microseconds
+    public long getMeanMicros() {
+        long n = count.get();
+        if (n == 0) {
+            return 0;
+        }
+        return totalNanos.get() / n / 1000;
+    }
+
+    public long getMaxMicros() {
+        return maxNanos.get() / 1000;
+    }
+
+    /**
+     * Estimate a percentile from the buckets
+     *
+     * @param percent 0 to 100
+     * @return upper bound of the bucket holding the percentile in microseconds
+     */
+    public long getPercentileMicros(double percent) {
+        long n = count.get();
+        if (n == 0) {
+            return 0;
+        }
+        long wanted = (long) Math.ceil(n * percent / 100.0);
+        long seen = 0;
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            seen += buckets.get(i);
+            if (seen >= wanted) {
+                return 1L << i;
+            }
+        }
+        return getMaxMicros();
+    }
+
+    // forget everything collected so far
+    public void reset() {
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            buckets.set(i, 0);
+        }
+        count.set(0);
+        totalNanos.set(0);
+        maxNanos.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return name + ": count=" + getCount()
+                + " mean=" + getMeanMicros() + "us"
+                + " p50<" + getPercentileMicros(50) + "us"
+                + " p90<" + getPercentileMicros(90) + "us"
+                + " p99<" + getPercentileMicros(99) + "us"
+                + " max=" + getMaxMicros() + "us";
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ Scratch 2.0 Hardware Extension for the CodeShield Arduino Interface.
+
+ Written by Alan Yorinks
+ Copyright (c) 2013 Alan Yorinks All right reserved.
+
+ This program is free software; you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public
+ License as published by the Free Software Foundation; either
+ version 2.1 of the License, or (at your option) any later version.
+
+ This library is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ Lesser General Public License for more details.
+
+ You should have received a copy of the GNU Lesser General Public
+ License along with this library; if not, write to the Free Software
+ Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package codeShieldForScratch;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Splits the byte stream from Scratch into messages without converting it
+ * to strings.
+ *
+ * Json messages end with a newline. The Flash policy request ends with a
+ * null character instead and may arrive on its own or mixed in with other
+ * data, so both terminators are looked for. A message longer than
+ * MAX_LINE is not from Scratch, and the client sending it is dropped.
+ *
+ * @author afy
+ */
+public class LineFramer {
+
+    public static final int INITIAL_SIZE = 5000;
+    public static final int MAX_LINE = INITIAL_SIZE * 4; // longest message kept
+    static final byte[] POLICY_REQUEST
+            = "<policy-file-request/>".getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * Receives the messages found by the framer
+     */
+    public interface Handler {
+
+        // one newline terminated message - the terminator is not included
+        void lineReceived(byte[] buf, int offset, int length) throws IOException;
+
+        // Flash asked for the cross domain policy
+        void policyRequested() throws IOException;
+    }
+
+    ByteBuffer buffer = ByteBuffer.allocate(INITIAL_SIZE); // kept in fill mode
+
+    /**
+     * The buffer to read into - always has room for more data.
+     *
+     * @return the buffer
+     * @throws IOException if an unfinished message is already MAX_LINE long
+     */
+    public ByteBuffer getBuffer() throws IOException {
+        if (!buffer.hasRemaining()) {
+            if (buffer.capacity() >= MAX_LINE) {
+                throw new IOException("message over " + MAX_LINE
+                        + " bytes without a terminator");
+            }
+            // a single message larger than the buffer - make room for it
+            ByteBuffer bigger = ByteBuffer.allocate(
+                    Math.min(buffer.capacity() * 2, MAX_LINE));
+            buffer.flip();
+            bigger.put(buffer);
+            buffer = bigger;
+        }
+        return buffer;
+    }
+
+    /**
+     * Hand every complete message in the buffer to the handler. A partial
+     * message at the end stays in the buffer until the rest arrives.
+     *
+     * @param handler
+     * @throws IOException
+     */
+    public void process(Handler handler) throws IOException {
+        byte[] data = buffer.array();
+        int base = buffer.arrayOffset();
+        int end = base + buffer.position();
+        int start = base;
+
+        for (int i = base; i < end; i++) {
+            byte b = data[i];
+            if (b == '\n') {
+                handler.lineReceived(data, start, i - start);
+                start = i + 1;
+            } else if (b == 0) {
+                if (isPolicyRequest(data, start, i - start)) {
+                    handler.policyRequested();
+                }
+                start = i + 1;
+            }
+        }
+
+        // keep the unfinished message for the next read
+        buffer.flip();
+        buffer.position(start - base);
+        buffer.compact();
+    }
+
+    // compare with the policy request, ignoring any whitespace in front
+    static boolean isPolicyRequest(byte[] data, int offset, int length) {
+        while (length > 0 && (data[offset] == '\r' || data[offset] == ' ')) {
+            offset++;
+            length--;
+        }
+        if (length != POLICY_REQUEST.length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (data[offset + i] != POLICY_REQUEST[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
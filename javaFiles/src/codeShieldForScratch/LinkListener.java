@@ -0,0 +1,38 @@
+/*
+ Scratch 2.0 Hardware Extension for the CodeShield Arduino Interface.
+
+ Written by Alan Yorinks
+ Copyright (c) 2013 Alan Yorinks All right reserved.
+
+ This program is free software; you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public
+ License as published by the Free Software Foundation; either
+ version 2.1 of the License, or (at your option) any later version.
+
+ This library is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ Lesser General Public License for more details.
+
+ You should have received a copy of the GNU Lesser General Public
+ License along with this library; if not, write to the Free Software
+ Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package codeShieldForScratch;
+
+/**
+ * Callback for a serial link that stopped working
+ *
+ * @author afy
+ */
+public interface LinkListener {
+
+    /**
+     * Called once when the link to a board breaks - a write failed, the
+     * board reset or it left a command unanswered. May be called on any
+     * thread, including the serial event thread, so it must not wait.
+     *
+     * @param reason what went wrong, for the log
+     */
+    void linkFailed(String reason);
+}
@@ -0,0 +1,109 @@
+/*
+ Scratch 2.0 Hardware Extension for the CodeShield Arduino Interface.
+
+ Written by Alan Yorinks
+ Copyright (c) 2013 Alan Yorinks All right reserved.
+
+ This program is free software; you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public
+ License as published by the Free Software Foundation; either
+ version 2.1 of the License, or (at your option) any later version.
+
+ This library is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ Lesser General Public License for more details.
+
+ You should have received a copy of the GNU Lesser General Public
+ License along with this library; if not, write to the Free Software
+ Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package codeShieldForScratch;
+
+/**
+ * What SerialManager measured about the serial link while calibrating it:
+ * the baud rate in use, the round trip time of a short command and the
+ * bytes per second actually carried.
+ *
+ * The rest of the bridge uses it to size the command pipeline and to keep
+ * the sensor sample interval above what the link can deliver.
+ *
+ * @author afy
+ */
+public class LinkProfile {
+
+    public static final int TYPICAL_COMMAND = 40; // bytes in a json command
+    public static final int MAX_WINDOW = 8;       // commands in flight
+    int baudRate;               // rate the link runs at
+    int errors = 0;             // failed round trips during the burst
+    long bytesCarried = 0;      // bytes sent plus bytes received
+    long elapsedNanos = 0;      // time the burst took
+    LatencyProfile roundTrip;   // round trip times of the burst
+
+    // constructor
+    public LinkProfile(int baudRate) {
+        this.baudRate = baudRate;
+        roundTrip = new LatencyProfile("round trip at " + baudRate);
+    }
+
+    // one successful round trip of the burst
+    void record(long nanos, int bytes) {
+        roundTrip.record(nanos);
+        bytesCarried += bytes;
+        elapsedNanos += nanos;
+    }
+
+    public int getBaudRate() {
+        return baudRate;
+    }
+
+    public int getErrors() {
+        return errors;
+    }
+
+    // true if every round trip of the burst worked
+    public boolean isClean() {
+        return errors == 0 && roundTrip.getCount() > 0;
+    }
+
+    public long getRoundTripMicros() {
+        return roundTrip.getMeanMicros();
+    }
+
+    public long getBytesPerSecond() {
+        if (elapsedNanos == 0) {
+            return 0;
+        }
+        return bytesCarried * 1000000000L / elapsedNanos;
+    }
+
+    /**
+     * Commands worth keeping in flight: enough to cover one round trip at
+     * the measured rate, within the limits of the sketch's receive buffer.
+     *
+     * @return
+     */
+    public int suggestedWindow() {
+        long bytesPerRoundTrip = getBytesPerSecond() * getRoundTripMicros() / 1000000L;
+        long window = 1 + bytesPerRoundTrip / TYPICAL_COMMAND;
+        return (int) Math.max(SerialPipeline.DEFAULT_WINDOW, Math.min(MAX_WINDOW, window));
+    }
+
+    /**
+     * The shortest sample interval worth asking for - a full read takes
+     * about two round trips of a short command.
+     *
+     * @return msec
+     */
+    public int minimumSampleInterval() {
+        return (int) Math.max(1, (2 * getRoundTripMicros() + 999) / 1000);
+    }
+
+    @Override
+    public String toString() {
+        return "Serial link: " + baudRate + " baud, round trip "
+                + getRoundTripMicros() + " usec (p99 < "
+                + roundTrip.getPercentileMicros(99) + "), "
+                + getBytesPerSecond() + " bytes/s, errors " + errors;
+    }
+}
@@ -23,12 +23,10 @@
 package codeShieldForScratch;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.net.*;
-import java.util.Arrays;
-import java.util.logging.Level;
-import java.util.logging.Logger;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
 
 /**
  *
@@ -37,143 +35,169 @@ import java.util.logging.Logger;
  * This class translates json messages to and from both scratch and arduino It
  * also takes care of initial handshaking with scratch
  *
+ * There is one MessageManager for each connected Scratch client. All of its
+ * methods are called on the TCPServerManager selector thread.
+ *
+ * Replies are not written as they are made. Everything the messages of one
+ * read from Scratch produce - the update for a poll, the policy file - is
+ * gathered and sent in a single write once the read has been handled, so
+ * there is at most one write and one TCP segment per read. A client that
+ * stops reading is dropped once MAX_PENDING bytes are waiting for it.
+ *
  * @author afy
  */
-public class MessageManager implements Runnable {
+public class MessageManager implements LineFramer.Handler, ScratchOutput {
 
     public static final int PORT = 50207; // the ExtensionExample port number
-    SerialManager serManager;  // arduino comm interface
-    Socket scratchSocket;      // scratch TCP IP interface
+    public static int MAX_PENDING = 65536; // unsent bytes before a client is dropped
+    CommandScheduler scheduler; // shared by all clients of the board
+    SensorSampler sampler;     // background reader of the reporters
+    SocketChannel channel;     // scratch TCP IP interface
+    SelectionKey key;          // channel registration with the selector
     MessageTranslator mTranslator;     // user application class
-    InputStream sockIn;        // streams to and from Scratch
-    OutputStream sockOut;
-    private String msgBuf = "";
+    LineFramer framer = new LineFramer(); // splits the data into messages
+    ByteBuffer pending = ByteBuffer.allocate(1024); // unsent data, fill mode
+    boolean overflowed = false; // more than MAX_PENDING was waiting
+    BridgeMetrics metrics;     // shared by all clients of the board
     int port;
 
     // constructor
-    public MessageManager(SerialManager serManager, Socket scratchSocket) {
-        this.serManager = serManager;
-        this.scratchSocket = scratchSocket;
+    public MessageManager(CommandScheduler scheduler, SensorSampler sampler,
+            SocketChannel channel, int port) {
+        this.scheduler = scheduler;
+        this.sampler = sampler;
+        this.channel = channel;
+        this.port = port;
+        this.metrics = scheduler.getPipeline().getSerialManager().getMetrics();
+        // create a message translator instance where the real work is done
+        mTranslator = new MessageTranslator(scheduler, sampler, this);
         System.out.println("MessageManager Created");
     }
 
-    // message handler thread
-    @Override
-    public void run() {
-        try {
-            try {
-                Thread.sleep(5);
-            } catch (InterruptedException ex) {
-                Logger.getLogger(MessageManager.class.getName()).log(Level.SEVERE, null, ex);
-                System.exit(0) ;
-            }
-            try {
-                getScratchData();
-            } catch (InterruptedException ex) {
-                Logger.getLogger(MessageManager.class.getName()).log(Level.SEVERE, null, ex);
-                System.exit(0) ;
-            }
-        } catch (IOException ex) {
-            Logger.getLogger(MessageManager.class.getName()).log(Level.SEVERE, null, ex);
-            System.exit(0) ;
-        }
+    /**
+     * Called once the channel is registered. The first client to connect
+     * sets up the Arduino pins and starts the sampler.
+     *
+     * @param key
+     */
+    public void connected(SelectionKey key) {
+        this.key = key;
+        scheduler.initBoard(mTranslator, sampler);
+        System.err.println("Scratch is connected: " + channel.socket().getRemoteSocketAddress());
     }
 
     /**
-     * This method creates an instance of the MessageTranslator
+     * Collect the data from Scratch and pass it on to the translator
+     *
+     * @return false when the client closed the socket
+     * @throws IOException
      */
-    public void getScratchData() throws IOException, InterruptedException {
+    public boolean readable() throws IOException {
+        int bytesRead = channel.read(framer.getBuffer());
+        if (bytesRead < 0) {
+            return false; // client closed socket
+        }
+        // split into messages and hand them on
+        framer.process(this);
+        // then send all their replies at once
+        flush();
+        return true;
+    }
+
+    // the socket can take more data - send what is left over
+    public void writable() throws IOException {
+        flush();
+    }
+
+    // write everything waiting in one go - what the socket does not take
+    // is sent when the selector says there is room
+    void flush() throws IOException {
+        if (overflowed) {
+            throw new IOException("client is not reading - over "
+                    + MAX_PENDING + " bytes waiting");
+        }
+        if (pending.position() == 0) {
+            return;
+        }
+        pending.flip();
+        channel.write(pending);
+        pending.compact();
+        if (pending.position() == 0) {
+            // counted once everything waiting has gone out
+            metrics.wroteToScratch();
+            key.interestOps(SelectionKey.OP_READ);
+        } else {
+            key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
+    }
+
+    // close this client - the board and the other clients carry on
+    public void close() {
         try {
-            // tcp socket streams for input and output
-            sockIn = scratchSocket.getInputStream();
-            sockOut = scratchSocket.getOutputStream();
-
-            // buffer to collect the data
-            byte[] buf = new byte[5000];
-
-            // create a message translator instance where the real work is done   
-            mTranslator = new MessageTranslator(serManager, this.scratchSocket);
-            if (mTranslator.initArduino() == false) {
-                System.out.println("Arduino Init Failed");
-                try {
-                    serManager.closeSerial();
-                    this.scratchSocket.close();
-                } catch (IOException ex) {
-                    Logger.getLogger(MessageManager.class.getName()).log(Level.SEVERE, null, ex);
-                    System.exit(0);
-                }
-            }
-            System.err.println("Scratch is connected");
-            // collect the data from Scratch and pass it on to the translator
-            while (true) {
-                try {
-                    int bytes_read = sockIn.read(buf, 0, buf.length);
-                    if (bytes_read < 0) {
-                        break; // client closed socket
-                    }
-                    String s = new String(Arrays.copyOf(buf, bytes_read));
-
-                    // Flash policy stuff from Scratch - need to reply
-                    if (s.equals("<policy-file-request/>\0")) {
-                        // To support the Flash security model, the server 
-                        // responds to a policy file request by sending a policy
-                        //  file string that allows Flash to connect to 
-                        //this port. The policy request and response are
-                        //  terminated with null characters ('\0') rather than
-                        // newlines. The policy exchange happens before 
-                        //message exchange begins.
-                        sendPolicyRequest(sockOut);
-                        try {
-                            Thread.sleep(2);
-                        } catch (InterruptedException ex) {
-                            System.out.println("Policy Reply Failed");
-                            Logger.getLogger(MessageManager.class.getName()).log(Level.SEVERE, null, ex);
-                            System.exit(0);
-                        }
-                    } else {
-                        // here is where we collect the json strings from Scratch
-                        msgBuf += s;
-                        int i;
-                        while ((i = msgBuf.indexOf('\n')) >= 0) {
-                            // While msgBuf includes a newline, extract a message and handle it.
-                            // If a message is not yet complete (no newline), msgBuf holds the partial
-                            // message until more data arrives.
-                            String msg = msgBuf.substring(0, i);
-                            msgBuf = msgBuf.substring(i + 1, msgBuf.length());
-                            try {
-                                mTranslator.handleMsg(msg);
-                            } catch (Exception e) {
-                                // Errors while handling a message print the stack but do not kill the server.
-                                System.err.println("problem handling: " + msg);
-                                e.printStackTrace(System.err);
-                                System.exit(0);;
-                            }
-                        }
-                    }
-                } catch (IOException ex) {
-                    Logger.getLogger(MessageManager.class.getName()).log(Level.SEVERE, null, ex);
-                    System.exit(0);
-                }
-            }
-            scratchSocket.close();
-            serManager.closeSerial();
-            System.err.println("-----Closed-----");
-            System.exit(0);
+            channel.close();
         } catch (IOException ex) {
-            Logger.getLogger(MessageManager.class.getName()).log(Level.SEVERE, null, ex);
+            System.err.println("problem closing scratch socket: " + ex);
+        }
+        System.out.println(mTranslator.getReporterFilter());
+        System.out.println(scheduler);
+        System.out.println(scheduler.getShadow());
+        System.err.println("-----Closed-----");
+    }
+
+    // here is where we collect the json strings from Scratch
+    @Override
+    public void lineReceived(byte[] buf, int offset, int length) {
+        try {
+            mTranslator.handleMsg(buf, offset, length);
+        } catch (Exception e) {
+            // Errors while handling a message print the stack but do not kill the server.
+            System.err.println("problem handling: "
+                    + new String(buf, offset, length, StandardCharsets.UTF_8));
+            e.printStackTrace(System.err);
         }
     }
 
-    private void sendPolicyRequest(OutputStream sockOut) throws IOException {
+    // queue data for scratch - it goes out with the other replies to the
+    // same read
+    @Override
+    public void send(byte[] buf, int offset, int length) throws IOException {
+        if (overflowed || pending.position() + length > MAX_PENDING) {
+            // the next flush() drops the client
+            overflowed = true;
+            return;
+        }
+        if (pending.remaining() < length) {
+            ByteBuffer bigger = ByteBuffer.allocate(
+                    Math.max(pending.capacity() * 2, pending.position() + length));
+            pending.flip();
+            bigger.put(pending);
+            pending = bigger;
+        }
+        pending.put(buf, offset, length);
+    }
+
+    // Flash policy stuff from Scratch - need to reply
+    @Override
+    public void policyRequested() throws IOException {
+        // To support the Flash security model, the server
+        // responds to a policy file request by sending a policy
+        //  file string that allows Flash to connect to
+        //this port. The policy request and response are
+        //  terminated with null characters ('\0') rather than
+        // newlines. The policy exchange happens before
+        //message exchange begins.
+        sendPolicyRequest();
+    }
+
+    private void sendPolicyRequest() throws IOException {
         // Send a Flash null-teriminated cross-domain policy file.
         System.out.println("Sending Policy");
 
         String policyFile =
                 "<cross-domain-policy>\n"
-                + "  <allow-access-from domain=\"*\" to-ports=\"" + PORT + "\"/>\n"
+                + "  <allow-access-from domain=\"*\" to-ports=\"" + port + "\"/>\n"
                 + "</cross-domain-policy>\n\0";
-        byte[] outBuf = policyFile.getBytes();
-        sockOut.write(outBuf, 0, outBuf.length);
-        sockOut.flush();
+        byte[] outBuf = policyFile.getBytes(StandardCharsets.US_ASCII);
+        send(outBuf, 0, outBuf.length);
     }
 }
@@ -24,18 +24,16 @@
  */
 package codeShieldForScratch;
 
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.net.Socket;
-import java.util.logging.Level;
-import java.util.logging.Logger;
-import org.json.JSONArray;
-import org.json.JSONObject;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 
 /**
  *
  * This file translates json strings between Scratch and Arduino
+ *
+ * There is one translator per Scratch client. Polls are answered on the
+ * caller's thread from the shared sensor snapshot, commands are handed to
+ * the board's CommandScheduler and run there.
  */
 public class MessageTranslator {
 
@@ -43,6 +41,7 @@ public class MessageTranslator {
     public static String COMMPORT = "/dev/ttyACM0"; // arduino com port
     public static int Port = 50207; // tcp port number must match value in json
     // file for scratch
+    public static int SAMPLE_INTERVAL = 50; // msec between sensor samples
     
     // Arduino pin numbers as assigned by CodeShield
     // CodeShield reporters
@@ -63,6 +62,17 @@ public class MessageTranslator {
     public static final int RGB_RED = 11;
     public static final int NUM_SENSORS = 7;
     public static final int MAX_NUM_SENSORS = 16; // theoretical
+    // reporters in the order used by the batched read - bit n of the read
+    // mask selects entry n
+    public static final int[] REPORTER_PINS = {
+        POTENTIOMETER, HALL_EFFECT, THERMISTOR, PHOTO_CELL,
+        PUSH_BUTTON, SLIDE_SWITCH, ENCODER
+    };
+    public static final String[] REPORTER_NAMES = {
+        "potVal", "hallVal", "thermVal", "photoVal",
+        "buttonVal", "switchVal", "encoderVal"
+    };
+    public static final int ALL_REPORTERS = (1 << NUM_SENSORS) - 1;
     // LED Colors - in some cases created by mixing different colors
     // selection values on scratch control block
 
@@ -78,161 +88,115 @@ public class MessageTranslator {
     // type of LED control - PWM or Digital
     public static final int LEDDIGITAL = 0;
     public static final int LEDPWM = 1;
-    private boolean onlyDigitalLedWrite = false;
-    SerialManager serManager;  // arduino comm interface
-    static int counter = 0;    // polling counter to
-    // throttle the number of polls sent by
-    // Scratch
-    InputStream sockIn;        // streams to and from Scratch
-    OutputStream sockOut;
-    Socket scratchSocket;      // the actual socket 
-    static int reporterIndex = 0; // index into the poll string array
-    // we only send one poll item at a time
-    String[] pollStrings;         // array of poll strings
-    // array to save previous sensor readings
-    static int[] sensorReadings = new int[MAX_NUM_SENSORS];
-
-    public MessageTranslator(SerialManager serManager, Socket scratchSocket) {
-
-        // an array of json strings to query the Arduino to satisfy the Scratch
-        // poll request
-        this.pollStrings = new String[]{
-            "{\"read\":{\"pin\":2,\"type\":\"analog\"}}",
-            "{\"read\":{\"pin\":3,\"type\":\"analog\"}}",
-            "{\"read\":{\"pin\":4,\"type\":\"analog\"}}",
-            "{\"read\":{\"pin\":5,\"type\":\"analog\"}}",
-            "{\"read\":{\"pin\":12,\"type\":\"digital\"}}",
-            "{\"read\":{\"pin\":13,\"type\":\"digital\"}}",
-            "{\"read\":{\"encoder\":0}}"
-        };
-        try {
-            // initialize the sensor readings array
-            for (int i = 0; i < MAX_NUM_SENSORS; i++) {
-                sensorReadings[i] = 0;
-            }
-            this.serManager = serManager;
-            this.scratchSocket = scratchSocket;
-            sockIn = this.scratchSocket.getInputStream();
-            sockOut = this.scratchSocket.getOutputStream();
-        } catch (IOException ex) {
-            Logger.getLogger(MessageTranslator.class.getName()).log(Level.SEVERE, null, ex);
-            System.exit(0);
-        }
+    CommandScheduler scheduler; // runs the commands for the board
+    OutputShadow shadow;       // the board's output pins - scheduler thread
+    boolean rgbSupported;      // the sketch sets the rgb leds in one command
+    SerialPipeline pipeline;   // arduino comm interface
+    SensorSampler sampler;     // background reader of the reporters
+    ScratchOutput out;         // messages to this Scratch client
+    long lastVersionSent = 0;  // snapshot version last sent to scratch
+    ReporterFilter reporterFilter = new ReporterFilter(); // change detection
+    BridgeMetrics metrics;     // shared by all clients of the board
+    CommandRegistry registry;  // the commands behind the blocks
+    PinArbiter arbiter;        // role of the shared pins - one per board
+    // led writes sent for the current command that still need a reply
+    ArrayList<PendingReply> ledReplies = new ArrayList<>();
+    // parses scratch messages and builds the updates - caller's thread only
+    JsonCodec scratchCodec = new JsonCodec();
+    // builds arduino commands - scheduler thread only
+    ArduinoCodec codec;
+    // pins set up by initArduino - plain inputs, inputs with their pull up
+    // turned on (encoder a and b) and outputs that start out low
+    static final int[] INPUT_PINS = {
+        POTENTIOMETER, THERMISTOR, PHOTO_CELL, PUSH_BUTTON, SLIDE_SWITCH
+    };
+    static final int[] PULLUP_PINS = {14, 15};
+    static final int[] OUTPUT_PINS = {PIEZO, WHITE_LED, RGB_BLUE, RGB_GREEN, RGB_RED};
+
+    public MessageTranslator(CommandScheduler scheduler, SensorSampler sampler,
+            ScratchOutput out) {
+        this.scheduler = scheduler;
+        this.pipeline = scheduler.getPipeline();
+        this.shadow = scheduler.getShadow();
+        this.rgbSupported = pipeline.getSerialManager().hasFeature(
+                SerialManager.FEATURE_RGB);
+        this.codec = pipeline.getSerialManager().newCodec();
+        this.metrics = pipeline.getSerialManager().getMetrics();
+        this.registry = CommandRegistry.getDefault();
+        this.arbiter = pipeline.getSerialManager().getArbiter();
+        this.sampler = sampler;
+        this.out = out;
     }
 
     // handle messages from Scratch
     // 
     public void handleMsg(String msg) throws Exception {
-        // Handle a command.
-        String arduinoJSON;       // string to hold json translation to arduino
-        String ardReplyString;    // json reply string back from arduino
-        String toScratch;         // string to send to scratch
-        int ledSelection;         // led selected by command
-        int ledIntensity;         // led intensity
-        int piezoFreq;            // piezo frequency
-        int duration;             // piezo duration
-        int servoDegrees;         // servo position in degrees 0-180
-        int relayState;           // relay state
-        JSONArray paramsArray;    // json parameters array
-        JSONObject msgObj = new JSONObject(msg); // json object
-
-        // look for keyword method in json string to grab json operation
-        String operation = (String) msgObj.get("method");
-
-        // get operation 
+        byte[] msgBytes = msg.getBytes(StandardCharsets.UTF_8);
+        handleMsg(msgBytes, 0, msgBytes.length);
+    }
 
-        // got a poll request
-        if (operation.equals("poll")) {
-            // skip every other poll to allow time for processing
-            counter++;
-            if (counter > 2) {
-                counter = 0;
+    // handle a message from Scratch that is held in a byte buffer
+    public void handleMsg(byte[] msg, int offset, int length) throws Exception {
+        int toScratchLength;      // length of the message to scratch
 
-                // send a poll request to the arduino
-                serManager.writeToArduino(pollStrings[reporterIndex++]);
+        // parse the json string to grab the operation and its parameters
+        scratchCodec.parseScratch(msg, offset, length);
 
-                // wait for reply from ardino
-                ardReplyString = serManager.getReply();
+        // got a poll request
+        if (scratchCodec.method == JsonCodec.POLL) {
+            // answer from the sampler's latest readings - there is only
+            // something to say if a new sample arrived since the last poll
+            SensorSnapshot snapshot = sampler.getSnapshot();
+            boolean answered = false;
+            if (snapshot.getVersion() != lastVersionSent) {
+                lastVersionSent = snapshot.getVersion();
 
                 // convert to scratch json format
-                toScratch = convertAJSONtoSJSON(ardReplyString, reporterIndex);
+                toScratchLength = convertAJSONtoSJSON(snapshot);
 
-
-                // if the value has not changed, a null string is returned and
+                // if no value has changed, nothing is returned and
                 // we will ignore and carry on
-                if (!toScratch.equals("")) {
+                if (toScratchLength > 0) {
                     // send JSON reply string to scratch
-                    byte[] outBuf = toScratch.getBytes();
-                    sockOut.write(outBuf, 0, outBuf.length);
-                    sockOut.flush();
-                }
-                if (reporterIndex == NUM_SENSORS) {
-                    reporterIndex = 0;
-                }
-            }
-        } else { // not a poll but a command 
-
-            ardReplyString = "";
-            switch (operation) {
-                // handle LED command for PWM control
-                case "LEDSelect":
-                    // get the parameters JSONArray
-                    paramsArray = msgObj.getJSONArray("params");
-                    // only one element in the array - get the value
-                    ledSelection = (int) paramsArray.getInt(0);
-                    ledIntensity = (int) paramsArray.getInt(1);
-                    selectLED(ledSelection, ledIntensity, LEDPWM);
-                    break;
-                // handle LED command for digital control
-                case "LEDDigitalSelect":
-                    // get the parameters JSONArray
-                    paramsArray = msgObj.getJSONArray("params");
-                    // only one element in the array - get the value
-                    ledSelection = (int) paramsArray.getInt(0);
-                    ledIntensity = (int) paramsArray.getInt(1);
-                    selectLED(ledSelection, ledIntensity, LEDDIGITAL);
-                    break;
-                // handle a piezo (sound) command
-                case "piezoTone": {
-                    paramsArray = msgObj.getJSONArray("params");
-                    piezoFreq = (int) paramsArray.getInt(0);
-                    duration = (int) paramsArray.getInt(1);
-                    arduinoJSON = piezoTone(piezoFreq, duration);
-                    serManager.writeToArduino(arduinoJSON);
-                    ardReplyString = serManager.getReply();
-                    break;
-                }
-                // handle a servo command
-                case "servoDegrees": {
-                    // servo library has a bug in controlling pwm for
-                    // pins 9 & 10, so we have a workaround for the LEDS
-                    onlyDigitalLedWrite = true;
-                    paramsArray = msgObj.getJSONArray("params");
-                    servoDegrees = (int) paramsArray.getInt(0);
-                    arduinoJSON = servo(servoDegrees);
-                    serManager.writeToArduino(arduinoJSON);
-                    ardReplyString = serManager.getReply();
-                    break;
-                }
-                // handle a relay command
-                case "relayState": {
-                    paramsArray = msgObj.getJSONArray("params");
-                    relayState = (int) paramsArray.getInt(0);
-                    arduinoJSON = relay(relayState);
-                    serManager.writeToArduino(arduinoJSON);
-                    ardReplyString = serManager.getReply();
-                    break;
-                }
-                default: {
-                    System.out.println("Unknown Operation" + operation);
+                    out.send(scratchCodec.getOutput(), 0, toScratchLength);
+                    answered = true;
                 }
             }
+            metrics.poll(answered, snapshot.getVersion() == 0 ? -1
+                    : System.nanoTime() - snapshot.getTimestamp());
+            return;
+        }
 
-            if( (!operation.equals("LEDSelect")) && (!operation.equals("LEDDigitalSelect"))) {
-                if (!(ardReplyString.equals("{}\n"))) {
-                    System.out.println("unexpected reply from arduino: " + ardReplyString);
-                }
+        // not a poll but a command - look up its block and pick up the
+        // parameters here so a bad message is reported against this client
+        final ScratchCommand command = registry.find(scratchCodec.methodSource,
+                scratchCodec.methodStart, scratchCodec.methodLength);
+        if (command == null) {
+            System.out.println("Unknown Operation" + scratchCodec.getMethodName());
+            return;
+        }
+        final int[] params = new int[command.getParamCount()];
+        for (int i = 0; i < params.length; i++) {
+            params[i] = scratchCodec.getParam(i);
+        }
+
+        // the serial work is done on the scheduler thread
+        scheduler.submit(command.device(params), new Runnable() {
+            @Override
+            public void run() {
+                command.run(MessageTranslator.this, params);
             }
+        }, command.replaces(params));
+    }
+
+    // check the reply to a single write command
+    // only called on the scheduler thread
+    void checkReply(PendingReply reply) {
+        if (!reply.awaitAck()) {
+            System.out.println("unexpected reply from arduino: "
+                    + reply.getReplyString());
+            // we no longer know what the pins hold
+            shadow.invalidate();
         }
     }
 
@@ -253,41 +217,64 @@ public class MessageTranslator {
                 break;
 
             case ORANGE:
-                // turn off all 3 leds
-                rgbAllOff();
-
-                if (ledIntensity != 0) {
-                    writeLed(RGB_RED, 255, type);
-                    writeLed(RGB_GREEN, 128, type);
-                }
+                mixLeds(ledIntensity, 255, 128, 0, type);
                 break;
             case YELLOW:
-                rgbAllOff();
-
-                if (ledIntensity != 0) {
-                    writeLed(RGB_RED, 255, type);
-                    writeLed(RGB_GREEN, 255, type);
-                }
+                mixLeds(ledIntensity, 255, 255, 0, type);
                 break;
 
             case INDIGO:
-                rgbAllOff();
-
-                if (ledIntensity != 0) {
-                    writeLed(RGB_RED, 128, type);
-                    writeLed(RGB_GREEN, 128, type);
-                    writeLed(RGB_BLUE, 255, type);
-                }
+                mixLeds(ledIntensity, 128, 128, 255, type);
                 break;
             case VIOLET:
-                rgbAllOff();
+                mixLeds(ledIntensity, 180, 0, 255, type);
+                break;
+        }
+    }
+
+    // a mixed color - the three rgb leds are set in a single command when
+    // the sketch can do that, so no in between color shows
+    void mixLeds(int ledIntensity, int red, int green, int blue, int type) {
+        if (!rgbSupported) {
+            // turn off all 3 leds
+            rgbAllOff();
 
-                if (ledIntensity != 0) {
-                    writeLed(RGB_RED, 180, type);
-                    writeLed(RGB_BLUE, 255, type);
+            if (ledIntensity != 0) {
+                if (red != 0) {
+                    writeLed(RGB_RED, red, type);
                 }
-                break;
+                if (green != 0) {
+                    writeLed(RGB_GREEN, green, type);
+                }
+                if (blue != 0) {
+                    writeLed(RGB_BLUE, blue, type);
+                }
+            }
+            return;
+        }
+
+        if (ledIntensity == 0) {
+            writeRgb(0, 0, 0, LEDDIGITAL);
+        } else {
+            writeRgb(red, green, blue, type);
+        }
+    }
+
+    public ReporterFilter getReporterFilter() {
+        return reporterFilter;
+    }
+
+    // wait for the replies to all the led writes of a command - they were
+    // pipelined so the wait costs roughly one round trip
+    void checkLedReplies() {
+        for (PendingReply reply : ledReplies) {
+            if (!reply.awaitAck()) {
+                System.out.println("writeLED unexpected reply from arduino: "
+                        + reply.getReplyString());
+                shadow.invalidate();
+            }
         }
+        ledReplies.clear();
     }
 
     // turn all rgb leds off
@@ -297,25 +284,40 @@ public class MessageTranslator {
         writeLed(RGB_RED, 0, LEDDIGITAL);
     }
 
-    // send the led command to the arduino
-    void writeLed(int led, int intensity, int type) {
-
-        String ardReplyString = "";
-        // convert pin # to string
-        String pinString = String.valueOf(led);
-
-        // string that hold partial json commands
-        String ledA;
-        String ledB;
-        String ledC;
+    // send one command for all three rgb leds - unless they are already set
+    // that way
+    void writeRgb(int red, int green, int blue, int type) {
+        if (scheduler.onlyDigitalLedWrite) {
+            type = LEDDIGITAL;
+        }
+        red = ledValue(red, type);
+        green = ledValue(green, type);
+        blue = ledValue(blue, type);
+        if (!shadow.needsRgb(type, red, green, blue)) {
+            return;
+        }
+        // the reply is checked by checkLedReplies()
+        ledReplies.add(pipeline.submit("writeRgb", codec.encodeRgb(
+                type == LEDPWM ? JsonCodec.TYPE_ANALOG : JsonCodec.TYPE_DIGITAL,
+                red, green, blue)));
+        shadow.wrote(RGB_RED, type, red);
+        shadow.wrote(RGB_GREEN, type, green);
+        shadow.wrote(RGB_BLUE, type, blue);
+    }
 
-        // json string to be sent to arduino
-        String writeToArduinoString;
+    // the same limits writeLed puts on an intensity
+    static int ledValue(int intensity, int type) {
+        if (type == LEDPWM) {
+            return Math.min(intensity, 254);
+        }
+        return intensity < 1 ? 0 : 1;
+    }
 
-        // convert intensity value to a string
-        String intensityString;
+    // send the led command to the arduino - unless the led is already set
+    // that way
+    void writeLed(int led, int intensity, int type) {
 
-        if (onlyDigitalLedWrite) {
+        if (scheduler.onlyDigitalLedWrite) {
             type = LEDDIGITAL;
         }
         switch (type) {
@@ -325,226 +327,149 @@ public class MessageTranslator {
                     intensity = 254;
                 }
 
-                intensityString = String.valueOf(intensity);
-                // common string parts
-                ledA = "{\"write\":{\"pin\":";
-                ledB = ",\"type\":\"analog\",\"value\":";
-                ledC = "}}";
-
-                writeToArduinoString = ledA + pinString + ledB
-                        + intensityString + ledC;
-
-                serManager.writeToArduino(writeToArduinoString);
-                ardReplyString = serManager.getReply();
-                if (!(ardReplyString.equals("{}\n"))) {
-                    System.out.println("writeLED unexpected reply from arduino: "
-                            + ardReplyString + " for pin" + pinString
-                            + " at intensity: " + intensityString);
+                if (!shadow.needsWrite(led, LEDPWM, intensity)) {
+                    break;
                 }
+                // the reply is checked by checkLedReplies()
+                ledReplies.add(pipeline.submit("writeLed",
+                        codec.encodeWrite(led, JsonCodec.TYPE_ANALOG, intensity)));
+                shadow.wrote(led, LEDPWM, intensity);
                 break;
             default: // digital is default
-                // convert intensity value to a string
                 if (intensity > 1) {
                     intensity = 1;
                 }
                 if (intensity < 1) {
                     intensity = 0;
                 }
-                intensityString = String.valueOf(intensity);
-
-                // common string parts
-                ledA = "{\"write\":{\"pin\":";
-                ledB = ",\"type\":\"digital\",\"value\":";
-                ledC = "}}";
-
-                writeToArduinoString = ledA + pinString + ledB
-                        + intensityString + ledC;
-
-                serManager.writeToArduino(writeToArduinoString);
-                ardReplyString = serManager.getReply();
-                if (!(ardReplyString.equals("{}\n"))) {
-                    System.out.println("writeLED unexpected reply from arduino: "
-                            + ardReplyString + " for pin" + pinString
-                            + " at intensity: " + intensityString);
+
+                if (!shadow.needsWrite(led, LEDDIGITAL, intensity)) {
+                    break;
                 }
+                // the reply is checked by checkLedReplies()
+                ledReplies.add(pipeline.submit("writeLed",
+                        codec.encodeWrite(led, JsonCodec.TYPE_DIGITAL, intensity)));
+                shadow.wrote(led, LEDDIGITAL, intensity);
                 break;
         }
     }
 
     // initialize the arduino ports
+    // only called on the scheduler thread
     public boolean initArduino() {
         System.out.println("start init");
 
-        String validator;
-        String initString[];
-
-        initString = new String[200];
-
-        for (int i = 0; i < 200; i++) {
-            initString[i] = "";
+        // a sketch that knows the config command sets up every pin from
+        // one command
+        if (pipeline.getSerialManager().hasFeature(SerialManager.FEATURE_CONFIG)) {
+            return configureArduino(PinProfile.CODESHIELD);
         }
 
+        // send all initialization commands to arduino
+        // and then validate the replies
+        ArrayList<PendingReply> replies = new ArrayList<>();
 
+        // everything is sent, whatever the shadow thought the pins held
+        shadow.invalidate();
 
-        // initialize arduino inputs for CodeShield   
-        // pot
-        initString[0] = "{\"mode\":{\"mode\":\"input\",\"pin\":2}}";
-        // thermistor
-        initString[1] = "{\"mode\":{\"mode\":\"input\",\"pin\":4}}";
-        // photocell
-        initString[2] = "{\"mode\":{\"mode\":\"input\",\"pin\":5}}";
-        // push button
-        initString[3] = "{\"mode\":{\"mode\":\"input\",\"pin\":12}}";
-        // slide switch
-        initString[4] = "{\"mode\":{\"mode\":\"input\",\"pin\":13}}";
-
-        // encoder a
-        initString[5] = "{\"mode\":{\"mode\":\"input\",\"pin\":14}}";
-
-        initString[6] = "{\"write\":{\"pin\":14,\"type\":\"digital\", \"value\":1}}";
-
-        // encoder b
-        initString[7] = "{\"mode\":{\"mode\":\"input\",\"pin\":15}}";
-        initString[8] = "{\"write\":{\"pin\":15,\"type\":\"digital\", \"value\":1}}";
-
-
+        // initialize arduino inputs for CodeShield
+        // pot, thermistor, photocell, push button, slide switch
+        for (int pin : INPUT_PINS) {
+            replies.add(pipeline.submit("init", codec.encodeMode(pin, false)));
+            // an input has its pull up off, so the shared relay pin is low
+            shadow.wrote(pin, LEDDIGITAL, 0);
+        }
+        // encoder a and b with pull ups
+        for (int pin : PULLUP_PINS) {
+            replies.add(pipeline.submit("init", codec.encodeMode(pin, false)));
+            replies.add(pipeline.submit("init",
+                    codec.encodeWrite(pin, JsonCodec.TYPE_DIGITAL, 1)));
+        }
         // initialize arduino outputs for CodeShield and set them low
-        // piezo
-        initString[9] = "{\"mode\":{\"mode\":\"output\",\"pin\":3}}";
-        initString[10] = "{\"write\":{\"pin\":3,\"type\":\"digital\", \"value\":0}}";
-        // white led
-        initString[11] = "{\"mode\":{\"mode\":\"output\",\"pin\":6}}";
-        initString[12] = "{\"write\":{\"pin\":6,\"type\":\"digital\", \"value\":0}}";
-        // rgb blue
-        initString[13] = "{\"mode\":{\"mode\":\"output\",\"pin\":9}}";
-        initString[14] = "{\"write\":{\"pin\":9,\"type\":\"digital\", \"value\":0}}";
-        // rgb green
-        initString[15] = "{\"mode\":{\"mode\":\"output\",\"pin\":10}}";
-        initString[16] = "{\"write\":{\"pin\":10,\"type\":\"digital\", \"value\":0}}";
-        // rgb red
-        initString[17] = "{\"mode\":{\"mode\":\"output\",\"pin\":11}}";
-        initString[18] = "{\"write\":{\"pin\":11,\"type\":\"digital\", \"value\":0}}";
-        initString[19] = "";
-
-        // send all initialization string to arduino
-        // and validate reply
-        int i ;
-        for ( i = 0;
-                !(initString[i].equals(
-                ""));
-                i++) {
-            serManager.writeToArduino(initString[i]);
-            validator = serManager.getReply();
-
-            if (validator.equals("{}\n")) {
-                continue;
-            } else {
+        // piezo, white led, rgb blue, rgb green, rgb red
+        for (int pin : OUTPUT_PINS) {
+            replies.add(pipeline.submit("init", codec.encodeMode(pin, true)));
+            replies.add(pipeline.submit("init",
+                    codec.encodeWrite(pin, JsonCodec.TYPE_DIGITAL, 0)));
+            shadow.wrote(pin, LEDDIGITAL, 0);
+        }
+
+        for (PendingReply reply : replies) {
+            if (!reply.awaitAck()) {
+                shadow.invalidate();
                 return false;
             }
         }
-        System.out.println("end init - initialized "+ i + " items");
+        System.out.println("end init - initialized " + replies.size() + " items");
+
+        return true;
+    }
 
+    /**
+     * Set up the pins of a profile with a single command and one combined
+     * reply. The sketch skips a profile it already has.
+     *
+     * @param profile
+     * @return false if any pin could not be set up
+     */
+    boolean configureArduino(PinProfile profile) {
+        shadow.invalidate();
+        byte[] ardReply = pipeline.submit("config", codec.encodeConfig(profile))
+                .awaitBytes();
+        if (ardReply == null) {
+            return false; // the board did not answer
+        }
+        PinProfile.Result result = codec.parseConfigured(ardReply, 0, ardReply.length);
+        System.out.println("end init - " + result);
+        if (result.failed != 0 || result.profile != profile.getId()) {
+            return false;
+        }
+        if (result.skipped) {
+            // the pins were set up earlier and may have been written since,
+            // so the shadow stays empty
+            return true;
+        }
+        for (int pin = 0; pin < PinProfile.MAX_PINS; pin++) {
+            int bit = 1 << pin;
+            if (((profile.getInputs() | profile.getOutputs()) & bit) != 0) {
+                shadow.wrote(pin, LEDDIGITAL, 0);
+            }
+        }
         return true;
     }
 
     // handle the piezo command
-    String piezoTone(int freq, int duration) {
-        String rString = "{\"write\":{\"type\":\"piezo\", \"value\":";
-        rString += String.valueOf(freq);
-        rString += "\"pin\":";
-        rString += String.valueOf(duration);
-        rString += "}}";
-        return rString;
+    byte[] piezoTone(int freq, int duration) {
+        return codec.encodePiezo(freq, duration);
     }
 
     // handle the servo command
-    String servo(int servoDegrees) {
-        String pre = "{\"write\":{\"type\":\"servo\", \"pin\":5\"value\":";
-        String servoMotion = String.valueOf(servoDegrees);
-        pre += servoMotion;
-        pre += "}}";
-        return pre;
+    byte[] servo(int servoDegrees) {
+        return codec.encodeServo(servoDegrees);
     }
 
     // handle the relay command
-    String relay(int relayState) {
+    byte[] relay(int relayState) {
         if (relayState != 0) {
             relayState = 1;
         }
-        String pre = "{\"write\":{\"type\":\"digital\", \"pin\":2\"value\":";
-        pre += String.valueOf(relayState);
-        pre += "}}";
-        return pre;
+        return codec.encodeWrite(RELAY, JsonCodec.TYPE_DIGITAL, relayState);
     }
 
-    // convert arduino json string to scratch json string
-    String convertAJSONtoSJSON(String ardReply, int replyIndex) {
-
-        JSONObject fromAmsgObj;     // from arduino
-        JSONObject toSmsgObj;       // to scratch
-        JSONArray jArray;           // working array
-        JSONArray outer, outer2;    // for nested arrays
-        fromAmsgObj = new JSONObject(ardReply);  // arduino reply
-        toSmsgObj = new JSONObject(); // to scratch
-        jArray = new JSONArray();     // working array
-        outer = new JSONArray();      // nested working arrays
-        outer2 = new JSONArray();
-        String scratchType = "";     // scratch command id
-        String scrReply;             // scratch reply string
-
-        JSONObject info;
-
-        // extract the pin and pin value from the json string
-        info = fromAmsgObj.getJSONObject("pinValue");
-        int pinValue = info.getInt("value");
-        int pin = info.getInt("pin");
-
-        // save the new readings from arduino to report back to scratch
-        sensorReadings[pin] = pinValue;
-        String type;
-        type = info.getString("type");
-
-        // handle the reporters
-        switch (pin) {
-            case POTENTIOMETER:
-                scratchType = "potVal";
-                break;
-            case HALL_EFFECT:
-                scratchType = "hallVal";
-                break;
-            case THERMISTOR:
-                scratchType = "thermVal";
-                break;
-            case PHOTO_CELL:
-                scratchType = "photoVal";
-                break;
-            case PUSH_BUTTON:
-                scratchType = "buttonVal";
-                break;
-            case SLIDE_SWITCH:
-                scratchType = "switchVal";
-                break;
-            case ENCODER:
-                scratchType = "encoderVal";
-                break;
-            default:
-                System.out.println("Unknown pin value: " + pin);
-                break;
+    // convert the arduino readings to a scratch json string
+    // all changed reporters go out in one update message that is left in
+    // the codec's output buffer - if nothing changed 0 is returned
+    int convertAJSONtoSJSON(SensorSnapshot snapshot) {
+        int changed = 0;
+        for (int i = 0; i < NUM_SENSORS; i++) {
+            if (snapshot.has(i)
+                    && reporterFilter.changed(i, snapshot.getValue(i))) {
+                changed |= 1 << i;
+            }
         }
-
-        // build the json output to send to scratch
-        jArray = jArray.put(0, scratchType);
-
-        jArray = jArray.put(1, pinValue);
-        outer = outer.put(0, jArray);
-
-        toSmsgObj = toSmsgObj.put("method", "update");
-        // toSmsgObj = toSmsgObj.put("params", jArray) ;
-        toSmsgObj = toSmsgObj.put("params", outer);
-        //toSmsgObj = toSmsgObj.put("params", outer2) ;
-        scrReply = toSmsgObj.toString();
-        scrReply += "\n";
-        //System.out.println("Reply String: "+ scrReply) ;
-        return scrReply;
+        if (changed == 0) {
+            return 0;
+        }
+        return scratchCodec.encodeUpdate(snapshot.values, changed);
     }
 }
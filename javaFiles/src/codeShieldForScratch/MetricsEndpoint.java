@@ -0,0 +1,94 @@
+/*
+ Scratch 2.0 Hardware Extension for the CodeShield Arduino Interface.
+
+ Written by Alan Yorinks
+ Copyright (c) 2013 Alan Yorinks All right reserved.
+
+ This program is free software; you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public
+ License as published by the Free Software Foundation; either
+ version 2.1 of the License, or (at your option) any later version.
+
+ This library is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ Lesser General Public License for more details.
+
+ You should have received a copy of the GNU Lesser General Public
+ License along with this library; if not, write to the Free Software
+ Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package codeShieldForScratch;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Serves the metrics of every board as plain text, for example with
+ * "curl http://127.0.0.1:50208/". It only listens on the loopback address
+ * so nothing is shown to the rest of the classroom network.
+ *
+ * @author afy
+ */
+public class MetricsEndpoint implements HttpHandler {
+
+    public static int PORT = 50208; // 0 turns the endpoint off
+    CopyOnWriteArrayList<BridgeMetrics> boards = new CopyOnWriteArrayList<>();
+    HttpServer server = null;
+
+    // show this board's metrics too
+    public void add(BridgeMetrics metrics) {
+        boards.add(metrics);
+    }
+
+    /**
+     * Start serving on PORT
+     *
+     * @return false if the port could not be opened
+     */
+    public boolean start() {
+        if (PORT == 0) {
+            return false;
+        }
+        try {
+            server = HttpServer.create(new InetSocketAddress(
+                    InetAddress.getLoopbackAddress(), PORT), 0);
+        } catch (IOException ex) {
+            System.out.println("Metrics endpoint not started on port " + PORT
+                    + ": " + ex);
+            return false;
+        }
+        server.createContext("/", this);
+        server.start();
+        System.out.println("Metrics on http://127.0.0.1:" + PORT + "/");
+        return true;
+    }
+
+    public void stop() {
+        if (server != null) {
+            server.stop(0);
+            server = null;
+        }
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        StringBuilder text = new StringBuilder();
+        for (BridgeMetrics metrics : boards) {
+            text.append(metrics).append('\n');
+        }
+        byte[] body = text.toString().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+}
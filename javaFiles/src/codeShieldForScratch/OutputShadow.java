@@ -0,0 +1,152 @@
+/*
+ Scratch 2.0 Hardware Extension for the CodeShield Arduino Interface.
+
+ Written by Alan Yorinks
+ Copyright (c) 2013 Alan Yorinks All right reserved.
+
+ This program is free software; you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public
+ License as published by the Free Software Foundation; either
+ version 2.1 of the License, or (at your option) any later version.
+
+ This library is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ Lesser General Public License for more details.
+
+ You should have received a copy of the GNU Lesser General Public
+ License along with this library; if not, write to the Free Software
+ Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package codeShieldForScratch;
+
+/**
+ * Remembers the last value written to each CodeShield output pin, so a
+ * write that would leave the hardware as it is never goes out on the
+ * serial link. Pin modes are only set when the board is initialized, and
+ * all of those are always sent.
+ *
+ * Only the scheduler thread uses the shadow. Everything it knows is
+ * forgotten when the board resets, when a command fails, and when the pins
+ * are initialized again. A reset is seen from the sketch's ready banner, or
+ * when the banner is garbled because the link had been raised to a faster
+ * rate, from the commands the board then leaves unanswered. Either way the
+ * board is opened again and its pins set up again (see BoardContext).
+ *
+ * @author afy
+ */
+public class OutputShadow {
+
+    static final int UNKNOWN = -1;
+    // the pins initArduino sets up that we write to
+    public static final int[] SHADOWED_PINS = {
+        MessageTranslator.RELAY, MessageTranslator.PIEZO, MessageTranslator.SERVO,
+        MessageTranslator.WHITE_LED, MessageTranslator.RGB_BLUE,
+        MessageTranslator.RGB_GREEN, MessageTranslator.RGB_RED
+    };
+    SerialManager serManager;  // tells us about board resets
+    int resetCount;            // board resets when the shadow was last valid
+    boolean[] shadowed = new boolean[MessageTranslator.MAX_NUM_SENSORS];
+    int[] type = new int[MessageTranslator.MAX_NUM_SENSORS];  // LEDDIGITAL or LEDPWM
+    int[] value = new int[MessageTranslator.MAX_NUM_SENSORS];
+    volatile long writesSkipped = 0;
+    volatile long writesSent = 0;
+
+    // constructor
+    public OutputShadow(SerialManager serManager) {
+        this.serManager = serManager;
+        for (int pin : SHADOWED_PINS) {
+            shadowed[pin] = true;
+        }
+        invalidate();
+    }
+
+    /**
+     * Check if a pin write would change anything. Counts the write as sent
+     * or skipped.
+     *
+     * @param pin arduino pin
+     * @param writeType LEDDIGITAL or LEDPWM
+     * @param writeValue the value to write
+     * @return false if the pin already holds the value
+     */
+    public boolean needsWrite(int pin, int writeType, int writeValue) {
+        checkReset();
+        if (isKnown(pin) && sameOutput(pin, writeType, writeValue)) {
+            writesSkipped++;
+            return false;
+        }
+        writesSent++;
+        return true;
+    }
+
+    // same as needsWrite() for a single command that sets all three rgb leds
+    public boolean needsRgb(int writeType, int red, int green, int blue) {
+        checkReset();
+        if (isKnown(MessageTranslator.RGB_RED)
+                && isKnown(MessageTranslator.RGB_GREEN)
+                && isKnown(MessageTranslator.RGB_BLUE)
+                && sameOutput(MessageTranslator.RGB_RED, writeType, red)
+                && sameOutput(MessageTranslator.RGB_GREEN, writeType, green)
+                && sameOutput(MessageTranslator.RGB_BLUE, writeType, blue)) {
+            writesSkipped++;
+            return false;
+        }
+        writesSent++;
+        return true;
+    }
+
+    // the write was sent
+    public void wrote(int pin, int writeType, int writeValue) {
+        if (shadowed(pin)) {
+            type[pin] = writeType;
+            value[pin] = writeValue;
+        }
+    }
+
+    // something other than a plain write drove the pin - the servo
+    public void forget(int pin) {
+        if (shadowed(pin)) {
+            value[pin] = UNKNOWN;
+        }
+    }
+
+    // forget everything
+    public final void invalidate() {
+        for (int pin = 0; pin < value.length; pin++) {
+            value[pin] = UNKNOWN;
+        }
+        if (serManager != null) {
+            resetCount = serManager.getResetCount();
+        }
+    }
+
+    boolean shadowed(int pin) {
+        return pin >= 0 && pin < shadowed.length && shadowed[pin];
+    }
+
+    boolean isKnown(int pin) {
+        return shadowed(pin) && value[pin] != UNKNOWN;
+    }
+
+    // an analog 0 and a digital 0 both leave the pin low with pwm off
+    boolean sameOutput(int pin, int writeType, int writeValue) {
+        if (writeValue == 0 && value[pin] == 0) {
+            return true;
+        }
+        return type[pin] == writeType && value[pin] == writeValue;
+    }
+
+    // a board reset puts every pin back to its power up state
+    void checkReset() {
+        if (serManager != null && serManager.getResetCount() != resetCount) {
+            System.out.println("Arduino was reset - output shadow cleared");
+            invalidate();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "Output writes skipped: " + writesSkipped + " sent: " + writesSent;
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ Scratch 2.0 Hardware Extension for the CodeShield Arduino Interface.
+
+ Written by Alan Yorinks
+ Copyright (c) 2013 Alan Yorinks All right reserved.
+
+ This program is free software; you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public
+ License as published by the Free Software Foundation; either
+ version 2.1 of the License, or (at your option) any later version.
+
+ This library is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ Lesser General Public License for more details.
+
+ You should have received a copy of the GNU Lesser General Public
+ License along with this library; if not, write to the Free Software
+ Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package codeShieldForScratch;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The Arduino reply to one command sent through the SerialPipeline.
+ *
+ * A reply can be waited for, or handed to a FrameListener as soon as it
+ * arrives so that no thread waits for it at all. If the board does not
+ * answer in time the reply fails instead: the pipeline gives up on it and
+ * marks the board as failed, and the bridge carries on.
+ *
+ * @author afy
+ */
+public class PendingReply {
+
+    String command;     // what was sent - used for error reports
+    int length;         // number of bytes sent
+    long sentAt;        // System.nanoTime() when the command was written
+    SerialPipeline pipeline; // gives up on the reply if it is late
+    FrameListener listener; // gets the reply when it arrives, or null
+    volatile byte[] reply = null;
+    volatile boolean failed = false; // given up on - there will be no reply
+    CountDownLatch done = new CountDownLatch(1);
+
+    // constructor
+    PendingReply(String command, int length, SerialPipeline pipeline,
+            FrameListener listener) {
+        this.command = command;
+        this.length = length;
+        this.pipeline = pipeline;
+        this.listener = listener;
+    }
+
+    // called by the pipeline when the matching frame arrives - the listener
+    // is done with it before the reply counts as done
+    void complete(byte[] reply) {
+        this.reply = reply;
+        try {
+            if (listener != null) {
+                listener.frameReceived(reply, 0, reply.length);
+            }
+        } finally {
+            done.countDown();
+        }
+    }
+
+    // called by the pipeline when it gives up on the reply
+    void fail() {
+        failed = true;
+        done.countDown();
+    }
+
+    /**
+     * Wait for the reply. If the Arduino does not answer within
+     * REPLY_TIMEOUT the board is marked as failed.
+     *
+     * @return the reply frame including its terminator, or null if there
+     * was none
+     */
+    public byte[] awaitBytes() {
+        try {
+            if (done.await(SerialManager.REPLY_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                return reply;
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        pipeline.timedOut(this);
+        return reply; // it may have arrived just now
+    }
+
+    // wait for the reply and check that it is the empty json acknowledgement
+    public boolean awaitAck() {
+        return isAck(awaitBytes());
+    }
+
+    // check without waiting if the reply is later than REPLY_TIMEOUT
+    public boolean isOverdue(long now) {
+        return !isDone()
+                && now - sentAt > SerialManager.REPLY_TIMEOUT * 1000000L;
+    }
+
+    // the reply as a string for error reports - empty if not here yet
+    public String getReplyString() {
+        if (failed) {
+            return "no reply to " + command;
+        }
+        return isDone() ? toString(reply) : "";
+    }
+
+    // check for {} followed by the line terminator, or the binary ack
+    static boolean isAck(byte[] frame) {
+        if (frame == null) {
+            return false;
+        }
+        int length = frame.length;
+        if (length == 2 && (frame[0] & 0xFF) == BinaryCodec.SYNC) {
+            return frame[1] == 0;
+        }
+        while (length > 0 && (frame[length - 1] == '\n' || frame[length - 1] == '\r')) {
+            length--;
+        }
+        return length == 2 && frame[0] == '{' && frame[1] == '}';
+    }
+
+    static String toString(byte[] frame) {
+        return new String(frame, StandardCharsets.ISO_8859_1);
+    }
+
+    // check if the reply has arrived or been given up on
+    public boolean isDone() {
+        return done.getCount() == 0;
+    }
+
+    // check if the reply was given up on
+    public boolean isFailed() {
+        return failed;
+    }
+}
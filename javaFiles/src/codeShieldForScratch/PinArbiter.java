@@ -0,0 +1,147 @@
+/*
+ Scratch 2.0 Hardware Extension for the CodeShield Arduino Interface.
+
+ Written by Alan Yorinks
+ Copyright (c) 2013 Alan Yorinks All right reserved.
+
+ This program is free software; you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public
+ License as published by the Free Software Foundation; either
+ version 2.1 of the License, or (at your option) any later version.
+
+ This library is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ Lesser General Public License for more details.
+
+ You should have received a copy of the GNU Lesser General Public
+ License along with this library; if not, write to the Free Software
+ Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package codeShieldForScratch;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Keeps track of which role the shared CodeShield pins have at the moment.
+ *
+ * The relay and the potentiometer share pin 2, the piezo and the hall
+ * effect sensor pin 3, the servo and the photocell pin 5. While an
+ * actuator drives one of these pins, whatever is read there is meaningless
+ * and reading it may disturb the actuator. The commands claim the pin for
+ * as long as the actuator needs it, and the sampler neither reads the
+ * reporter on a claimed pin nor takes a reading of it that arrives then -
+ * Scratch keeps the last valid value and the link time goes to the
+ * reporters that are still live.
+ *
+ * Pins are claimed on the scheduler thread and checked by whichever
+ * thread takes the samples.
+ *
+ * @author afy
+ */
+public class PinArbiter {
+
+    public static int MARGIN = 100;    // msec a pin settles after an actuator let go
+    public static final int SERVO_MS = 700; // the sketch attaches, moves and detaches
+    static final long FOREVER = Long.MAX_VALUE;
+    // nanoTime until which each reporter's pin belongs to an actuator
+    AtomicLongArray busyUntil = new AtomicLongArray(MessageTranslator.NUM_SENSORS);
+    BridgeMetrics metrics;
+
+    // constructor
+    public PinArbiter(BridgeMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    // the reporter that shares a pin, -1 if none does
+    static int reporterOn(int pin) {
+        for (int i = 0; i < MessageTranslator.REPORTER_PINS.length; i++) {
+            if (MessageTranslator.REPORTER_PINS[i] == pin) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * An actuator takes a pin for a while, for example for a tone
+     *
+     * @param pin the actuator pin
+     * @param millis how long it needs the pin
+     */
+    public void claim(int pin, long millis) {
+        int reporter = reporterOn(pin);
+        if (reporter < 0) {
+            return;
+        }
+        long until = System.nanoTime() + (Math.max(0, millis) + MARGIN) * 1000000L;
+        // a longer claim, or a hold, is not cut short
+        while (true) {
+            long current = busyUntil.get(reporter);
+            if (current == FOREVER || (current != 0 && current - until >= 0)) {
+                return;
+            }
+            if (busyUntil.compareAndSet(reporter, current, until)) {
+                return;
+            }
+        }
+    }
+
+    // an actuator takes a pin until it is released - the relay while on
+    public void hold(int pin) {
+        int reporter = reporterOn(pin);
+        if (reporter >= 0) {
+            busyUntil.set(reporter, FOREVER);
+        }
+    }
+
+    // an actuator gives a held pin back - it is read again once settled
+    public void release(int pin) {
+        int reporter = reporterOn(pin);
+        if (reporter >= 0) {
+            busyUntil.compareAndSet(reporter, FOREVER,
+                    System.nanoTime() + MARGIN * 1000000L);
+        }
+    }
+
+    /**
+     * The reporters whose pins an actuator has
+     *
+     * @param now System.nanoTime()
+     * @return mask indexed like REPORTER_NAMES
+     */
+    public int busyMask(long now) {
+        int mask = 0;
+        for (int i = 0; i < busyUntil.length(); i++) {
+            long until = busyUntil.get(i);
+            if (until == FOREVER || (until != 0 && now - until < 0)) {
+                mask |= 1 << i;
+            }
+        }
+        return mask;
+    }
+
+    /**
+     * Take out the readings of reporters whose pins are busy, putting back
+     * the last valid values
+     *
+     * @param mask the reporters read
+     * @param values the readings - busy ones are overwritten
+     * @param previous the snapshot with the last valid values
+     * @param now System.nanoTime()
+     * @return the mask without the busy reporters
+     */
+    public int dropBusy(int mask, int[] values, SensorSnapshot previous, long now) {
+        int busy = mask & busyMask(now);
+        if (busy == 0) {
+            return mask;
+        }
+        for (int i = 0; i < values.length; i++) {
+            if ((busy & (1 << i)) != 0) {
+                values[i] = previous.values[i];
+                metrics.readingHeld();
+            }
+        }
+        return mask & ~busy;
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ Scratch 2.0 Hardware Extension for the CodeShield Arduino Interface.
+
+ Written by Alan Yorinks
+ Copyright (c) 2013 Alan Yorinks All right reserved.
+
+ This program is free software; you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public
+ License as published by the Free Software Foundation; either
+ version 2.1 of the License, or (at your option) any later version.
+
+ This library is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ Lesser General Public License for more details.
+
+ You should have received a copy of the GNU Lesser General Public
+ License along with this library; if not, write to the Free Software
+ Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package codeShieldForScratch;
+
+/**
+ * How the Arduino pins are set up for a shield, given as pin masks: bit n
+ * stands for pin n.
+ *
+ * The whole profile goes to the sketch as a single config command. The
+ * sketch remembers the id of the last profile it applied and skips one it
+ * already has.
+ *
+ * @author afy
+ */
+public class PinProfile {
+
+    public static final int MAX_PINS = 16;
+    // the CodeShield - plain inputs, inputs with their pull up turned on
+    // (encoder a and b) and outputs that start out low
+    public static final PinProfile CODESHIELD = new PinProfile(
+            mask(MessageTranslator.INPUT_PINS),
+            mask(MessageTranslator.PULLUP_PINS),
+            mask(MessageTranslator.OUTPUT_PINS));
+    int inputs;
+    int pullups;
+    int outputs;
+    int id;
+
+    /**
+     * What the sketch says about a config command
+     */
+    public static class Result {
+
+        public int profile;  // id of the profile the sketch has now
+        public int failed;   // mask of pins that could not be set up
+        public boolean skipped; // the sketch already had the profile
+
+        @Override
+        public String toString() {
+            return "profile " + profile + (skipped ? " already set" : " set")
+                    + (failed != 0 ? ", failed pins " + pinList(failed) : "");
+        }
+    }
+
+    // constructor
+    public PinProfile(int inputs, int pullups, int outputs) {
+        this.inputs = inputs;
+        this.pullups = pullups;
+        this.outputs = outputs;
+        // any 15 bit value works as long as different profiles differ
+        int hash = ((inputs * 31) + pullups) * 31 + outputs;
+        this.id = ((hash ^ (hash >>> 15)) & 0x7FFF) | 1;
+    }
+
+    public int getInputs() {
+        return inputs;
+    }
+
+    public int getPullups() {
+        return pullups;
+    }
+
+    public int getOutputs() {
+        return outputs;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    // number of mode and write steps the profile takes on the board
+    public int getStepCount() {
+        return Integer.bitCount(inputs) + 2 * Integer.bitCount(pullups)
+                + 2 * Integer.bitCount(outputs);
+    }
+
+    static int mask(int[] pins) {
+        int mask = 0;
+        for (int pin : pins) {
+            mask |= 1 << pin;
+        }
+        return mask;
+    }
+
+    static String pinList(int mask) {
+        StringBuilder pins = new StringBuilder();
+        for (int pin = 0; pin < MAX_PINS; pin++) {
+            if ((mask & (1 << pin)) != 0) {
+                if (pins.length() > 0) {
+                    pins.append(',');
+                }
+                pins.append(pin);
+            }
+        }
+        return pins.toString();
+    }
+}
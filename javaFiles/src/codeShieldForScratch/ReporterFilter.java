@@ -0,0 +1,110 @@
+/*
+ Scratch 2.0 Hardware Extension for the CodeShield Arduino Interface.
+
+ Written by Alan Yorinks
+ Copyright (c) 2013 Alan Yorinks All right reserved.
+
+ This program is free software; you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public
+ License as published by the Free Software Foundation; either
+ version 2.1 of the License, or (at your option) any later version.
+
+ This library is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ Lesser General Public License for more details.
+
+ You should have received a copy of the GNU Lesser General Public
+ License along with this library; if not, write to the Free Software
+ Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package codeShieldForScratch;
+
+/**
+ * Decides which reporter values are worth sending to Scratch.
+ *
+ * A value is sent when it differs from the last value sent for that
+ * reporter by more than the reporter's deadband. Analog reporters get a
+ * deadband to hide ADC noise, the digital inputs and the encoder must match
+ * exactly.
+ *
+ * @author afy
+ */
+public class ReporterFilter {
+
+    // defaults for the analog reporters - either may be 0
+    public static int ANALOG_DEADBAND = 2;          // absolute adc counts
+    public static int ANALOG_DEADBAND_PERCENT = 0;  // percent of last value
+    // the pot, hall effect, thermistor and photocell are analog
+    public static final int NUM_ANALOG_REPORTERS = 4;
+    int[] lastSent = new int[MessageTranslator.NUM_SENSORS];
+    boolean[] everSent = new boolean[MessageTranslator.NUM_SENSORS];
+    int[] absoluteBand = new int[MessageTranslator.NUM_SENSORS];
+    int[] percentBand = new int[MessageTranslator.NUM_SENSORS];
+    long updatesSent = 0;       // reporter values passed on to scratch
+    long updatesSuppressed = 0; // reporter values that did not change enough
+
+    // constructor
+    public ReporterFilter() {
+        for (int i = 0; i < NUM_ANALOG_REPORTERS; i++) {
+            absoluteBand[i] = ANALOG_DEADBAND;
+            percentBand[i] = ANALOG_DEADBAND_PERCENT;
+        }
+    }
+
+    /**
+     * Set the deadband of one reporter. The larger of the two bands is used.
+     *
+     * @param reporter index into MessageTranslator.REPORTER_NAMES
+     * @param absolute change that is ignored, in reporter units
+     * @param percent change that is ignored, in percent of the last value
+     */
+    public void setDeadband(int reporter, int absolute, int percent) {
+        absoluteBand[reporter] = Math.max(0, absolute);
+        percentBand[reporter] = Math.max(0, percent);
+    }
+
+    /**
+     * Check a reporter value and remember it if it is going to be sent
+     *
+     * @param reporter index into MessageTranslator.REPORTER_NAMES
+     * @param value the new reading
+     * @return true if the value should be sent to scratch
+     */
+    public boolean changed(int reporter, int value) {
+        if (everSent[reporter]) {
+            int last = lastSent[reporter];
+            long band = Math.max(absoluteBand[reporter],
+                    (long) Math.abs(last) * percentBand[reporter] / 100);
+            if (Math.abs((long) value - last) <= band) {
+                updatesSuppressed++;
+                return false;
+            }
+        }
+        lastSent[reporter] = value;
+        everSent[reporter] = true;
+        updatesSent++;
+        return true;
+    }
+
+    // forget what was sent so that every reporter is sent again
+    public void reset() {
+        for (int i = 0; i < everSent.length; i++) {
+            everSent[i] = false;
+        }
+    }
+
+    public long getUpdatesSent() {
+        return updatesSent;
+    }
+
+    public long getUpdatesSuppressed() {
+        return updatesSuppressed;
+    }
+
+    @Override
+    public String toString() {
+        return "Reporter updates sent: " + updatesSent
+                + " suppressed: " + updatesSuppressed;
+    }
+}
@@ -23,6 +23,13 @@
 package codeShieldForScratch;
 
 import codeShieldForScratch.SerialManager.*;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Properties;
+import java.util.TreeSet;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
  * Scratch Hardware Extension to communicate with Arduino
@@ -31,6 +38,9 @@ import codeShieldForScratch.SerialManager.*;
  */
 public class ScratchArduinoExtension {
 
+    static final int NO_BOARD = 1;    // exit status when no board came up
+    static final int USAGE_ERROR = 2; // exit status for a bad command line
+
     /**
      * @param args the command line arguments
      *
@@ -48,21 +58,204 @@ public class ScratchArduinoExtension {
             System.out.println("Comport = " + MessageTranslator.COMMPORT);
         }
 
-        // create the serial manager
+        // everything after the comport is an optional --name=value setting
+        String recordFile = null;
+        int skipped = 0;
+        for (int i = 1; i < args.length; i++) {
+            String arg = args[i];
+            int equals = arg.indexOf('=');
+            if (!arg.startsWith("--") || equals < 0) {
+                usage("Not a setting: " + arg);
+            }
+            String name = arg.substring(2, equals);
+            String value = arg.substring(equals + 1);
+            try {
+                switch (name) {
+                    // msec between sensor samples
+                    case "sample":
+                        MessageTranslator.SAMPLE_INTERVAL = Integer.parseInt(value);
+                        break;
+                    // analog deadband - a trailing % makes it relative to
+                    // the last value sent
+                    case "deadband":
+                        if (value.endsWith("%")) {
+                            ReporterFilter.ANALOG_DEADBAND = 0;
+                            ReporterFilter.ANALOG_DEADBAND_PERCENT = Integer.parseInt(
+                                    value.substring(0, value.length() - 1));
+                        } else {
+                            ReporterFilter.ANALOG_DEADBAND = Integer.parseInt(value);
+                        }
+                        break;
+                    // json forces the json serial protocol even if the
+                    // sketch knows the binary one
+                    case "protocol":
+                        SerialManager.TRY_BINARY = !value.equalsIgnoreCase("json");
+                        break;
+                    // highest baud rate the link calibration may try -
+                    // 57600 turns calibration off
+                    case "max-baud":
+                        SerialManager.MAX_BAUD = Integer.parseInt(value);
+                        break;
+                    // port of the plain text metrics - 0 turns them off
+                    case "metrics-port":
+                        MetricsEndpoint.PORT = Integer.parseInt(value);
+                        break;
+                    // file to record the sensor samples to - replay them
+                    // later with replay:FILE as the comport
+                    case "record":
+                        recordFile = value;
+                        break;
+                    // reporters the Scratch project does not use, for
+                    // example switch,encoder - they are never read
+                    case "skip":
+                        skipped = SensorSampler.parseReporters(value);
+                        break;
+                    default:
+                        usage("Unknown setting: " + arg);
+                }
+            } catch (NumberFormatException ex) {
+                usage("Not a number: " + arg);
+            }
+        }
 
-        // create the serial manager
-        boolean rVal;
+        // read the command blocks from codeShield.json now, so problems
+        // with it show before Scratch connects
+        CommandRegistry.getDefault();
 
-        SerialManager serialManager = new SerialManager(MessageTranslator.COMMPORT);
+        // a .properties file in place of the comport lists several boards
+        ArrayList<BoardContext> boards;
+        if (MessageTranslator.COMMPORT.endsWith(".properties")) {
+            boards = readBoards(MessageTranslator.COMMPORT);
+        } else {
+            boards = new ArrayList<>();
+            boards.add(BoardContext.create(MessageTranslator.COMMPORT,
+                    MessageTranslator.Port, MessageTranslator.SAMPLE_INTERVAL));
+            boards.get(0).setRecordFile(recordFile);
+            boards.get(0).setSkipped(skipped);
+        }
+        SharedExecutors.SAMPLER_THREADS = Math.max(2, boards.size() / 2);
 
-        // open the serial port
-        rVal = serialManager.open();
+        // open the serial ports - side by side, as each board takes a
+        // while to calibrate. A board that does not come up is left out
+        // and the others are served
+        boards = openBoards(boards);
+        if (boards.isEmpty()) {
+            System.out.println("No board answered - nothing to serve");
+            System.exit(NO_BOARD);
+        }
 
+        // show what the bridge is doing over JMX and on a local web page
+        MetricsEndpoint endpoint = new MetricsEndpoint();
         // open the TCP Server Socket
-        // the server manager will instantiate the message handler
-        // in its own thread
-        TCPServerManager tsm;
-        tsm = new TCPServerManager(MessageTranslator.Port, serialManager);
+        // the server manager creates a message handler for each
+        // client and serves them all from one thread
+        TCPServerManager tsm = new TCPServerManager();
+        for (BoardContext board : boards) {
+            board.getMetrics().register();
+            endpoint.add(board.getMetrics());
+            tsm.addBoard(board.getTcpPort(), board.getScheduler(),
+                    board.getSampler());
+        }
+        endpoint.start();
         tsm.openSocketServer();
     }
+
+    // report a bad command line and stop - with a failure status, so that
+    // scripts starting the bridge see it
+    static void usage(String problem) {
+        System.out.println(problem);
+        System.out.println("usage: ScratchCodeShield YOUR_SERIAL_PORT [--sample=MSEC]"
+                + " [--deadband=COUNTS[%]] [--protocol=binary|json] [--max-baud=BAUD]"
+                + " [--metrics-port=PORT] [--record=FILE] [--skip=REPORTERS]");
+        System.exit(USAGE_ERROR);
+    }
+
+    /**
+     * Read the boards from a properties file. Each board has a name and
+     * up to three settings:
+     * <pre>
+     *   board.NAME.port=/dev/ttyACM0   serial port, or sim
+     *   board.NAME.tcp=50207           port its Scratch clients connect to
+     *   board.NAME.sample=50           msec between sensor samples
+     *   board.NAME.record=desk1.rec    file to record the samples to
+     *   board.NAME.skip=switch,encoder reporters that are never read
+     * </pre>
+     * Boards are opened in name order. Without a tcp port they get
+     * consecutive ports from 50207.
+     *
+     * @param fileName
+     * @return the boards, not opened yet
+     */
+    static ArrayList<BoardContext> readBoards(String fileName) {
+        Properties config = new Properties();
+        try (FileInputStream in = new FileInputStream(fileName)) {
+            config.load(in);
+        } catch (IOException ex) {
+            Logger.getLogger(ScratchArduinoExtension.class.getName()).log(Level.SEVERE, null, ex);
+            System.exit(0);
+        }
+        TreeSet<String> names = new TreeSet<>();
+        for (String key : config.stringPropertyNames()) {
+            String[] parts = key.split("\\.");
+            if (parts.length == 3 && parts[0].equals("board")) {
+                names.add(parts[1]);
+            }
+        }
+        ArrayList<BoardContext> boards = new ArrayList<>();
+        for (String name : names) {
+            String prefix = "board." + name + ".";
+            String comPort = config.getProperty(prefix + "port");
+            if (comPort == null) {
+                System.out.println("No port for board " + name + " - skipped");
+                continue;
+            }
+            int tcpPort = Integer.parseInt(config.getProperty(prefix + "tcp",
+                    Integer.toString(MessageTranslator.Port + boards.size())));
+            int sample = Integer.parseInt(config.getProperty(prefix + "sample",
+                    Integer.toString(MessageTranslator.SAMPLE_INTERVAL)));
+            BoardContext board = BoardContext.create(comPort.trim(), tcpPort, sample);
+            board.setRecordFile(config.getProperty(prefix + "record"));
+            board.setSkipped(SensorSampler.parseReporters(
+                    config.getProperty(prefix + "skip", "")));
+            boards.add(board);
+            System.out.println("Board " + name + ": " + comPort + " on port " + tcpPort);
+        }
+        return boards;
+    }
+
+    // open every board on a thread of its own and wait for them all - the
+    // boards that came up are returned
+    static ArrayList<BoardContext> openBoards(ArrayList<BoardContext> boards) {
+        final ArrayList<BoardContext> opened = new ArrayList<>();
+        ArrayList<Thread> threads = new ArrayList<>();
+        for (final BoardContext board : boards) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    if (board.open()) {
+                        synchronized (opened) {
+                            opened.add(board);
+                        }
+                    } else {
+                        System.out.println("Board on " + board.getComPort()
+                                + " did not answer properly - not served");
+                    }
+                }
+            }, "open " + board.getComPort());
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException ex) {
+                Logger.getLogger(ScratchArduinoExtension.class.getName()).log(Level.SEVERE, null, ex);
+                System.exit(0);
+            }
+        }
+        // in the order they were given
+        ArrayList<BoardContext> served = new ArrayList<>(boards);
+        served.retainAll(opened);
+        return served;
+    }
 }
@@ -0,0 +1,77 @@
+/*
+ Scratch 2.0 Hardware Extension for the CodeShield Arduino Interface.
+
+ Written by Alan Yorinks
+ Copyright (c) 2013 Alan Yorinks All right reserved.
+
+ This program is free software; you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public
+ License as published by the Free Software Foundation; either
+ version 2.1 of the License, or (at your option) any later version.
+
+ This library is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ Lesser General Public License for more details.
+
+ You should have received a copy of the GNU Lesser General Public
+ License along with this library; if not, write to the Free Software
+ Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package codeShieldForScratch;
+
+/**
+ * One Scratch command block: how many parameters it takes, which device it
+ * drives and what it sends to the Arduino.
+ *
+ * Commands are found by their selector in the CommandRegistry. The device
+ * is what CommandScheduler coalesces on: a newer command for a device
+ * replaces one for the same device that has not been sent yet.
+ *
+ * @author afy
+ */
+public abstract class ScratchCommand {
+
+    static final Object[] NONE = new Object[0];
+    final int paramCount;      // parameters the block sends
+    final Object device;       // null if every command must be sent
+
+    // constructor
+    public ScratchCommand(int paramCount, Object device) {
+        this.paramCount = paramCount;
+        this.device = device;
+    }
+
+    public int getParamCount() {
+        return paramCount;
+    }
+
+    /**
+     * The device a command drives
+     *
+     * @param params the parameters from Scratch
+     * @return the device - a fresh object when the command is never dropped
+     */
+    public Object device(int[] params) {
+        return device != null ? device : new Object();
+    }
+
+    /**
+     * Other devices whose waiting commands this one makes pointless
+     *
+     * @param params the parameters from Scratch
+     * @return the devices, may be empty
+     */
+    public Object[] replaces(int[] params) {
+        return NONE;
+    }
+
+    /**
+     * Send the command to the Arduino and check its reply. Only called on
+     * the board's scheduler thread.
+     *
+     * @param translator the translator of the client that sent it
+     * @param params the parameters from Scratch
+     */
+    public abstract void run(MessageTranslator translator, int[] params);
+}
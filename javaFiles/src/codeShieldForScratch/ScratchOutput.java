@@ -0,0 +1,41 @@
+/*
+ Scratch 2.0 Hardware Extension for the CodeShield Arduino Interface.
+
+ Written by Alan Yorinks
+ Copyright (c) 2013 Alan Yorinks All right reserved.
+
+ This program is free software; you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public
+ License as published by the Free Software Foundation; either
+ version 2.1 of the License, or (at your option) any later version.
+
+ This library is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ Lesser General Public License for more details.
+
+ You should have received a copy of the GNU Lesser General Public
+ License along with this library; if not, write to the Free Software
+ Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package codeShieldForScratch;
+
+import java.io.IOException;
+
+/**
+ * Where the translator sends its messages for one Scratch client
+ *
+ * @author afy
+ */
+public interface ScratchOutput {
+
+    /**
+     * Send a message to Scratch. The bytes are copied before this returns.
+     *
+     * @param buf buffer holding the message
+     * @param offset start of the message
+     * @param length length of the message
+     * @throws IOException
+     */
+    void send(byte[] buf, int offset, int length) throws IOException;
+}
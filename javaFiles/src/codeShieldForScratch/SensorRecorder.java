@@ -0,0 +1,154 @@
+/*
+ Scratch 2.0 Hardware Extension for the CodeShield Arduino Interface.
+
+ Written by Alan Yorinks
+ Copyright (c) 2013 Alan Yorinks All right reserved.
+
+ This program is free software; you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public
+ License as published by the Free Software Foundation; either
+ version 2.1 of the License, or (at your option) any later version.
+
+ This library is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ Lesser General Public License for more details.
+
+ You should have received a copy of the GNU Lesser General Public
+ License along with this library; if not, write to the Free Software
+ Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package codeShieldForScratch;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Writes every reporter sample of a board to a file, so a session can be
+ * replayed into Scratch later without the board (see SensorReplay).
+ *
+ * The file is written through memory mappings: a small header and then
+ * fixed size records, one per sample, appended one after the other.
+ * Writing a sample is a handful of stores into the mapping - nothing is
+ * allocated and there is no system call, and it happens on the thread
+ * that takes the samples, never on the one answering Scratch polls.
+ *
+ * The header holds the number of records and is updated after each one,
+ * so the file is readable even if the bridge is killed. The file grows a
+ * window of records at a time, so its end is padded with empty records
+ * that the count leaves out.
+ *
+ * <pre>
+ *   header  magic "CSREC001", record size, number of sensors,
+ *           start time (msec since 1970), number of records
+ *   record  nsec since recording started, mask of valid values,
+ *           one int per sensor in MessageTranslator.REPORTER_NAMES order
+ * </pre>
+ *
+ * @author afy
+ */
+public class SensorRecorder {
+
+    public static final long MAGIC = 0x4353524543303031L; // "CSREC001"
+    public static final int HEADER_SIZE = 64;
+    public static final int RECORD_SIZE = 12 + 4 * MessageTranslator.NUM_SENSORS;
+    static final int WINDOW_RECORDS = 65536; // records mapped at a time
+    // header layout
+    static final int MAGIC_AT = 0;
+    static final int RECORD_SIZE_AT = 8;
+    static final int SENSORS_AT = 12;
+    static final int START_AT = 16;
+    static final int COUNT_AT = 24;
+    String fileName;
+    RandomAccessFile file;
+    FileChannel channel;
+    MappedByteBuffer header;   // the file header
+    MappedByteBuffer window = null; // where the next records go - null when closed
+    long count = 0;            // records written
+    long startNanos;           // nanoTime when recording started
+
+    /**
+     * Start recording. An existing file of the same name is replaced.
+     *
+     * @param fileName
+     * @throws IOException
+     */
+    public SensorRecorder(String fileName) throws IOException {
+        this.fileName = fileName;
+        file = new RandomAccessFile(fileName, "rw");
+        file.setLength(0);
+        channel = file.getChannel();
+        header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+        header.putLong(MAGIC_AT, MAGIC);
+        header.putInt(RECORD_SIZE_AT, RECORD_SIZE);
+        header.putInt(SENSORS_AT, MessageTranslator.NUM_SENSORS);
+        header.putLong(START_AT, System.currentTimeMillis());
+        header.putLong(COUNT_AT, 0);
+        startNanos = System.nanoTime();
+        mapWindow();
+
+        // make sure everything is on disk when the bridge is stopped
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                close();
+            }
+        }, "close " + fileName));
+        System.out.println("Recording sensor samples to " + fileName);
+    }
+
+    // map the records after the last one written
+    void mapWindow() throws IOException {
+        window = channel.map(FileChannel.MapMode.READ_WRITE,
+                HEADER_SIZE + count * RECORD_SIZE, (long) WINDOW_RECORDS * RECORD_SIZE);
+    }
+
+    /**
+     * Append a sample. Only the thread publishing the snapshots calls this.
+     *
+     * @param snapshot
+     */
+    public synchronized void record(SensorSnapshot snapshot) {
+        if (window == null) {
+            return;
+        }
+        if (!window.hasRemaining()) {
+            try {
+                mapWindow();
+            } catch (IOException ex) {
+                System.err.println("recording to " + fileName + " stopped: " + ex);
+                window = null;
+                return;
+            }
+        }
+        window.putLong(snapshot.timestamp - startNanos);
+        window.putInt(snapshot.mask);
+        for (int value : snapshot.values) {
+            window.putInt(value);
+        }
+        count++;
+        header.putLong(COUNT_AT, count);
+    }
+
+    public synchronized long getCount() {
+        return count;
+    }
+
+    // write everything out and stop recording
+    public synchronized void close() {
+        if (window == null) {
+            return;
+        }
+        window.force();
+        header.force();
+        window = null;
+        try {
+            channel.close();
+        } catch (IOException ex) {
+            System.err.println("problem closing " + fileName + ": " + ex);
+        }
+        System.out.println("Recorded " + count + " sensor samples to " + fileName);
+    }
+}
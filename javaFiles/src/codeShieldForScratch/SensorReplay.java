@@ -0,0 +1,168 @@
+/*
+ Scratch 2.0 Hardware Extension for the CodeShield Arduino Interface.
+
+ Written by Alan Yorinks
+ Copyright (c) 2013 Alan Yorinks All right reserved.
+
+ This program is free software; you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public
+ License as published by the Free Software Foundation; either
+ version 2.1 of the License, or (at your option) any later version.
+
+ This library is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ Lesser General Public License for more details.
+
+ You should have received a copy of the GNU Lesser General Public
+ License along with this library; if not, write to the Free Software
+ Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package codeShieldForScratch;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Plays a file written by SensorRecorder back into Scratch in place of a
+ * board's sensors. The samples are handed to the sampler at the times they
+ * were recorded, or faster, so Scratch polls see them exactly as they would
+ * have seen the board.
+ *
+ * It is selected with a comport of the form replay:FILE, optionally
+ * followed by settings: replay:FILE,speed=4,loop=1. The commands from
+ * Scratch go to the simulated board meanwhile.
+ *
+ * @author afy
+ */
+public class SensorReplay implements Runnable {
+
+    public static final String PREFIX = "replay";
+    String fileName;
+    double speed = 1;          // 2 plays twice as fast as recorded
+    boolean loop = false;      // start over at the end
+    MappedByteBuffer records = null; // the whole recording
+    long count;                // records in the file
+    long next = 0;             // index of the next record to play
+    long firstNanos;           // recorded time of the first record
+    long startNanos;           // nanoTime the replay (or this loop) started
+    SensorSampler sampler = null; // where the samples go
+    ScheduledFuture<?> task = null; // plays the next records when they are due
+
+    // constructor
+    public SensorReplay(String comPort) {
+        String[] parts = comPort.substring(PREFIX.length() + 1).split(",");
+        fileName = parts[0].trim();
+        for (int i = 1; i < parts.length; i++) {
+            String[] pair = parts[i].split("=");
+            if (pair.length != 2) {
+                continue;
+            }
+            switch (pair[0].trim()) {
+                case "speed":
+                    speed = Double.parseDouble(pair[1].trim());
+                    if (speed <= 0) {
+                        speed = 1;
+                    }
+                    break;
+                case "loop":
+                    loop = Integer.parseInt(pair[1].trim()) != 0;
+                    break;
+                default:
+                    System.out.println("Unknown replay setting: " + pair[0]);
+            }
+        }
+    }
+
+    // true if the comport names a recording to replay
+    public static boolean isReplay(String comPort) {
+        return comPort.startsWith(PREFIX + ":");
+    }
+
+    /**
+     * Map the recording and check that it is one
+     *
+     * @throws IOException if the file cannot be read or is not a recording
+     */
+    public void open() throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(fileName, "r")) {
+            FileChannel channel = file.getChannel();
+            if (channel.size() < SensorRecorder.HEADER_SIZE) {
+                throw new IOException(fileName + " is not a sensor recording");
+            }
+            MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY,
+                    0, SensorRecorder.HEADER_SIZE);
+            if (header.getLong(SensorRecorder.MAGIC_AT) != SensorRecorder.MAGIC
+                    || header.getInt(SensorRecorder.RECORD_SIZE_AT) != SensorRecorder.RECORD_SIZE
+                    || header.getInt(SensorRecorder.SENSORS_AT) != MessageTranslator.NUM_SENSORS) {
+                throw new IOException(fileName + " is not a sensor recording");
+            }
+            // a recording cut short may have fewer records than it says
+            count = Math.min(header.getLong(SensorRecorder.COUNT_AT),
+                    (channel.size() - SensorRecorder.HEADER_SIZE) / SensorRecorder.RECORD_SIZE);
+            records = channel.map(FileChannel.MapMode.READ_ONLY,
+                    SensorRecorder.HEADER_SIZE, count * SensorRecorder.RECORD_SIZE);
+        }
+        firstNanos = count > 0 ? records.getLong(0) : 0;
+        System.out.println("Replaying " + count + " sensor samples from "
+                + fileName + " at " + speed + "x" + (loop ? ", looped" : ""));
+    }
+
+    // start handing samples to the sampler - does nothing while playing
+    public synchronized void start(SensorSampler sampler) {
+        if (task != null) {
+            return;
+        }
+        this.sampler = sampler;
+        next = 0;
+        startNanos = System.nanoTime();
+        task = SharedExecutors.samplers().schedule(this, 0, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stop() {
+        if (task != null) {
+            task.cancel(false);
+            task = null;
+        }
+    }
+
+    // nanoTime a record is due
+    long due(long index) {
+        long recorded = records.getLong((int) (index * SensorRecorder.RECORD_SIZE));
+        return startNanos + (long) ((recorded - firstNanos) / speed);
+    }
+
+    // play the records that are due and wait for the next one
+    @Override
+    public synchronized void run() {
+        if (task == null) {
+            return; // stopped
+        }
+        long now = System.nanoTime();
+        while (next < count && due(next) <= now) {
+            int at = (int) (next * SensorRecorder.RECORD_SIZE) + 8;
+            int mask = records.getInt(at);
+            int[] values = new int[MessageTranslator.NUM_SENSORS];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = records.getInt(at + 4 + 4 * i);
+            }
+            sampler.publish(mask, values, now);
+            next++;
+        }
+        if (next >= count) {
+            if (!loop || count == 0) {
+                System.out.println("Replay of " + fileName + " finished");
+                task = null;
+                return;
+            }
+            next = 0;
+            startNanos = now;
+        }
+        task = SharedExecutors.samplers().schedule(this, due(next) - now,
+                TimeUnit.NANOSECONDS);
+    }
+}
@@ -0,0 +1,362 @@
+/*
+ Scratch 2.0 Hardware Extension for the CodeShield Arduino Interface.
+
+ Written by Alan Yorinks
+ Copyright (c) 2013 Alan Yorinks All right reserved.
+
+ This program is free software; you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public
+ License as published by the Free Software Foundation; either
+ version 2.1 of the License, or (at your option) any later version.
+
+ This library is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ Lesser General Public License for more details.
+
+ You should have received a copy of the GNU Lesser General Public
+ License along with this library; if not, write to the Free Software
+ Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package codeShieldForScratch;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Reads all the reporters from the Arduino at a fixed rate on its own thread
+ * and publishes the result as a SensorSnapshot.
+ *
+ * Scratch polls are answered from the latest snapshot, so they never wait
+ * for the serial link. Nor does the sampling thread: it sends a read and
+ * moves on, and the reply is published on the serial event thread when it
+ * arrives. A sample is skipped while the previous read is still
+ * unanswered, and one that stays unanswered for REPLY_TIMEOUT marks the
+ * board as failed (see SerialPipeline).
+ *
+ * Each reporter is read at its own rate. One that changed by more than its
+ * deadband since it was last read is read again at the next sample, one
+ * that did not waits twice as long as before, up to MAX_BACKOFF sample
+ * intervals. Only the reporters that are due are asked for, so a switch
+ * that never moves costs next to nothing and the link is left to the
+ * reporters that are moving. Reporters the Scratch project does not use
+ * can be skipped altogether.
+ *
+ * A reporter whose pin an actuator is using (see PinArbiter) is not read,
+ * and readings of it taken meanwhile are replaced by its last valid value.
+ *
+ * A sketch that supports it is asked to push the reporters by itself
+ * instead. No read commands are sent then, so the samples have the link
+ * back from the board to themselves and the commands from Scratch no
+ * longer queue up behind reads. The sampling thread only checks that the
+ * samples keep coming and subscribes again if they stop, for example after
+ * the board was reset.
+ *
+ * Every snapshot can also be written to a SensorRecorder, and a
+ * SensorReplay can take the place of the board as the source of samples.
+ *
+ * @author afy
+ */
+public class SensorSampler implements Runnable, FrameListener {
+
+    public static boolean STREAM = true; // use pushed samples if possible
+    static final int STREAM_CHECK = 250;   // msec between stream checks
+    static final int STREAM_STALL = 1000;  // msec without a sample to resubscribe
+    public static int MAX_BACKOFF = 8;     // slowest rate, in sample intervals
+    SerialPipeline pipeline;   // arduino comm interface
+    int sampleInterval;        // msec between samples
+    AtomicReference<SensorSnapshot> snapshot
+            = new AtomicReference<>(SensorSnapshot.EMPTY);
+    ScheduledFuture<?> task = null; // runs on the shared sampler pool
+    // used by the sampling thread and by the thread answering its read -
+    // never both at once, as there is only one read in flight
+    ArduinoCodec codec;
+    boolean streaming;         // the sketch pushes the samples
+    ArduinoCodec sampleCodec;  // only used by the serial event thread
+    volatile long lastSampleArrival = 0; // nanoTime of the last pushed sample
+    int lastSampleTime = 0;    // board time of the last pushed sample
+    BridgeMetrics metrics;
+    PinArbiter arbiter;        // says which shared pins are outputs now
+    SensorRecorder recorder = null; // gets every snapshot published
+    SensorReplay replay = null; // plays a recording instead of sampling
+    int reporters = MessageTranslator.ALL_REPORTERS; // the ones sampled
+    // per reporter rates - only used by the sampling thread
+    ReporterFilter activity = new ReporterFilter(); // spots the changes
+    int[] period = new int[MessageTranslator.NUM_SENSORS]; // in samples
+    long[] due = new long[MessageTranslator.NUM_SENSORS];  // next sample to read at
+    long sampleCount = 0;      // samples taken, or skipped as nothing was due
+    PendingReply outstanding = null; // the read or subscribe in flight
+    long outstandingSample = 0; // number of the sample it belongs to
+    // gets the replies to reads
+    FrameListener readDone = new FrameListener() {
+        @Override
+        public void frameReceived(byte[] frame, int offset, int length) {
+            try {
+                publish(frame, outstandingSample);
+            } catch (Exception e) {
+                // a bad reply must not reach the serial event thread
+                System.err.println("problem sampling sensors");
+                e.printStackTrace(System.err);
+            }
+        }
+    };
+
+    // constructor
+    public SensorSampler(SerialPipeline pipeline, int sampleInterval) {
+        this.pipeline = pipeline;
+        this.sampleInterval = Math.max(1, sampleInterval);
+        this.codec = pipeline.getSerialManager().newCodec();
+        this.sampleCodec = pipeline.getSerialManager().newCodec();
+        this.streaming = STREAM && pipeline.getSerialManager().hasFeature(
+                SerialManager.FEATURE_STREAM);
+        this.metrics = pipeline.getSerialManager().getMetrics();
+        this.arbiter = pipeline.getSerialManager().getArbiter();
+    }
+
+    // start sampling - calling this again while running does nothing
+    public synchronized void start() {
+        if (task != null) {
+            return;
+        }
+        if (replay != null) {
+            replay.start(this);
+            return;
+        }
+        if (streaming) {
+            pipeline.getSerialManager().setSampleListener(this);
+            task = SharedExecutors.samplers().scheduleWithFixedDelay(this, 0,
+                    STREAM_CHECK, TimeUnit.MILLISECONDS);
+            System.out.println("Sensor samples pushed every " + sampleInterval + " ms");
+            return;
+        }
+        task = SharedExecutors.samplers().scheduleWithFixedDelay(this, 0,
+                sampleInterval, TimeUnit.MILLISECONDS);
+        System.out.println("Sensor sampling every " + sampleInterval + " ms");
+    }
+
+    // stop sampling
+    public synchronized void stop() {
+        if (replay != null) {
+            replay.stop();
+        }
+        if (task != null) {
+            task.cancel(false);
+            task = null;
+            if (streaming) {
+                // the sampling thread may still be using its codec
+                pipeline.getSerialManager().setSampleListener(null);
+                pipeline.trySubmit("subscribe", pipeline.getSerialManager()
+                        .newCodec().encodeSubscribe(0, 0), null);
+            }
+        }
+    }
+
+    // the most recent readings - never null
+    public SensorSnapshot getSnapshot() {
+        return snapshot.get();
+    }
+
+    // record every snapshot from now on - set before sampling starts
+    public void setRecorder(SensorRecorder recorder) {
+        this.recorder = recorder;
+    }
+
+    /**
+     * Never read some reporters - set before sampling starts
+     *
+     * @param skipped mask of reporters, indexed like REPORTER_NAMES
+     */
+    public void setSkipped(int skipped) {
+        this.reporters = MessageTranslator.ALL_REPORTERS & ~skipped;
+    }
+
+    /**
+     * Turn a list of reporter names into a mask
+     *
+     * @param names comma separated, for example "switchVal,encoder" - the
+     * Val at the end may be left out
+     * @return the mask, indexed like REPORTER_NAMES
+     */
+    public static int parseReporters(String names) {
+        int mask = 0;
+        for (String name : names.split(",")) {
+            name = name.trim();
+            if (name.isEmpty()) {
+                continue;
+            }
+            int found = -1;
+            for (int i = 0; i < MessageTranslator.REPORTER_NAMES.length; i++) {
+                String reporter = MessageTranslator.REPORTER_NAMES[i];
+                if (reporter.equalsIgnoreCase(name) || reporter.equalsIgnoreCase(name + "Val")) {
+                    found = i;
+                }
+            }
+            if (found < 0) {
+                System.out.println("Unknown reporter: " + name);
+            } else {
+                mask |= 1 << found;
+            }
+        }
+        return mask;
+    }
+
+    // take the samples from a recording instead of the board - set before
+    // sampling starts
+    public void setReplay(SensorReplay replay) {
+        this.replay = replay;
+        this.streaming = false;
+    }
+
+    public int getSampleInterval() {
+        return sampleInterval;
+    }
+
+    // take one sample, or check the samples are still coming
+    @Override
+    public void run() {
+        try {
+            long now = System.nanoTime();
+            if (outstanding != null && !outstanding.isDone()) {
+                if (outstanding.isOverdue(now)) {
+                    pipeline.timedOut(outstanding);
+                }
+                return; // the last command is not answered yet
+            }
+            outstanding = null;
+            if (streaming) {
+                checkStream();
+                return;
+            }
+            long sample = sampleCount++;
+            int mask = dueReporters(sample) & ~arbiter.busyMask(now);
+            if (mask == 0) {
+                return; // every reporter is resting
+            }
+            outstandingSample = sample;
+            outstanding = pipeline.trySubmit("read", codec.encodeRead(mask),
+                    readDone);
+        } catch (Exception e) {
+            // a bad reply must not kill the sampling thread
+            System.err.println("problem sampling sensors");
+            e.printStackTrace(System.err);
+        }
+    }
+
+    /**
+     * Turn an Arduino read reply into the next snapshot. Values that are not
+     * in the reply are carried over from the previous snapshot.
+     *
+     * @param ardReply {"pinValues":...} or {"pinValue":...} reply - only
+     * used until this returns
+     * @param sample number of the sample the reply belongs to
+     */
+    void publish(byte[] ardReply, long sample) {
+        SensorSnapshot previous = snapshot.get();
+        int[] values = previous.values.clone();
+
+        int mask = codec.parseReadings(ardReply, 0, ardReply.length, values);
+        if (mask == 0) {
+            System.out.println("Unknown pin value: "
+                    + PendingReply.toString(ardReply));
+            return;
+        }
+        // only the readings that were published count towards the rates
+        mask = publish(mask, values, System.nanoTime());
+        adapt(mask, values, sample);
+    }
+
+    // the reporters to read in a sample
+    int dueReporters(long sample) {
+        int mask = 0;
+        for (int i = 0; i < due.length; i++) {
+            if ((reporters & (1 << i)) != 0 && due[i] <= sample) {
+                mask |= 1 << i;
+            }
+        }
+        return mask;
+    }
+
+    // speed up the reporters that moved and slow down the ones that did not
+    void adapt(int mask, int[] values, long sample) {
+        for (int i = 0; i < period.length; i++) {
+            if ((mask & (1 << i)) == 0) {
+                continue;
+            }
+            if (activity.changed(i, values[i])) {
+                period[i] = 1;
+            } else {
+                period[i] = Math.min(Math.max(1, period[i] * 2), MAX_BACKOFF);
+            }
+            due[i] = sample + period[i];
+        }
+    }
+
+    /**
+     * Make new readings the latest snapshot and record them
+     *
+     * @param mask which of the values were read
+     * @param values all the values - owned by the snapshot from now on
+     * @param now nanoTime the readings arrived
+     * @return the values published - those read less the ones an actuator
+     * had the pin of
+     */
+    int publish(int mask, int[] values, long now) {
+        SensorSnapshot previous = snapshot.get();
+        mask = arbiter.dropBusy(mask, values, previous, now);
+        if (mask == 0) {
+            return 0; // nothing valid in it
+        }
+        SensorSnapshot next = new SensorSnapshot(previous.version + 1, now,
+                previous.mask | mask, values);
+        // only one thread publishes, so a plain set is enough
+        snapshot.set(next);
+        if (recorder != null) {
+            recorder.record(next);
+        }
+        return mask;
+    }
+
+    // (re)subscribe if no sample has come for a while
+    void checkStream() {
+        long now = System.nanoTime();
+        long quiet = Math.max(STREAM_STALL, 10L * sampleInterval) * 1000000L;
+        if (lastSampleArrival != 0 && now - lastSampleArrival < quiet) {
+            return;
+        }
+        if (lastSampleArrival != 0) {
+            System.out.println("Sensor samples stopped - subscribing again");
+        }
+        lastSampleArrival = now; // give the subscription time to start
+        // the samples themselves show that it worked
+        outstanding = pipeline.trySubmit("subscribe", codec.encodeSubscribe(
+                reporters, sampleInterval), null);
+    }
+
+    // a sample pushed by the sketch - called on the serial event thread,
+    // which is then the only one publishing
+    @Override
+    public void frameReceived(byte[] frame, int offset, int length) {
+        try {
+            SensorSnapshot previous = snapshot.get();
+            int[] values = previous.values.clone();
+            int mask = sampleCodec.parseSample(frame, offset, length, values);
+            long now = System.nanoTime();
+            int time = sampleCodec.getSampleTime();
+            // a sample the sketch took later than it should have
+            boolean late = lastSampleArrival != 0 && lastSampleTime != 0
+                    && time - lastSampleTime > 2 * sampleInterval;
+            lastSampleTime = time;
+            lastSampleArrival = now;
+            metrics.samplePushed(late);
+            publish(mask, values, now);
+        } catch (Exception e) {
+            System.err.println("problem reading pushed sample");
+            e.printStackTrace(System.err);
+        }
+    }
+
+    public boolean isStreaming() {
+        return streaming;
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ Scratch 2.0 Hardware Extension for the CodeShield Arduino Interface.
+
+ Written by Alan Yorinks
+ Copyright (c) 2013 Alan Yorinks All right reserved.
+
+ This program is free software; you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public
+ License as published by the Free Software Foundation; either
+ version 2.1 of the License, or (at your option) any later version.
+
+ This library is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ Lesser General Public License for more details.
+
+ You should have received a copy of the GNU Lesser General Public
+ License along with this library; if not, write to the Free Software
+ Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package codeShieldForScratch;
+
+/**
+ * An immutable set of reporter readings taken at one point in time.
+ *
+ * Values are indexed like MessageTranslator.REPORTER_NAMES. Only the values
+ * whose bit is set in the mask have ever been read.
+ *
+ * @author afy
+ */
+public final class SensorSnapshot {
+
+    // the snapshot that exists before the first sample is taken
+    public static final SensorSnapshot EMPTY = new SensorSnapshot(0, 0, 0,
+            new int[MessageTranslator.NUM_SENSORS]);
+    final long version;      // incremented for every new sample
+    final long timestamp;    // System.nanoTime() when the sample arrived
+    final int mask;          // which values are valid
+    final int[] values;      // the readings - never modified after creation
+
+    // constructor - the values array is owned by the snapshot from now on
+    public SensorSnapshot(long version, long timestamp, int mask, int[] values) {
+        this.version = version;
+        this.timestamp = timestamp;
+        this.mask = mask;
+        this.values = values;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public int getMask() {
+        return mask;
+    }
+
+    // check if a reporter has a valid reading
+    public boolean has(int reporter) {
+        return (mask & (1 << reporter)) != 0;
+    }
+
+    public int getValue(int reporter) {
+        return values[reporter];
+    }
+}
@@ -22,26 +22,94 @@
  */
 package codeShieldForScratch;
 
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import jssc.SerialPort;
+import jssc.SerialPortEvent;
+import jssc.SerialPortEventListener;
 import jssc.SerialPortException;
-import jssc.SerialPortTimeoutException;
 
 /**
  * This class manages the serial port to communicate with the Arduino
  *
+ * Received data is collected by the jssc event thread, split into newline
+ * terminated frames and either handed to a FrameListener or queued for
+ * getReply().
+ *
+ * After the sketch reports ready, open() calibrates the link: it steps the
+ * baud rate up as far as the sketch, the host and the cable allow and
+ * measures round trip time and throughput at each step (see LinkProfile).
+ *
+ * Then open() offers the sketch the compact binary
+ * protocol. A sketch that knows it says so and both ends switch over, an
+ * older sketch ignores the offer and json is used as before.
+ *
+ * A problem with the port - it cannot be opened, the board does not answer,
+ * a write fails - only fails this board. open() returns false, or the
+ * LinkListener is told, and the bridge and any other boards carry on.
+ * A board that resets by itself comes back at 57600 talking json; the
+ * LinkListener is told when its ready banner is seen, so that it can be
+ * opened and negotiated with again.
+ *
  * @author afy
  */
-public class SerialManager {
-
+public class SerialManager implements SerialPortEventListener {
+
+    public static int REPLY_TIMEOUT = 20000; // msec to wait for a reply
+    public static final int RX_BUFFER_SIZE = 1024; // receive ring size
+    public static final int BINARY_PROBE_TIMEOUT = 500; // msec to wait for binary ack
+    public static boolean TRY_BINARY = true; // offer the binary protocol
+    public static int MAX_BAUD = 1000000;    // highest rate calibration tries
+    static final int[] CALIBRATION_RATES = {115200, 250000, 500000, 1000000};
+    static final int CALIBRATION_BURST = 20;     // round trips per rate
+    static final int CALIBRATION_TIMEOUT = 500;  // msec per round trip
+    static final int BAUD_SETTLE_TIME = 20;      // msec after changing rate
+    // results of switchBaudRate()
+    static final int RATE_SWITCHED = 0;
+    static final int RATE_BROKEN = 1;
+    static final int RATE_NOT_ON_HOST = 2;
+    static final int RATE_REFUSED = 3;
+    static final String STATUS_QUERY = "{\"query\":\"status\"}";
+    static final String READY_REPLY = "{\"status\":\"ready\"}\r\n";
+    static final String BINARY_QUERY = "{\"query\":\"binary\"}";
+    static final String BINARY_REPLY = "{\"binary\":1}";
+    static final String FEATURES_QUERY = "{\"query\":\"features\"}";
+    static final String FEATURES_KEY = "{\"features\":";
+    // features a sketch can report - bits of the features reply
+    public static final int FEATURE_RGB = 1;     // the rgb command
+    public static final int FEATURE_CONFIG = 2;  // the config command
+    public static final int FEATURE_STREAM = 4;  // the subscribe command
     String comPort;
     SerialPort serialPort;
+    // receive engine - only used by the serial event thread
+    FrameRingBuffer rxRing = new FrameRingBuffer(RX_BUFFER_SIZE, (byte) '\n');
+    byte[] frameBuf = new byte[RX_BUFFER_SIZE];
+    // frames waiting for getReply() when no listener is installed
+    LinkedBlockingQueue<String> replyQueue = new LinkedBlockingQueue<>();
+    volatile FrameListener frameListener = null;
+    volatile LinkListener linkListener = null; // told when the link breaks
+    // takes the samples a subscribed sketch pushes out of the replies
+    FrameDemultiplexer demux = new FrameDemultiplexer(this);
+    volatile boolean closed = false; // set once closeSerial() has run
+    // true once the sketch has switched to the binary protocol
+    volatile boolean binary = false;
+    int features = 0;          // FEATURE_ bits the sketch reported
+    int baudRate = SerialPort.BAUDRATE_57600; // rate the port is set to
+    LinkProfile linkProfile = new LinkProfile(baudRate); // measured at open
+    volatile int resetCount = 0; // times the board was seen to reset
+    BridgeMetrics metrics;     // what the bridge does with this board
+    PinArbiter arbiter;        // which role the shared pins have now
+    static final byte[] READY_BYTES = READY_REPLY.getBytes(StandardCharsets.US_ASCII);
 
     // constructor
     SerialManager(String comPort) {
 
         this.comPort = comPort;
+        this.metrics = new BridgeMetrics(comPort);
+        this.arbiter = new PinArbiter(metrics);
     }
 
     /**
@@ -51,32 +119,52 @@ public class SerialManager {
      */
     public boolean open() {
 
-        // create a new serial port object
-        serialPort = new SerialPort(comPort);
-
         // reply string from Arduino json
         String jsonReply = "";
 
         // return variable
+        boolean returnValue = openPort();
+        if (!returnValue) {
+            return false;
+        }
+
+        // get reply from Arduino json
+        jsonReply = getReply();
+
+        // make sure we are really talking
+        if (jsonReply == null) {
+            System.out.println("No ready reply from the Arduino on " + comPort);
+            returnValue = false;
+        } else if (jsonReply.equals(READY_REPLY)) {
+            System.out.println("Serial Port Opened");
+            if (!calibrate()) {
+                return false;
+            }
+            System.out.println(linkProfile);
+            features = queryFeatures();
+            if (TRY_BINARY) {
+                negotiateBinary();
+            }
+        } else {
+            System.out.println("Incorrect reply string: " + jsonReply);
+            returnValue = false;
+        }
+        return returnValue;
+    }
+
+    // open the port at the current baud rate
+    boolean openPort() {
         boolean returnValue = false;
         // try opening the serial port
 
         try {
+            // create a new serial port object
+            serialPort = new SerialPort(comPort);
             returnValue = serialPort.openPort();//Open serial port
 
             // set the port parameters
             if (returnValue == true) {
-                returnValue = serialPort.setParams(SerialPort.BAUDRATE_57600,
-                        SerialPort.DATABITS_8,
-                        SerialPort.STOPBITS_1,
-                        SerialPort.PARITY_NONE);
-            }
-
-            // set events mask
-            if (false == (returnValue =
-                    serialPort.setEventsMask(SerialPort.MASK_TXEMPTY + SerialPort.MASK_RXCHAR))) {
-                serialPort.closePort();
-                returnValue = false;
+                returnValue = setBaudRate(baudRate);
             }
 
             // purge the serial port buffers of any junk
@@ -85,123 +173,442 @@ public class SerialManager {
                         | SerialPort.PURGE_TXCLEAR);
             }
 
+            // let jssc tell us when data arrives instead of polling for it
+            if (returnValue == true) {
+                serialPort.addEventListener(this, SerialPort.MASK_RXCHAR);
+            } else {
+                serialPort.closePort();
+            }
+
         } catch (SerialPortException ex) {
             System.out.println(ex);
             System.out.println("Is this the correct serial port?");
-            System.exit(0);
+            returnValue = false;
         }
+        return returnValue;
+    }
 
-        // get reply from Arduino json
-        jsonReply = getReply();
+    boolean setBaudRate(int rate) throws SerialPortException {
+        return serialPort.setParams(rate,
+                SerialPort.DATABITS_8,
+                SerialPort.STOPBITS_1,
+                SerialPort.PARITY_NONE);
+    }
 
-        // make sure we are really talking
-        if (jsonReply.equals("{\"status\":\"ready\"}\r\n")) {
-            System.out.println("Serial Port Opened");
-        } else {
-            System.out.println("Incorrect reply string: " + jsonReply);
-            returnValue = false;
+    /**
+     * Step the baud rate up through CALIBRATION_RATES and keep the fastest
+     * one that passes an echo burst without errors. A sketch that does not
+     * know the baud command stays at 57600.
+     *
+     * @return false if the board did not come back from a failed rate
+     */
+    boolean calibrate() {
+        LinkProfile best = measureLink();
+        if (!best.isClean()) {
+            // the link does not even work at the default rate - leave it
+            linkProfile = best;
+            return true;
         }
-        return returnValue;
+        for (int rate : CALIBRATION_RATES) {
+            if (rate > MAX_BAUD) {
+                break;
+            }
+            int result = switchBaudRate(rate);
+            if (result == RATE_NOT_ON_HOST) {
+                continue; // the serial driver cannot do this one
+            }
+            if (result == RATE_REFUSED) {
+                break; // the sketch does not do rate changes
+            }
+            LinkProfile profile = result == RATE_SWITCHED ? measureLink() : null;
+            if (profile == null || !profile.isClean()) {
+                System.out.println("Serial link fails at " + rate + " baud");
+                if (!recover(best.getBaudRate())) {
+                    return false;
+                }
+                break;
+            }
+            best = profile;
+        }
+        linkProfile = best;
+        return true;
     }
 
-    // write a string to the Arduino
     /**
+     * Ask the sketch to change its baud rate and follow it
      *
-     * @param toArduino
+     * @param rate
+     * @return RATE_SWITCHED if both ends run at the new rate and the sketch
+     * answers, RATE_BROKEN if the link does not work after the change,
+     * RATE_NOT_ON_HOST or RATE_REFUSED if nothing was changed
      */
-    public void writeToArduino(String toArduino) {
+    int switchBaudRate(int rate) {
+        try {
+            // make sure this end can do it before telling the sketch
+            if (!setBaudRate(rate)) {
+                setBaudRate(baudRate);
+                return RATE_NOT_ON_HOST;
+            }
+            setBaudRate(baudRate);
 
-        String arduinoReply;
-        arduinoReply = "";
-        int transmitState = 0;
+            writeToArduino("{\"baud\":" + rate + "}");
+            String reply = getReply(CALIBRATION_TIMEOUT);
+            if (reply == null || !PendingReply.isAck(
+                    reply.getBytes(StandardCharsets.ISO_8859_1))) {
+                return RATE_REFUSED;
+            }
+            // the sketch has switched - follow it
+            baudRate = rate;
+            if (!setBaudRate(rate)) {
+                return RATE_BROKEN;
+            }
+        } catch (SerialPortException ex) {
+            return RATE_BROKEN;
+        }
+        settle();
+        writeToArduino(STATUS_QUERY);
+        return isReady(getReply(CALIBRATION_TIMEOUT)) ? RATE_SWITCHED : RATE_BROKEN;
+    }
 
+    // time a burst of status queries at the current rate
+    LinkProfile measureLink() {
+        LinkProfile profile = new LinkProfile(baudRate);
+        for (int i = 0; i < CALIBRATION_BURST; i++) {
+            long start = System.nanoTime();
+            writeToArduino(STATUS_QUERY);
+            String reply = getReply(CALIBRATION_TIMEOUT);
+            long elapsed = System.nanoTime() - start;
+            if (isReady(reply)) {
+                profile.record(elapsed, STATUS_QUERY.length() + reply.length());
+            } else {
+                profile.errors++;
+            }
+        }
+        return profile;
+    }
+
+    // reopen the port, which resets the board back to 57600, and bring it
+    // up to the last rate that worked - false if it does not come back
+    boolean recover(int rate) {
+        closePort();
+        // the event thread is stopped, so the ring can be cleared here
+        rxRing.clear();
+        replyQueue.clear();
+        resetCount++;
+        baudRate = SerialPort.BAUDRATE_57600;
+        if (!openPort() || !isReady(getReply())) {
+            System.out.println("Arduino did not come back after a reset");
+            return false;
+        }
+        if (rate != baudRate && switchBaudRate(rate) != RATE_SWITCHED) {
+            System.out.println("Arduino failed at " + rate + " baud a second time");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Close the port and open it again, which resets the board, and
+     * negotiate the baud rate and protocol from the start. Frames go to
+     * getReply() meanwhile, and nothing the board sent before the reset
+     * is seen.
+     *
+     * @return false if the board did not come back, or came back with a
+     * sketch that talks another protocol than the bridge was set up for
+     */
+    public boolean reopen() {
+        FrameListener listener = frameListener;
+        frameListener = null;
+        boolean wasBinary = binary;
+        closePort();
+        // the event thread is stopped, so the ring can be cleared here
+        rxRing.clear();
+        replyQueue.clear();
+        resetCount++;
+        binary = false;
+        baudRate = SerialPort.BAUDRATE_57600;
+        boolean opened = open();
+        if (opened && binary != wasBinary) {
+            System.out.println(comPort + ": the sketch now talks another"
+                    + " protocol - restart the bridge");
+            opened = false;
+        }
+        frameListener = listener;
+        return opened;
+    }
+
+    // give both ends time to settle on a new rate and drop any junk
+    void settle() {
         try {
-            boolean closePort; // close port return in case of error     
-            boolean writeBytes; //Write data to port
+            Thread.sleep(BAUD_SETTLE_TIME);
+            purgePort();
+        } catch (InterruptedException | SerialPortException ex) {
+            Logger.getLogger(SerialManager.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
 
-            // wait for transmitter to be empty
+    // drop whatever is waiting in the port buffers
+    void purgePort() throws SerialPortException {
+        serialPort.purgePort(SerialPort.PURGE_RXCLEAR | SerialPort.PURGE_TXCLEAR);
+    }
 
-            while (transmitState == 0) {
-                transmitState =
-                        serialPort.getEventsMask();
+    // stop receiving and close the port - the board resets when it is
+    // opened again
+    void closePort() {
+        if (serialPort == null || !serialPort.isOpened()) {
+            return; // never opened
+        }
+        try {
+            serialPort.removeEventListener();
+            serialPort.closePort();
+        } catch (SerialPortException ex) {
+            Logger.getLogger(SerialManager.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
 
-                transmitState &= SerialPort.MASK_TXEMPTY;
+    // a ready reply - junk received while the rate changed may come first
+    static boolean isReady(String reply) {
+        return reply != null && reply.endsWith(READY_REPLY);
+    }
 
-            }
-            writeBytes = serialPort.writeBytes(toArduino.getBytes());
+    public LinkProfile getLinkProfile() {
+        return linkProfile;
+    }
 
+    public int getBaudRate() {
+        return baudRate;
+    }
+
+    // goes up every time the board resets - pin state is lost then
+    public int getResetCount() {
+        return resetCount;
+    }
+
+    // ask the sketch about a feature - an older sketch does not answer
+    boolean probe(String query, String expectedReply) {
+        writeToArduino(query);
+        String reply = getReply(BINARY_PROBE_TIMEOUT);
+        return reply != null && reply.trim().equals(expectedReply);
+    }
+
+    // ask which optional commands the sketch knows - an older sketch does
+    // not answer and knows none of them
+    int queryFeatures() {
+        writeToArduino(FEATURES_QUERY);
+        String reply = getReply(BINARY_PROBE_TIMEOUT);
+        if (reply == null || !reply.startsWith(FEATURES_KEY)) {
+            return 0;
+        }
+        try {
+            return Integer.parseInt(reply.substring(FEATURES_KEY.length(),
+                    reply.indexOf('}')).trim());
+        } catch (NumberFormatException | IndexOutOfBoundsException ex) {
+            System.out.println("Bad features reply: " + reply);
+            return 0;
+        }
+    }
+
+    // true if the sketch knows the FEATURE_ bit given
+    public boolean hasFeature(int feature) {
+        return (features & feature) != 0;
+    }
+
+    // offer the binary protocol - an older sketch does not answer
+    void negotiateBinary() {
+        if (probe(BINARY_QUERY, BINARY_REPLY)) {
+            // the sketch answers in json and then switches, so nothing
+            // else can be in the ring at this point
+            binary = true;
+            System.out.println("Using binary protocol");
+        } else {
+            System.out.println("Using json protocol");
+        }
+    }
+
+    // true if the sketch talks the binary protocol
+    public boolean isBinary() {
+        return binary;
+    }
+
+    // a codec for the protocol in use - one per thread
+    public ArduinoCodec newCodec() {
+        return binary ? new BinaryCodec() : new JsonCodec();
+    }
+
+    // write a string to the Arduino
+    /**
+     *
+     * @param toArduino
+     */
+    public void writeToArduino(String toArduino) {
+        writeToArduino(toArduino.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    // write raw bytes to the Arduino
+    public void writeToArduino(byte[] toArduino) {
+        if (closed) {
+            return; // the bridge is shutting down
+        }
+        try {
+            writeBytes(toArduino);
+            metrics.sent(toArduino.length);
         } catch (SerialPortException ex1) {
             Logger.getLogger(SerialManager.class.getName()).log(Level.SEVERE, null, ex1);
-            System.exit(0);
+            // a pulled cable - only this board is lost
+            LinkListener listener = linkListener;
+            if (listener != null) {
+                listener.linkFailed("write to " + comPort + " failed");
+            }
         }
     }
 
+    // put bytes on the wire
+    void writeBytes(byte[] toArduino) throws SerialPortException {
+        serialPort.writeBytes(toArduino);
+    }
+
     /**
      * // Wait for a json reply string from Arduino // Reply strings are
      * expected to be "/n" terminated.
      *
-     * @return
+     * @return the reply, or null if none came within REPLY_TIMEOUT
      */
     public String getReply() {
+        String arduinoReply = null;
 
+        // wait up until 20 seconds for a complete frame
+        try {
+            arduinoReply = replyQueue.poll(REPLY_TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+        if (arduinoReply == null) {
+            metrics.replyTimedOut();
+            System.out.println("Timed out waiting for a reply from the Arduino");
+        }
 
-        int receiveState = 0;
-        byte[] recvdBytes; // bytes received
-        byte[] oneByte;
-        int byteCounter = 0;
+        // send the reply back to caller
+        return arduinoReply;
+    }
 
+    // wait a limited time for a reply - null if none arrived. The probes
+    // and calibration that use this expect some of their questions to go
+    // unanswered, so that is not counted as a reply timeout
+    String getReply(long timeout) {
+        try {
+            return replyQueue.poll(timeout, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        return null;
+    }
 
-        recvdBytes = new byte[80];
-        oneByte = new byte[80];
+    /**
+     * Install a listener that receives every frame instead of the getReply()
+     * queue. Pass null to go back to getReply().
+     *
+     * @param listener
+     */
+    public void setFrameListener(FrameListener listener) {
+        this.frameListener = listener;
+    }
 
-        // initialize array
-        for (int i = 0; i < 80; i++) {
-            recvdBytes[i] = 0;
-        }
+    // tell a listener when the link breaks - null for nobody
+    public void setLinkListener(LinkListener listener) {
+        this.linkListener = listener;
+    }
+
+    // receive the samples the sketch pushes once subscribed
+    public void setSampleListener(FrameListener listener) {
+        demux.setSampleListener(listener);
+    }
 
-        /* wait for reply */
-        oneByte[0] = 0;
+    public BridgeMetrics getMetrics() {
+        return metrics;
+    }
 
-        // keep collecting data until newline is received
-        while ((oneByte[0] != ('\n'))) {
-            try {
+    public PinArbiter getArbiter() {
+        return arbiter;
+    }
 
-                while (receiveState == 0) {
-                    receiveState =
-                            serialPort.getEventsMask();
-                    receiveState &= SerialPort.MASK_RXCHAR;
+    // jssc calls this on its event thread when data has arrived
+    @Override
+    public void serialEvent(SerialPortEvent event) {
+        if (event.isRXCHAR() && event.getEventValue() > 0) {
+            try {
+                // read everything that is waiting in one call
+                byte[] received = serialPort.readBytes(event.getEventValue());
+                if (received != null) {
+                    receiveBytes(received, 0, received.length);
                 }
+            } catch (SerialPortException ex) {
+                Logger.getLogger(SerialManager.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+    }
 
-                // wait up until 20 seconds for data
-                // when we get data, put it into the buffer
-                oneByte = serialPort.readBytes(1, 20000);
-                recvdBytes[byteCounter] = oneByte[0];
-                byteCounter++;
-                //arduinoReply += oneChar;
+    // add received bytes to the ring and dispatch any completed frames
+    void receiveBytes(byte[] received, int offset, int length) {
+        metrics.received(length);
+        if (!rxRing.put(received, offset, length)) {
+            System.out.println("Serial receive buffer overflow - data dropped");
+        }
 
-            } catch (SerialPortException | SerialPortTimeoutException ex) {
-                Logger.getLogger(SerialManager.class.getName()).log(Level.SEVERE, null, ex);
-                System.exit(0);
+        int frameLength;
+        while ((frameLength = nextFrame()) > 0) {
+            if (demux.routeSample(frameBuf, frameLength)) {
+                continue; // not an answer to anything
+            }
+            FrameListener listener = frameListener;
+            if (listener != null && isReadyFrame(frameBuf, frameLength)) {
+                // nobody asks for the status once the listener is in, so
+                // the sketch has just started up again - at 57600 and
+                // talking json, with its pins at their power up state
+                resetCount++;
+                System.out.println("Arduino reset detected");
+                LinkListener failed = linkListener;
+                if (failed != null) {
+                    failed.linkFailed("Arduino reset");
+                }
+            } else if (listener != null) {
+                listener.frameReceived(frameBuf, 0, frameLength);
+            } else {
+                replyQueue.offer(new String(frameBuf, 0, frameLength,
+                        StandardCharsets.ISO_8859_1));
             }
         }
-        // put the bytes into string format
-        String arduinoReply;
-        arduinoReply = new String(recvdBytes, 0, byteCounter);
+    }
 
-        char[] charArray;
-        charArray = arduinoReply.toCharArray();
+    static boolean isReadyFrame(byte[] frame, int length) {
+        if (length != READY_BYTES.length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (frame[i] != READY_BYTES[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
 
-        // send the reply back to caller
-        return arduinoReply;
+    // take a frame in whichever framing the sketch is using - a sketch
+    // that has reset is back to json, so its ready banner is looked for
+    // between binary frames too
+    int nextFrame() {
+        if (binary) {
+            return rxRing.takeSizedFrame(frameBuf, (byte) BinaryCodec.SYNC,
+                    READY_BYTES);
+        }
+        return rxRing.takeFrame(frameBuf);
     }
 
-    // close the serial port
+    // close the serial port and print the round trip of each command
     public void closeSerial() {
-        try {
-            serialPort.closePort();
-        } catch (SerialPortException ex) {
-            Logger.getLogger(SerialManager.class.getName()).log(Level.SEVERE, null, ex);
-            System.exit(0);
+        closed = true;
+        closePort();
+        for (String roundTrip : metrics.getRoundTrips()) {
+            System.out.println(roundTrip);
         }
     }
 }
@@ -0,0 +1,262 @@
+/*
+ Scratch 2.0 Hardware Extension for the CodeShield Arduino Interface.
+
+ Written by Alan Yorinks
+ Copyright (c) 2013 Alan Yorinks All right reserved.
+
+ This program is free software; you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public
+ License as published by the Free Software Foundation; either
+ version 2.1 of the License, or (at your option) any later version.
+
+ This library is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ Lesser General Public License for more details.
+
+ You should have received a copy of the GNU Lesser General Public
+ License along with this library; if not, write to the Free Software
+ Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package codeShieldForScratch;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps several commands in flight on the serial link.
+ *
+ * The sketch handles commands one at a time and answers each one with
+ * exactly one frame, so replies are matched to commands in the order the
+ * commands were written. The window is bounded both by a command count and
+ * by the Arduino's 64 byte receive buffer: the oldest command in flight has
+ * already been read by the sketch, everything sent after it sits in that
+ * buffer until the sketch gets to it.
+ *
+ * A board that leaves a command unanswered for REPLY_TIMEOUT, or whose
+ * link breaks, is marked as failed: every command in flight is given up on
+ * and nothing more is written, so the other boards carry on. Replies the
+ * board may still send for the commands given up on would be taken for
+ * answers to the next ones, so the window stays shut until the board has
+ * been reset and opened again (see BoardContext) and resume() is called.
+ *
+ * @author afy
+ */
+public class SerialPipeline implements FrameListener, LinkListener {
+
+    public static final int DEFAULT_WINDOW = 4;     // commands in flight
+    public static final int ARDUINO_RX_BUFFER = 63; // usable sketch rx bytes
+    SerialManager serManager;  // arduino comm interface
+    int window;                // max commands in flight
+    final Object lock = new Object();
+    ArrayDeque<PendingReply> inFlight = new ArrayDeque<>();
+    int bytesInFlight = 0;     // bytes of all commands in flight
+    volatile boolean failed = false; // a command went unanswered
+    volatile LinkListener linkListener = null; // told when the board fails
+
+    // constructor
+    public SerialPipeline(SerialManager serManager, int window) {
+        this.serManager = serManager;
+        this.window = Math.max(1, window);
+        serManager.setFrameListener(this);
+        serManager.setLinkListener(this);
+        serManager.getMetrics().watch(this);
+    }
+
+    /**
+     * Write a command as soon as the window allows it. This only blocks while
+     * the window is full, and for no longer than REPLY_TIMEOUT: by then the
+     * oldest command in flight has gone unanswered for that long, so the
+     * board is marked as failed.
+     *
+     * @param description text used in error reports
+     * @param command the bytes to send
+     * @return the reply to wait on - failed already if the board is
+     */
+    public PendingReply submit(String description, byte[] command) {
+        PendingReply reply = new PendingReply(description, command.length,
+                this, null);
+        PendingReply late = null;
+        synchronized (lock) {
+            long deadline = System.nanoTime()
+                    + SerialManager.REPLY_TIMEOUT * 1000000L;
+            while (!failed && !fits(command.length)) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    late = inFlight.peekFirst();
+                    break;
+                }
+                try {
+                    TimeUnit.NANOSECONDS.timedWait(lock, remaining);
+                } catch (InterruptedException ex) {
+                    // the caller is being stopped - it gets no reply
+                    Thread.currentThread().interrupt();
+                    reply.fail();
+                    return reply;
+                }
+            }
+            if (late == null && !failed) {
+                send(reply, command);
+                return reply;
+            }
+        }
+        if (late != null) {
+            timedOut(late);
+        }
+        reply.fail();
+        return reply;
+    }
+
+    /**
+     * Write a command only if the window has room for it now. Nothing waits
+     * for the reply: the listener gets it on the serial event thread.
+     *
+     * @param description text used in error reports
+     * @param command the bytes to send
+     * @param listener gets the reply frame
+     * @return the reply, or null if the window is full or the board failed
+     */
+    public PendingReply trySubmit(String description, byte[] command,
+            FrameListener listener) {
+        PendingReply reply = new PendingReply(description, command.length,
+                this, listener);
+        synchronized (lock) {
+            if (failed || !fits(command.length)) {
+                return null;
+            }
+            send(reply, command);
+        }
+        return reply;
+    }
+
+    // add to the window and write - called holding the lock so wire order
+    // matches queue order
+    void send(PendingReply reply, byte[] command) {
+        inFlight.addLast(reply);
+        bytesInFlight += command.length;
+        reply.sentAt = System.nanoTime();
+        serManager.writeToArduino(command);
+    }
+
+    /**
+     * A reply did not come within REPLY_TIMEOUT. Unless it has come since,
+     * the board is marked as failed and everything in flight is given up on.
+     *
+     * @param late the reply that did not come
+     */
+    void timedOut(PendingReply late) {
+        fail(late, "no reply for " + late.command);
+    }
+
+    // the link broke - a write failed
+    @Override
+    public void linkFailed(String reason) {
+        fail(null, reason);
+    }
+
+    // give up on everything in flight and mark the board as failed - unless
+    // the late reply given has come meanwhile
+    void fail(PendingReply late, String reason) {
+        PendingReply[] given;
+        boolean wasFailed;
+        synchronized (lock) {
+            if (late != null && !inFlight.contains(late)) {
+                return; // answered or given up on meanwhile
+            }
+            given = inFlight.toArray(new PendingReply[inFlight.size()]);
+            inFlight.clear();
+            bytesInFlight = 0;
+            wasFailed = failed;
+            failed = true;
+            lock.notifyAll();
+        }
+        if (late != null) {
+            serManager.getMetrics().replyTimedOut();
+        }
+        for (PendingReply reply : given) {
+            reply.fail();
+        }
+        if (wasFailed) {
+            return;
+        }
+        System.out.println(serManager.comPort + ": " + reason
+                + " - board marked as failed");
+        LinkListener listener = linkListener;
+        if (listener != null) {
+            listener.linkFailed(reason);
+        }
+    }
+
+    /**
+     * Open the window again once the board has been reset and is talking
+     * again - nothing it sent before can still arrive
+     */
+    public void resume() {
+        synchronized (lock) {
+            if (!failed) {
+                return;
+            }
+            failed = false;
+        }
+        System.out.println(serManager.comPort + ": board answering again");
+    }
+
+    // tell a listener when the board fails - it gets the board going again
+    public void setLinkListener(LinkListener listener) {
+        this.linkListener = listener;
+    }
+
+    // check if the board failed and has not been reset since
+    public boolean isFailed() {
+        return failed;
+    }
+
+    // check if another command can be sent without overrunning the sketch
+    boolean fits(int length) {
+        if (inFlight.isEmpty()) {
+            return true;
+        }
+        if (inFlight.size() >= window) {
+            return false;
+        }
+        int waiting = bytesInFlight - inFlight.peekFirst().length + length;
+        return waiting <= ARDUINO_RX_BUFFER;
+    }
+
+    // number of commands waiting for a reply
+    public int getInFlight() {
+        synchronized (lock) {
+            return inFlight.size();
+        }
+    }
+
+    public SerialManager getSerialManager() {
+        return serManager;
+    }
+
+    // a frame arrived from the Arduino - it answers the oldest command
+    @Override
+    public void frameReceived(byte[] frame, int offset, int length) {
+        PendingReply reply;
+        synchronized (lock) {
+            if (failed) {
+                return; // an answer to something given up on
+            }
+            reply = inFlight.pollFirst();
+            if (reply != null) {
+                bytesInFlight -= reply.length;
+                lock.notifyAll();
+            }
+        }
+        if (reply == null) {
+            System.out.println("unsolicited reply from arduino: "
+                    + new String(frame, offset, length, StandardCharsets.ISO_8859_1));
+            return;
+        }
+        serManager.getMetrics().roundTrip(reply.command,
+                System.nanoTime() - reply.sentAt);
+        reply.complete(Arrays.copyOfRange(frame, offset, offset + length));
+    }
+}
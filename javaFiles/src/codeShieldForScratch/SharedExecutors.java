@@ -0,0 +1,76 @@
+/*
+ Scratch 2.0 Hardware Extension for the CodeShield Arduino Interface.
+
+ Written by Alan Yorinks
+ Copyright (c) 2013 Alan Yorinks All right reserved.
+
+ This program is free software; you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public
+ License as published by the Free Software Foundation; either
+ version 2.1 of the License, or (at your option) any later version.
+
+ This library is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ Lesser General Public License for more details.
+
+ You should have received a copy of the GNU Lesser General Public
+ License along with this library; if not, write to the Free Software
+ Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package codeShieldForScratch;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The thread pools shared by every board in the process, so a bridge
+ * driving many boards does not need threads of its own for each one.
+ *
+ * Commands block until the board answers, so the command pool grows with
+ * the number of boards that are busy at the same moment and shrinks again
+ * when they are idle. Sampling tasks are short, so a few threads serve
+ * them all.
+ *
+ * @author afy
+ */
+public class SharedExecutors {
+
+    public static int SAMPLER_THREADS = 2; // set before the first board starts
+    static ExecutorService commands = null;
+    static ScheduledExecutorService samplers = null;
+
+    // runs the command schedulers of all boards
+    public static synchronized ExecutorService commands() {
+        if (commands == null) {
+            commands = Executors.newCachedThreadPool(daemons("CommandScheduler"));
+        }
+        return commands;
+    }
+
+    // runs the sensor samplers of all boards
+    public static synchronized ScheduledExecutorService samplers() {
+        if (samplers == null) {
+            samplers = Executors.newScheduledThreadPool(SAMPLER_THREADS,
+                    daemons("SensorSampler"));
+        }
+        return samplers;
+    }
+
+    // numbered daemon threads, so the pools never keep the process alive
+    static ThreadFactory daemons(final String name) {
+        return new ThreadFactory() {
+            AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, name + "-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+}
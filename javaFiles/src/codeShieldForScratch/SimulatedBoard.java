@@ -0,0 +1,706 @@
+/*
+ Scratch 2.0 Hardware Extension for the CodeShield Arduino Interface.
+
+ Written by Alan Yorinks
+ Copyright (c) 2013 Alan Yorinks All right reserved.
+
+ This program is free software; you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public
+ License as published by the Free Software Foundation; either
+ version 2.1 of the License, or (at your option) any later version.
+
+ This library is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ Lesser General Public License for more details.
+
+ You should have received a copy of the GNU Lesser General Public
+ License along with this library; if not, write to the Free Software
+ Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package codeShieldForScratch;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * A CodeShield board that lives in the bridge process, for running and
+ * measuring the bridge without hardware. Use "sim" as the comport.
+ *
+ * It speaks the CodeShieldJSONClient.ino protocol - the ready banner, mode,
+ * read, write, piezo, servo, encoder, the optional rgb, config, subscribe
+ * and baud commands and the binary protocol - and models the time it all takes: each
+ * byte takes ten bit times at the current baud rate in each direction,
+ * each command takes a processing delay, tones and servo moves block for
+ * as long as they do on the board, and a reset takes a boot delay. The
+ * reporters follow synthetic waveforms.
+ *
+ * Settings follow the comport, for example
+ * "sim:maxbaud=115200,process=200,actuators=0":
+ * <pre>
+ *   maxbaud    fastest rate the simulated cable carries (1000000)
+ *   process    usec the sketch spends on each command (100)
+ *   boot       msec from reset to the ready banner (100)
+ *   actuators  1 = tones and servo moves take their real time, 0 = none
+ *   period     msec of one cycle of the sensor waveforms (5000)
+ *   binary     1 = the binary protocol is offered, 0 = json only
+ *   features   FEATURE_ bits the sketch reports, 0 = an older sketch
+ * </pre>
+ *
+ * Everything the board does happens on its own thread, which also plays
+ * the part of the jssc event thread and hands replies to receiveBytes().
+ *
+ * @author afy
+ */
+public class SimulatedBoard extends SerialManager implements Runnable {
+
+    public static final String PREFIX = "sim";
+    static final int BOOT = -1;           // chunk kind - the board starts up
+    static final long SERVO_MOVE_MS = 700; // attach, move and detach time
+    // settings
+    int maxBaud = 1000000;
+    long processNanos = 100000L;
+    long bootMillis = 100;
+    boolean realActuators = true;
+    long periodMillis = 5000;
+    boolean binaryOffered = true;
+    int featureBits = FEATURE_RGB | FEATURE_CONFIG | FEATURE_STREAM;
+    // link state
+    volatile int hostRate = 57600;   // rate the bridge end is set to
+    int boardRate = 57600;           // rate the sketch runs at
+    long hostLineFree = 0;           // nanoTime the host to board line is free
+    long boardLineFree = 0;          // same for the board to host line
+    volatile int generation = 0;     // goes up at each reset
+    LinkedBlockingQueue<Chunk> toBoard = new LinkedBlockingQueue<>();
+    Thread boardThread = null;
+    long startNanos = System.nanoTime();
+    // sketch state - board thread only
+    boolean boardBinary = false;
+    int configuredProfile = 0;
+    int[] pinValues = new int[20];
+    StringBuilder json = new StringBuilder(); // command being received
+    int depth = 0;                   // brace depth of the json command
+    boolean inString = false;
+    byte[] binaryCommand = new byte[12];
+    int binaryLength = 0;
+    volatile long commandsRun = 0;
+    long commandStarted = 0;         // nanoTime the current command arrived
+    long bootNanos = 0;              // nanoTime of the last reset
+    int streamMask = 0;              // reporters pushed without being asked
+    long streamInterval = 0;         // nsec between pushed samples
+    long nextStream = 0;             // nanoTime the next sample is due
+
+    /**
+     * Bytes on their way to the board
+     */
+    static class Chunk {
+
+        byte[] data;
+        int rate;        // the rate they were sent at
+        long arrival;    // nanoTime the last byte arrives
+        int generation;  // reset generation they belong to
+
+        Chunk(byte[] data, int rate, long arrival, int generation) {
+            this.data = data;
+            this.rate = rate;
+            this.arrival = arrival;
+            this.generation = generation;
+        }
+    }
+
+    // constructor
+    public SimulatedBoard(String comPort) {
+        super(comPort);
+        int colon = comPort.indexOf(':');
+        if (colon < 0) {
+            return;
+        }
+        for (String setting : comPort.substring(colon + 1).split(",")) {
+            String[] pair = setting.split("=");
+            if (pair.length != 2) {
+                continue;
+            }
+            long value = Long.parseLong(pair[1].trim());
+            switch (pair[0].trim()) {
+                case "maxbaud":
+                    maxBaud = (int) value;
+                    break;
+                case "process":
+                    processNanos = value * 1000L;
+                    break;
+                case "boot":
+                    bootMillis = value;
+                    break;
+                case "actuators":
+                    realActuators = value != 0;
+                    break;
+                case "period":
+                    periodMillis = Math.max(1, value);
+                    break;
+                case "binary":
+                    binaryOffered = value != 0;
+                    break;
+                case "features":
+                    featureBits = (int) value;
+                    break;
+                default:
+                    System.out.println("Unknown simulator setting: " + pair[0]);
+            }
+        }
+    }
+
+    // true if the comport names the simulator
+    public static boolean isSimulated(String comPort) {
+        return comPort.equals(PREFIX) || comPort.startsWith(PREFIX + ":");
+    }
+
+    // power up - the ready banner follows after the boot delay
+    @Override
+    boolean openPort() {
+        synchronized (this) {
+            if (boardThread == null) {
+                boardThread = new Thread(this, "SimulatedBoard");
+                boardThread.setDaemon(true);
+                boardThread.start();
+            }
+        }
+        hostRate = 57600;
+        generation++;
+        toBoard.offer(new Chunk(null, BOOT,
+                System.nanoTime() + bootMillis * 1000000L, generation));
+        System.out.println("Simulated CodeShield board: " + comPort);
+        return true;
+    }
+
+    @Override
+    boolean setBaudRate(int rate) {
+        hostRate = rate;
+        return true;
+    }
+
+    // the bytes take ten bit times each to cross the line
+    @Override
+    void writeBytes(byte[] toArduino) {
+        synchronized (this) {
+            long start = Math.max(System.nanoTime(), hostLineFree);
+            hostLineFree = start + wireNanos(toArduino.length, hostRate);
+            toBoard.offer(new Chunk(toArduino.clone(), hostRate, hostLineFree,
+                    generation));
+        }
+    }
+
+    @Override
+    void purgePort() {
+        // drop what has not reached the board yet
+        Iterator<Chunk> chunks = toBoard.iterator();
+        while (chunks.hasNext()) {
+            if (chunks.next().rate != BOOT) {
+                chunks.remove();
+            }
+        }
+    }
+
+    // the board resets by itself, as after a brown out or a press of its
+    // reset button - the bridge end stays at its rate
+    public void resetBoard() {
+        generation++;
+        toBoard.offer(new Chunk(null, BOOT,
+                System.nanoTime() + bootMillis * 1000000L, generation));
+    }
+
+    // unplugging resets the board - nothing it had in progress is seen again
+    @Override
+    void closePort() {
+        generation++;
+        toBoard.clear();
+    }
+
+    static long wireNanos(int bytes, int rate) {
+        return bytes * 10L * 1000000000L / rate;
+    }
+
+    // the board's main loop
+    @Override
+    public void run() {
+        while (true) {
+            Chunk chunk;
+            try {
+                chunk = streamMask == 0 ? toBoard.take()
+                        : toBoard.poll(nextStream - System.nanoTime(),
+                                TimeUnit.NANOSECONDS);
+            } catch (InterruptedException ex) {
+                return;
+            }
+            if (chunk == null) {
+                pushSample();
+                continue;
+            }
+            // the sketch keeps pushing samples while a command comes in
+            while (streamMask != 0 && nextStream < chunk.arrival) {
+                waitUntil(nextStream);
+                pushSample();
+            }
+            waitUntil(chunk.arrival);
+            if (chunk.generation != generation) {
+                continue; // sent before a reset
+            }
+            if (chunk.rate == BOOT) {
+                reset();
+                reply(READY_REPLY);
+                continue;
+            }
+            // a rate mismatch or a rate the cable cannot carry garbles
+            // everything
+            if (chunk.rate != boardRate || boardRate > maxBaud) {
+                continue;
+            }
+            for (byte b : chunk.data) {
+                if (boardBinary) {
+                    binaryByte(b);
+                } else {
+                    jsonByte(b);
+                }
+            }
+        }
+    }
+
+    void reset() {
+        bootNanos = System.nanoTime();
+        streamMask = 0;
+        boardRate = 57600;
+        boardBinary = false;
+        configuredProfile = 0;
+        json.setLength(0);
+        depth = 0;
+        inString = false;
+        binaryLength = 0;
+        java.util.Arrays.fill(pinValues, 0);
+    }
+
+    // collect a json command from its opening to its closing brace
+    void jsonByte(byte b) {
+        char c = (char) (b & 0xFF);
+        if (depth == 0) {
+            if (c != '{') {
+                return; // the sketch skips anything between commands
+            }
+        }
+        json.append(c);
+        if (inString) {
+            if (c == '"') {
+                inString = false;
+            }
+            return;
+        }
+        if (c == '"') {
+            inString = true;
+        } else if (c == '{') {
+            depth++;
+        } else if (c == '}' && --depth == 0) {
+            String command = json.toString();
+            json.setLength(0);
+            runJson(command);
+        }
+    }
+
+    void runJson(String command) {
+        JSONObject message;
+        try {
+            message = new JSONObject(command);
+        } catch (JSONException ex) {
+            return; // the sketch ignores what it cannot parse
+        }
+        commandsRun++;
+        commandStarted = System.nanoTime();
+        process();
+        Iterator<?> keys = message.keys();
+        while (keys.hasNext()) {
+            String name = (String) keys.next();
+            try {
+                runCommand(name, message.get(name));
+            } catch (JSONException ex) {
+                // missing or bad field - the sketch bails out silently
+            }
+        }
+    }
+
+    // the top level commands of run_command()
+    void runCommand(String name, Object value) throws JSONException {
+        switch (name) {
+            case "read":
+                runRead((JSONObject) value);
+                break;
+            case "write":
+                runWrite((JSONObject) value);
+                break;
+            case "mode":
+                JSONObject mode = (JSONObject) value;
+                if (mode.getInt("pin") > 0) {
+                    reply("{}\n");
+                }
+                break;
+            case "query":
+                runQuery(value.toString());
+                break;
+            case "baud":
+                int rate = ((Number) value).intValue();
+                if (rate > 0) {
+                    reply("{}\n");
+                    boardRate = rate;
+                }
+                break;
+            case "rgb":
+                if ((featureBits & FEATURE_RGB) != 0) {
+                    JSONObject rgb = (JSONObject) value;
+                    rgb.getInt("red");
+                    rgb.getInt("green");
+                    rgb.getInt("blue");
+                    reply("{}\n");
+                    outputAcked(MessageTranslator.RGB_RED, commandStarted);
+                }
+                break;
+            case "subscribe":
+                if ((featureBits & FEATURE_STREAM) != 0) {
+                    JSONObject subscribe = (JSONObject) value;
+                    int mask = subscribe.getInt("mask");
+                    int interval = subscribe.getInt("interval");
+                    subscribe(mask, interval);
+                    reply("{}\n");
+                }
+                break;
+            case "config":
+                if ((featureBits & FEATURE_CONFIG) != 0) {
+                    JSONObject config = (JSONObject) value;
+                    int profile = config.getInt("profile");
+                    int skipped = profile == configuredProfile ? 1 : 0;
+                    configuredProfile = profile;
+                    reply("{\"configured\":{\"profile\":" + profile
+                            + ",\"failed\":0,\"skipped\":" + skipped + "}}\n");
+                }
+                break;
+        }
+    }
+
+    void runRead(JSONObject read) throws JSONException {
+        if (read.has("encoder")) {
+            reply("{\"pinValue\":{\"type\":\"analog\",\"pin\":14,\"value\":"
+                    + reporter(6) + "}}\n");
+        } else if (read.has("mask")) {
+            int mask = read.getInt("mask");
+            String values = jsonValues(mask);
+            reply("{\"pinValues\":{\"mask\":" + mask + ",\"values\":["
+                    + values + "]}}\n");
+        } else {
+            int pin = read.getInt("pin");
+            String type = read.getString("type");
+            reply("{\"pinValue\":{\"type\":\"" + type + "\", \"pin\":" + pin
+                    + ", \"value\":" + readPin(pin, type.equals("analog")) + "}}\n");
+        }
+    }
+
+    void runWrite(JSONObject write) throws JSONException {
+        String type = write.getString("type");
+        switch (type) {
+            case "piezo":
+                int time = write.getInt("time");
+                if (time > 0) {
+                    tone(time);
+                    reply("{}\n");
+                    outputAcked(MessageTranslator.PIEZO, commandStarted);
+                }
+                break;
+            case "servo":
+                moveServo();
+                reply("{}\n");
+                outputAcked(MessageTranslator.SERVO, commandStarted);
+                break;
+            default:
+                int pin = write.getInt("pin");
+                int value = write.getInt("value");
+                if (pin > 0 && value >= 0) {
+                    pinValues[pin % pinValues.length] = value;
+                    reply("{}\n");
+                    outputAcked(pin, commandStarted);
+                }
+        }
+    }
+
+    void runQuery(String query) {
+        switch (query) {
+            case "status":
+                reply(READY_REPLY);
+                break;
+            case "binary":
+                if (binaryOffered) {
+                    reply("{\"binary\":1}\n");
+                    boardBinary = true;
+                }
+                break;
+            case "features":
+                if (featureBits != 0) {
+                    reply("{\"features\":" + featureBits + "}\n");
+                }
+                break;
+        }
+    }
+
+    // collect a binary command - sync, op and its fixed arguments
+    void binaryByte(byte b) {
+        if (binaryLength == 0 && (b & 0xFF) != BinaryCodec.SYNC) {
+            return;
+        }
+        binaryCommand[binaryLength++] = b;
+        if (binaryLength < 2 || binaryLength < 2 + binaryArgs(binaryCommand[1])) {
+            return;
+        }
+        binaryLength = 0;
+        commandsRun++;
+        commandStarted = System.nanoTime();
+        process();
+        runBinary();
+    }
+
+    static int binaryArgs(int op) {
+        switch (op) {
+            case BinaryCodec.OP_MODE:
+            case BinaryCodec.OP_DIGITAL:
+            case BinaryCodec.OP_ANALOG:
+                return 2;
+            case BinaryCodec.OP_PIEZO:
+            case BinaryCodec.OP_RGB:
+                return 4;
+            case BinaryCodec.OP_SERVO:
+            case BinaryCodec.OP_READ:
+                return 1;
+            case BinaryCodec.OP_SUBSCRIBE:
+                return 3;
+            case BinaryCodec.OP_CONFIG:
+                return 8;
+            default:
+                return 0;
+        }
+    }
+
+    void runBinary() {
+        byte[] c = binaryCommand;
+        switch (c[1]) {
+            case BinaryCodec.OP_MODE:
+                reply(new byte[]{(byte) BinaryCodec.SYNC, 0});
+                break;
+            case BinaryCodec.OP_RGB:
+                reply(new byte[]{(byte) BinaryCodec.SYNC, 0});
+                outputAcked(MessageTranslator.RGB_RED, commandStarted);
+                break;
+            case BinaryCodec.OP_DIGITAL:
+            case BinaryCodec.OP_ANALOG:
+                pinValues[(c[2] & 0xFF) % pinValues.length] = c[3] & 0xFF;
+                reply(new byte[]{(byte) BinaryCodec.SYNC, 0});
+                outputAcked(c[2] & 0xFF, commandStarted);
+                break;
+            case BinaryCodec.OP_PIEZO:
+                tone(BinaryCodec.get16(c, 4));
+                reply(new byte[]{(byte) BinaryCodec.SYNC, 0});
+                outputAcked(MessageTranslator.PIEZO, commandStarted);
+                break;
+            case BinaryCodec.OP_SERVO:
+                moveServo();
+                reply(new byte[]{(byte) BinaryCodec.SYNC, 0});
+                outputAcked(MessageTranslator.SERVO, commandStarted);
+                break;
+            case BinaryCodec.OP_READ:
+                reply(binaryReading(c[2] & 0xFF));
+                break;
+            case BinaryCodec.OP_SUBSCRIBE:
+                subscribe(c[2] & 0xFF, BinaryCodec.get16(c, 3));
+                reply(new byte[]{(byte) BinaryCodec.SYNC, 0});
+                break;
+            case BinaryCodec.OP_CONFIG: {
+                int profile = BinaryCodec.get16(c, 2);
+                int skipped = profile == configuredProfile ? 1 : 0;
+                configuredProfile = profile;
+                reply(new byte[]{(byte) BinaryCodec.SYNC, 5, c[2], c[3], 0, 0,
+                    (byte) skipped});
+                break;
+            }
+            default:
+                reply(new byte[]{(byte) BinaryCodec.SYNC, 1, (byte) 0xFF});
+        }
+    }
+
+    void subscribe(int mask, int interval) {
+        streamMask = mask & MessageTranslator.ALL_REPORTERS;
+        streamInterval = interval * 1000000L;
+        nextStream = System.nanoTime(); // the first one goes out at once
+    }
+
+    // push a sample of the subscribed reporters
+    void pushSample() {
+        long now = System.nanoTime();
+        nextStream = now + streamInterval;
+        int time = (int) ((now - bootNanos) / 1000000L);
+        if (boardBinary) {
+            byte[] reading = binaryReading(streamMask);
+            byte[] sample = new byte[reading.length + 4];
+            sample[0] = (byte) BinaryCodec.SYNC;
+            sample[1] = (byte) (reading.length + 2);
+            sample[2] = (byte) (streamMask | BinaryCodec.SAMPLE_FLAG);
+            sample[3] = (byte) (time >> 24);
+            sample[4] = (byte) (time >> 16);
+            sample[5] = (byte) (time >> 8);
+            sample[6] = (byte) time;
+            System.arraycopy(reading, 3, sample, 7, reading.length - 3);
+            reply(sample);
+        } else {
+            reply("{\"sample\":{\"time\":" + time + ",\"mask\":" + streamMask
+                    + ",\"values\":[" + jsonValues(streamMask) + "]}}\n");
+        }
+    }
+
+    // the values of the reporters in the mask, comma separated
+    String jsonValues(int mask) {
+        StringBuilder values = new StringBuilder();
+        for (int i = 0; i < MessageTranslator.NUM_SENSORS; i++) {
+            if ((mask & (1 << i)) != 0) {
+                if (values.length() > 0) {
+                    values.append(',');
+                }
+                values.append(reporter(i));
+            }
+        }
+        return values.toString();
+    }
+
+    byte[] binaryReading(int mask) {
+        byte[] reading = new byte[3 + 2 * MessageTranslator.NUM_SENSORS + 2];
+        int pos = 3;
+        for (int i = 0; i < MessageTranslator.NUM_SENSORS; i++) {
+            if ((mask & (1 << i)) == 0) {
+                continue;
+            }
+            int value = reporter(i);
+            if (i == BinaryCodec.ENCODER_INDEX) {
+                reading[pos++] = (byte) (value >> 24);
+                reading[pos++] = (byte) (value >> 16);
+            }
+            reading[pos++] = (byte) (value >> 8);
+            reading[pos++] = (byte) value;
+        }
+        reading[0] = (byte) BinaryCodec.SYNC;
+        reading[1] = (byte) (pos - 2);
+        reading[2] = (byte) mask;
+        return java.util.Arrays.copyOf(reading, pos);
+    }
+
+    /**
+     * The synthetic value of a reporter right now
+     *
+     * @param reporter index like REPORTER_NAMES
+     * @return the value the sketch would read
+     */
+    int reporter(int reporter) {
+        double t = (System.nanoTime() - startNanos) / 1e6 / periodMillis; // cycles
+        double phase = t - Math.floor(t);
+        switch (reporter) {
+            case 0: // potentiometer - sine
+                return (int) (512 + 500 * Math.sin(2 * Math.PI * t));
+            case 1: // hall effect - triangle
+                return (int) (phase < 0.5 ? 2046 * phase : 2046 * (1 - phase));
+            case 2: // thermistor - slow drift
+                return (int) (500 + 20 * Math.sin(2 * Math.PI * t / 4));
+            case 3: // photocell - sine with a little noise
+                return (int) (300 + 200 * Math.sin(2 * Math.PI * t + 1)
+                        + 5 * Math.sin(977 * t));
+            case 4: // push button - pressed a quarter of the time
+                return phase < 0.25 ? 1 : 0;
+            case 5: // slide switch - flips every cycle
+                return ((long) t) % 2 == 0 ? 0 : 1;
+            case 6: // encoder - keeps turning
+                return (int) (t * 24);
+            default:
+                return 0;
+        }
+    }
+
+    int readPin(int pin, boolean analog) {
+        if (analog) {
+            switch (pin) {
+                case MessageTranslator.POTENTIOMETER:
+                    return reporter(0);
+                case MessageTranslator.HALL_EFFECT:
+                    return reporter(1);
+                case MessageTranslator.THERMISTOR:
+                    return reporter(2);
+                case MessageTranslator.PHOTO_CELL:
+                    return reporter(3);
+            }
+        } else if (pin == MessageTranslator.PUSH_BUTTON) {
+            return reporter(4);
+        } else if (pin == MessageTranslator.SLIDE_SWITCH) {
+            return reporter(5);
+        }
+        return pinValues[pin % pinValues.length];
+    }
+
+    /**
+     * Called on the board thread once an output command has been acked.
+     * Does nothing here - load tests override it to time commands.
+     *
+     * @param pin output the command drove - RGB_RED for an rgb command
+     * @param started nanoTime the command reached the board
+     */
+    void outputAcked(int pin, long started) {
+    }
+
+    // the sketch blocks for the length of a tone
+    void tone(int millis) {
+        if (realActuators) {
+            waitUntil(System.nanoTime() + millis * 1000000L);
+        }
+    }
+
+    // and for a servo move
+    void moveServo() {
+        if (realActuators) {
+            waitUntil(System.nanoTime() + SERVO_MOVE_MS * 1000000L);
+        }
+    }
+
+    // time the sketch spends on a command
+    void process() {
+        waitUntil(System.nanoTime() + processNanos);
+    }
+
+    void reply(String text) {
+        reply(text.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    // send a reply across the line - it is lost if the two ends disagree
+    // on the rate
+    void reply(byte[] data) {
+        long start = Math.max(System.nanoTime(), boardLineFree);
+        boardLineFree = start + wireNanos(data.length, boardRate);
+        waitUntil(boardLineFree);
+        if (boardRate != hostRate || boardRate > maxBaud) {
+            return;
+        }
+        receiveBytes(data, 0, data.length);
+    }
+
+    static void waitUntil(long deadline) {
+        long remaining;
+        while ((remaining = deadline - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(remaining);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "Simulated board: " + commandsRun + " commands at " + boardRate
+                + " baud" + (boardBinary ? " (binary)" : "");
+    }
+}
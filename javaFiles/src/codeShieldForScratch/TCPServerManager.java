@@ -24,63 +24,109 @@ package codeShieldForScratch;
 
 import java.io.IOException;
 import java.net.InetAddress;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 
 /**
  * This class creates the Socket Server for Scratch TCP communications
+ *
+ * A single selector thread serves every connected Scratch client of every
+ * board. Each board listens on a port of its own. The clients of a board
+ * share its CommandScheduler and SensorSampler, each one gets its own
+ * MessageManager.
  * @author afy
  */
 //public class TCPServerManager {
 public class TCPServerManager {
 
-    int portNumber;
-    SerialManager serialManager;        // serial interface to Arduino
-    MessageManager messageManager;      // json message translator          
+    // each write to scratch is a complete batch of messages (see
+    // MessageManager), so there is nothing for Nagle to gather and holding
+    // a reply back for the client's delayed ack would only add latency
+    public static boolean NO_DELAY = true;
+    ArrayList<Listener> listeners = new ArrayList<>();
+    int clients = 0;                    // connected scratch clients
 
-    // constructor
-    public TCPServerManager(int portNumber, SerialManager serialManager) {
+    /**
+     * A port and the board behind it
+     */
+    static class Listener {
 
-        this.portNumber = portNumber;
-        this.serialManager = serialManager;
+        int portNumber;
+        CommandScheduler scheduler;     // serial interface to Arduino
+        SensorSampler sampler;          // background reader of the reporters
+
+        Listener(int portNumber, CommandScheduler scheduler, SensorSampler sampler) {
+            this.portNumber = portNumber;
+            this.scheduler = scheduler;
+            this.sampler = sampler;
+        }
+    }
+
+    // constructor - add the boards before opening the server
+    public TCPServerManager() {
         System.out.println("TCPServerManager created");
     }
 
-    /**
-     *
-     * @param portNumber
-     * @param port
-     * @return
-     */
+    // constructor for a single board
+    public TCPServerManager(int portNumber, CommandScheduler scheduler,
+            SensorSampler sampler) {
+        this();
+        addBoard(portNumber, scheduler, sampler);
+    }
+
+    // serve a board's clients on a port
+    public void addBoard(int portNumber, CommandScheduler scheduler,
+            SensorSampler sampler) {
+        listeners.add(new Listener(portNumber, scheduler, sampler));
+    }
 
     // open the Socket Server so that Scratch can connect
     public void openSocketServer() {
-        ServerSocket serverSock;
-        serverSock = null;
-        MessageManager msgManager = null ;
-        Socket sock;
-
         try {
             InetAddress addr = InetAddress.getLocalHost();
             System.out.println("ScratchCodeShield started on "
                     + addr.toString());
 
-
-            serverSock = new ServerSocket(portNumber);
-
+            Selector selector = Selector.open();
+            for (Listener listener : listeners) {
+                ServerSocketChannel serverChannel = ServerSocketChannel.open();
+                try {
+                    serverChannel.socket().bind(new InetSocketAddress(listener.portNumber));
+                } catch (IOException ex) {
+                    // only the board on this port is lost
+                    System.out.println("Port " + listener.portNumber
+                            + " cannot be used - its board is not served: " + ex);
+                    serverChannel.close();
+                    continue;
+                }
+                serverChannel.configureBlocking(false);
+                serverChannel.register(selector, SelectionKey.OP_ACCEPT, listener);
+            }
 
             System.out.println("TCP Server Opened");
             while (true) {
-                sock = serverSock.accept();
-                if( msgManager == null)
-                {
-                    // create the message manager
-                    msgManager = new MessageManager(serialManager, sock);
-                    new Thread(msgManager).start();
+                selector.select();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept(key, selector);
+                    } else {
+                        service(key);
+                    }
                 }
             }
 
@@ -90,8 +136,46 @@ public class TCPServerManager {
             Logger.getLogger(TCPServerManager.class.getName()).log(Level.SEVERE, null, ex);
             System.exit(0) ;
         }
-        //return serverSock;
+    }
+
+    // a new scratch client - give it a message manager of its own
+    void accept(SelectionKey serverKey, Selector selector) throws IOException {
+        Listener listener = (Listener) serverKey.attachment();
+        SocketChannel channel = ((ServerSocketChannel) serverKey.channel()).accept();
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(NO_DELAY);
+        MessageManager msgManager = new MessageManager(listener.scheduler,
+                listener.sampler, channel, listener.portNumber);
+        SelectionKey key = channel.register(selector, SelectionKey.OP_READ,
+                msgManager);
+        msgManager.connected(key);
+        clients++;
+    }
+
+    // read from or write to a client - a failing client is dropped alone
+    void service(SelectionKey key) {
+        MessageManager msgManager = (MessageManager) key.attachment();
+        try {
+            if (key.isWritable()) {
+                msgManager.writable();
+            }
+            if (key.isReadable() && !msgManager.readable()) {
+                drop(key, msgManager);
+            }
+        } catch (IOException ex) {
+            System.err.println("scratch client error: " + ex);
+            drop(key, msgManager);
+        }
+    }
 
+    void drop(SelectionKey key, MessageManager msgManager) {
+        key.cancel();
+        msgManager.close();
+        clients--;
+        System.out.println("Scratch clients connected: " + clients);
     }
 
 }
@@ -0,0 +1,158 @@
+/*
+ Scratch 2.0 Hardware Extension for the CodeShield Arduino Interface.
+
+ Written by Alan Yorinks
+ Copyright (c) 2013 Alan Yorinks All right reserved.
+
+ This program is free software; you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public
+ License as published by the Free Software Foundation; either
+ version 2.1 of the License, or (at your option) any later version.
+
+ This library is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ Lesser General Public License for more details.
+
+ You should have received a copy of the GNU Lesser General Public
+ License along with this library; if not, write to the Free Software
+ Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package codeShieldForScratch;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Checks that a failed board is opened again, with its pins set up again,
+ * on a simulated board.
+ *
+ * @author afy
+ */
+public class BoardContextTest {
+
+    BoardContext board = null;
+    MessageTranslator translator;
+    int maxBaud = SerialManager.MAX_BAUD;
+
+    // open a simulated board and set its pins up
+    void open() {
+        board = BoardContext.create("sim:actuators=0,boot=10", 50207, 50);
+        assertTrue(board.open());
+        translator = new MessageTranslator(board.getScheduler(),
+                board.getSampler(), new ScratchOutput() {
+            @Override
+            public void send(byte[] buf, int offset, int length) {
+            }
+        });
+        board.getScheduler().initBoard(translator, board.getSampler());
+        assertTrue(onScheduler(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return board.getScheduler().boardInitialized;
+            }
+        }));
+    }
+
+    @After
+    public void tearDown() {
+        SerialManager.MAX_BAUD = maxBaud;
+        if (board != null) {
+            board.getSampler().stop();
+            board.getSerialManager().closeSerial();
+        }
+    }
+
+    // run on the board's scheduler thread, after everything queued there
+    <T> T onScheduler(Callable<T> task) {
+        FutureTask<T> future = new FutureTask<>(task);
+        board.getScheduler().execute(future);
+        return get(future);
+    }
+
+    static <T> T get(Future<T> future) {
+        try {
+            return future.get(30, TimeUnit.SECONDS);
+        } catch (Exception ex) {
+            throw new AssertionError(ex);
+        }
+    }
+
+    @Test
+    public void failedBoardIsOpenedAndSetUpAgain() throws Exception {
+        open();
+        SerialPipeline pipeline = board.getScheduler().getPipeline();
+        int resets = board.getSerialManager().getResetCount();
+        pipeline.linkFailed("test");
+        assertTrue(pipeline.isFailed());
+        // the reconnect is queued on the scheduler, so this runs after it
+        assertTrue(onScheduler(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return board.getScheduler().boardInitialized;
+            }
+        }));
+        assertFalse(pipeline.isFailed());
+        assertTrue(board.getSerialManager().getResetCount() > resets);
+        assertRead();
+    }
+
+    // the board answers a read of every reporter
+    void assertRead() {
+        SerialPipeline pipeline = board.getScheduler().getPipeline();
+        byte[] reply = pipeline.submit("read", board.getSerialManager()
+                .newCodec().encodeRead(MessageTranslator.ALL_REPORTERS)).awaitBytes();
+        assertNotNull(reply);
+        assertEquals(MessageTranslator.ALL_REPORTERS, board.getSerialManager().newCodec()
+                .parseReadings(reply, 0, reply.length, new int[MessageTranslator.NUM_SENSORS]));
+    }
+
+    @Test
+    public void boardThatResetsItselfIsSetUpAgain() throws Exception {
+        // at a raised rate the banner of the reset board is garbled and the
+        // reset is only seen from the timeouts, so the link is left at the
+        // rate the sketch starts at
+        SerialManager.MAX_BAUD = 57600;
+        open();
+        SimulatedBoard sim = (SimulatedBoard) board.getSerialManager();
+        final OutputShadow shadow = board.getScheduler().getShadow();
+        onScheduler(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                shadow.wrote(MessageTranslator.WHITE_LED, MessageTranslator.LEDPWM, 200);
+                return true;
+            }
+        });
+        int resets = sim.getResetCount();
+        sim.resetBoard();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (sim.getResetCount() == resets && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(sim.getResetCount() > resets);
+        assertTrue(onScheduler(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return board.getScheduler().boardInitialized;
+            }
+        }));
+        assertFalse(board.getScheduler().getPipeline().isFailed());
+        // the led went off with the reset, so it is written again
+        assertTrue(onScheduler(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return shadow.needsWrite(MessageTranslator.WHITE_LED,
+                        MessageTranslator.LEDPWM, 200);
+            }
+        }));
+        assertRead();
+    }
+}
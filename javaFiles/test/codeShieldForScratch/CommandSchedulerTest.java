@@ -0,0 +1,166 @@
+/*
+ Scratch 2.0 Hardware Extension for the CodeShield Arduino Interface.
+
+ Written by Alan Yorinks
+ Copyright (c) 2013 Alan Yorinks All right reserved.
+
+ This program is free software; you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public
+ License as published by the Free Software Foundation; either
+ version 2.1 of the License, or (at your option) any later version.
+
+ This library is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ Lesser General Public License for more details.
+
+ You should have received a copy of the GNU Lesser General Public
+ License along with this library; if not, write to the Free Software
+ Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package codeShieldForScratch;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks the write behind queue of CommandScheduler. Nothing is written to
+ * a board: the commands only note that they ran.
+ *
+ * @author afy
+ */
+public class CommandSchedulerTest {
+
+    CommandScheduler scheduler;
+    ArrayList<String> ran = new ArrayList<>(); // scheduler thread only
+    CountDownLatch release = new CountDownLatch(1);
+    CountDownLatch done = new CountDownLatch(1);
+
+    @Before
+    public void setUp() {
+        SerialManager board = new SerialManager("test");
+        scheduler = new CommandScheduler(new SerialPipeline(board, 1));
+    }
+
+    // hold the scheduler thread so commands pile up in the queue
+    void holdScheduler() {
+        scheduler.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    release.await();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+    }
+
+    // a command that notes its name when it runs
+    Runnable note(final String name) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                ran.add(name);
+            }
+        };
+    }
+
+    // wait until every task queued so far has run
+    void finish() throws InterruptedException {
+        scheduler.execute(new Runnable() {
+            @Override
+            public void run() {
+                done.countDown();
+            }
+        });
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void newerCommandKeepsThePlaceOfTheOneItReplaces() throws Exception {
+        holdScheduler();
+        scheduler.submit("led", note("led 1"));
+        scheduler.submit("servo", note("servo"));
+        scheduler.submit("led", note("led 2"));
+        release.countDown();
+        finish();
+
+        assertEquals(Arrays.asList("led 2", "servo"), ran);
+        assertEquals(3, scheduler.getCommandsReceived());
+        assertEquals(2, scheduler.getCommandsSent());
+    }
+
+    @Test
+    public void replacedDevicesAreDropped() throws Exception {
+        holdScheduler();
+        scheduler.submit("red", note("red"));
+        scheduler.submit("servo", note("servo"));
+        scheduler.submit("rgb", note("rgb"), "red");
+        release.countDown();
+        finish();
+
+        assertEquals(Arrays.asList("servo", "rgb"), ran);
+    }
+
+    /**
+     * A hot device - an LED a script sets on every pass of a loop - is
+     * submitted again while each command runs, next to slow devices that
+     * are each driven once per pass. Moving the hot device to the back on
+     * every submit would keep it behind the others for good; keeping its
+     * place sends it at least once per pass.
+     */
+    @Test
+    public void hotDeviceIsNotStarvedBySlowOnes() throws Exception {
+        final String[] slow = {"servo", "relay", "piezo"};
+        final int runs = 40;
+        final CountDownLatch allRan = new CountDownLatch(runs);
+        final Runnable led = new Runnable() {
+            @Override
+            public void run() {
+                ran.add("led");
+                allRan.countDown();
+            }
+        };
+        holdScheduler();
+        scheduler.submit("led", led);
+        for (final String device : slow) {
+            scheduler.submit(device, new Runnable() {
+                @Override
+                public void run() {
+                    ran.add(device);
+                    allRan.countDown();
+                    if (allRan.getCount() > 0) {
+                        // the hot script sends again while this one runs
+                        scheduler.submit("led", led);
+                        scheduler.submit(device, this);
+                    }
+                }
+            });
+        }
+        release.countDown();
+        assertTrue(allRan.await(5, TimeUnit.SECONDS));
+        finish();
+
+        int longestWait = 0;
+        int sinceLed = 0;
+        int ledRuns = 0;
+        for (String device : ran.subList(0, runs)) {
+            if (device.equals("led")) {
+                ledRuns++;
+                sinceLed = 0;
+            } else {
+                longestWait = Math.max(longestWait, ++sinceLed);
+            }
+        }
+        assertTrue("led ran " + ledRuns + " times in " + ran, ledRuns >= runs / 5);
+        assertTrue("led waited behind " + longestWait + " commands in " + ran,
+                longestWait <= slow.length);
+    }
+}
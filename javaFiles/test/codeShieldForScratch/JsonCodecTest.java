@@ -0,0 +1,327 @@
+/*
+ Scratch 2.0 Hardware Extension for the CodeShield Arduino Interface.
+
+ Written by Alan Yorinks
+ Copyright (c) 2013 Alan Yorinks All right reserved.
+
+ This program is free software; you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public
+ License as published by the Free Software Foundation; either
+ version 2.1 of the License, or (at your option) any later version.
+
+ This library is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ Lesser General Public License for more details.
+
+ You should have received a copy of the GNU Lesser General Public
+ License along with this library; if not, write to the Free Software
+ Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package codeShieldForScratch;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+/**
+ * Checks JsonCodec against org.json, which the bridge used before: the
+ * templates must read back as the commands org.json would have built, and
+ * the parsers must get the same numbers out of every Scratch message and
+ * Arduino reply.
+ *
+ * @author afy
+ */
+public class JsonCodecTest {
+
+    // each command block, then the shapes org.json accepts that Scratch
+    // could send
+    static final String[] SCRATCH_MESSAGES = {
+        "{\"method\":\"poll\",\"params\":[]}",
+        "{\"method\":\"LEDSelect\",\"params\":[1,128]}",
+        "{\"method\":\"LEDDigitalSelect\",\"params\":[4,1]}",
+        "{\"method\":\"servoDegrees\",\"params\":[90]}",
+        "{\"method\":\"relayState\",\"params\":[1]}",
+        "{\"method\":\"piezoTone\",\"params\":[550,1000]}",
+        "{ \"params\" : [ 2 , \"255\" ] , \"method\" : \"LEDSelect\" }",
+        "{\"method\":\"LEDSelect\",\"params\":[1.7,-3]}",
+        "{\"method\":\"LEDSelect\",\"params\":[-1.7,0.5]}",
+        "{\"method\":\"servoDegrees\",\"params\":[1e2]}",
+        "{\"method\":\"servoDegrees\",\"params\":[2.5E+1]}",
+        "{\"method\":\"LEDSelect\",\"params\":[true,\"abc\"]}",
+        "{\"method\":\"LEDSelect\",\"params\":[\"-12\",\"1.5\"]}",
+        "{\"method\":\"LEDSelect\",\"params\":[null,[1,2]]}",
+        "{\"method\":\"piezoTone\",\"params\":[4294967297,-2147483648]}",
+        "{\"method\":\"relayState\",\"params\":[1],\"extra\":{\"a\":[1,\"x\"]}}"
+    };
+    // replies to a read, in the forms the sketch sends
+    static final String[] READINGS = {
+        "{\"pinValues\":{\"mask\":127,\"values\":[512,300,611,420,1,0,-17]}}",
+        "{\"pinValues\":{\"mask\":5,\"values\":[10,20]}}",
+        "{\"pinValues\":{\"mask\":0,\"values\":[]}}",
+        "{ \"pinValues\" : { \"mask\" : 64 , \"values\" : [ -3 ] } }\r\n",
+        "{\"pinValue\":{\"type\":\"analog\",\"pin\":4,\"value\":611}}",
+        "{\"pinValue\":{\"type\":\"digital\",\"pin\":12,\"value\":1}}"
+    };
+
+    JsonCodec codec = new JsonCodec();
+
+    static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    // what the codec put in a template, read back by org.json
+    static JSONObject read(byte[] command) {
+        return new JSONObject(new String(command, StandardCharsets.US_ASCII));
+    }
+
+    // compare two parsed json values, ignoring key order
+    static void assertSameJson(String path, Object expected, Object actual) {
+        if (expected instanceof JSONObject) {
+            assertTrue(path + " is not an object", actual instanceof JSONObject);
+            JSONObject e = (JSONObject) expected;
+            JSONObject a = (JSONObject) actual;
+            String[] keys = JSONObject.getNames(e);
+            String[] actualKeys = JSONObject.getNames(a);
+            Arrays.sort(keys);
+            Arrays.sort(actualKeys);
+            assertArrayEquals(path, keys, actualKeys);
+            for (String key : keys) {
+                assertSameJson(path + "." + key, e.get(key), a.get(key));
+            }
+        } else if (expected instanceof JSONArray) {
+            assertTrue(path + " is not an array", actual instanceof JSONArray);
+            JSONArray e = (JSONArray) expected;
+            JSONArray a = (JSONArray) actual;
+            assertEquals(path, e.length(), a.length());
+            for (int i = 0; i < e.length(); i++) {
+                assertSameJson(path + "[" + i + "]", e.get(i), a.get(i));
+            }
+        } else {
+            assertEquals(path, expected, actual);
+        }
+    }
+
+    static void assertCommand(String expected, byte[] command) {
+        assertSameJson(expected, new JSONObject(expected), read(command));
+    }
+
+    @Test
+    public void templatesReadBackAsOrgJsonCommands() {
+        assertCommand("{\"write\":{\"pin\":11,\"type\":\"analog\",\"value\":200}}",
+                codec.encodeWrite(11, JsonCodec.TYPE_ANALOG, 200));
+        assertCommand("{\"write\":{\"pin\":9,\"type\":\"analog\",\"value\":0}}",
+                codec.encodeWrite(9, JsonCodec.TYPE_ANALOG, 0));
+        assertCommand("{\"write\":{\"pin\":6,\"type\":\"digital\",\"value\":1}}",
+                codec.encodeWrite(6, JsonCodec.TYPE_DIGITAL, 1));
+        assertCommand("{\"mode\":{\"mode\":\"output\",\"pin\":10}}",
+                codec.encodeMode(10, true));
+        assertCommand("{\"mode\":{\"mode\":\"input\",\"pin\":2}}",
+                codec.encodeMode(2, false));
+        assertCommand("{\"write\":{\"type\":\"piezo\",\"freq\":550,\"time\":1000}}",
+                codec.encodePiezo(550, 1000));
+        assertCommand("{\"write\":{\"type\":\"servo\",\"pin\":5,\"value\":180}}",
+                codec.encodeServo(180));
+        assertCommand("{\"read\":{\"mask\":127}}",
+                codec.encodeRead(MessageTranslator.ALL_REPORTERS));
+        assertCommand("{\"rgb\":{\"type\":\"analog\",\"red\":255,\"green\":7,\"blue\":40}}",
+                codec.encodeRgb(JsonCodec.TYPE_ANALOG, 255, 7, 40));
+        assertCommand("{\"rgb\":{\"type\":\"digital\",\"red\":1,\"green\":0,\"blue\":1}}",
+                codec.encodeRgb(JsonCodec.TYPE_DIGITAL, 1, 0, 1));
+        assertCommand("{\"subscribe\":{\"mask\":3,\"interval\":50}}",
+                codec.encodeSubscribe(3, 50));
+        PinProfile profile = PinProfile.CODESHIELD;
+        assertCommand("{\"config\":{\"profile\":" + profile.getId()
+                + ",\"inputs\":" + profile.getInputs()
+                + ",\"pullups\":" + profile.getPullups()
+                + ",\"outputs\":" + profile.getOutputs() + "}}",
+                codec.encodeConfig(profile));
+    }
+
+    // a template is patched in place, so a shorter number must not leave
+    // digits of the last one behind
+    @Test
+    public void templatesClearThePreviousNumber() {
+        codec.encodePiezo(12345, 54321);
+        assertCommand("{\"write\":{\"type\":\"piezo\",\"freq\":7,\"time\":3}}",
+                codec.encodePiezo(7, 3));
+    }
+
+    @Test
+    public void updateReadsBackAsOrgJson() {
+        int[] values = {512, -300, 0, 1023, 1, 0, -2147483648};
+        int mask = 0x55;
+        int length = codec.encodeUpdate(values, mask);
+        String update = new String(codec.getOutput(), 0, length, StandardCharsets.US_ASCII);
+        assertTrue(update.endsWith("\n"));
+
+        JSONArray expected = new JSONArray();
+        for (int i = 0; i < MessageTranslator.NUM_SENSORS; i++) {
+            if ((mask & (1 << i)) != 0) {
+                expected.put(new JSONArray().put(MessageTranslator.REPORTER_NAMES[i])
+                        .put(values[i]));
+            }
+        }
+        JSONObject message = new JSONObject(update);
+        assertEquals("update", message.getString("method"));
+        assertSameJson(update, expected, message.getJSONArray("params"));
+    }
+
+    @Test
+    public void scratchMessagesParseLikeOrgJson() {
+        for (String message : SCRATCH_MESSAGES) {
+            JSONObject msgObj = new JSONObject(message);
+            JSONArray paramsArray = msgObj.getJSONArray("params");
+            byte[] bytes = ascii(message);
+            codec.parseScratch(bytes, 0, bytes.length);
+
+            assertEquals(message, msgObj.getString("method"), codec.getMethodName());
+            assertEquals(message, paramsArray.length(), codec.paramCount);
+            for (int i = 0; i <= paramsArray.length(); i++) {
+                assertSameParam(message, i, paramsArray);
+            }
+        }
+    }
+
+    // getParam() must return what getInt() does, or throw when it does
+    void assertSameParam(String message, int index, JSONArray paramsArray) {
+        Integer expected;
+        try {
+            expected = paramsArray.getInt(index);
+        } catch (JSONException ex) {
+            expected = null;
+        }
+        try {
+            int actual = codec.getParam(index);
+            assertEquals(message + " param " + index, expected, Integer.valueOf(actual));
+        } catch (JSONException ex) {
+            if (expected != null) {
+                fail(message + " param " + index + " should be " + expected
+                        + " but failed: " + ex.getMessage());
+            }
+        }
+    }
+
+    @Test
+    public void messagesOrgJsonRejectsAreRejected() {
+        assertRejected("{\"params\":[1]}");
+        assertRejected("{\"method\":\"poll\",\"params\":[1,]");
+        assertRejected("{\"method\":\"poll");
+        assertRejected("[\"method\",\"poll\"]");
+    }
+
+    // org.json keeps a number this long as a double and truncates it
+    // without a word - the codec refuses it
+    @Test
+    public void numbersTooLongAreRejected() {
+        assertRejected("{\"method\":\"servoDegrees\",\"params\":[12345678901234567890]}");
+        assertRejected("{\"method\":\"servoDegrees\",\"params\":[-1234567890123456789.5]}");
+        assertRejected("{\"pinValues\":{\"mask\":1,\"values\":[99999999999999999999999]}}",
+                true);
+        // the longest number taken still comes out the way getInt() has it
+        String longest = "{\"method\":\"servoDegrees\",\"params\":[999999999999999999]}";
+        byte[] bytes = ascii(longest);
+        codec.parseScratch(bytes, 0, bytes.length);
+        assertEquals(new JSONObject(longest).getJSONArray("params").getInt(0),
+                codec.getParam(0));
+    }
+
+    void assertRejected(String message) {
+        assertRejected(message, false);
+    }
+
+    void assertRejected(String message, boolean reply) {
+        byte[] bytes = ascii(message);
+        try {
+            if (reply) {
+                codec.parseReadings(bytes, 0, bytes.length,
+                        new int[MessageTranslator.NUM_SENSORS]);
+            } else {
+                codec.parseScratch(bytes, 0, bytes.length);
+            }
+            fail("accepted " + message);
+        } catch (JSONException ex) {
+            // expected
+        }
+    }
+
+    @Test
+    public void readingsParseLikeOrgJson() {
+        for (String reply : READINGS) {
+            int[] expected = new int[MessageTranslator.NUM_SENSORS];
+            int expectedMask = 0;
+            JSONObject replyObj = new JSONObject(reply);
+            if (replyObj.has("pinValues")) {
+                JSONObject pinValues = replyObj.getJSONObject("pinValues");
+                int mask = pinValues.getInt("mask");
+                JSONArray values = pinValues.getJSONArray("values");
+                int next = 0;
+                for (int i = 0; i < expected.length; i++) {
+                    if ((mask & (1 << i)) != 0 && next < values.length()) {
+                        expected[i] = values.getInt(next++);
+                        expectedMask |= 1 << i;
+                    }
+                }
+            } else {
+                JSONObject pinValue = replyObj.getJSONObject("pinValue");
+                for (int i = 0; i < expected.length; i++) {
+                    if (MessageTranslator.REPORTER_PINS[i] == pinValue.getInt("pin")) {
+                        expected[i] = pinValue.getInt("value");
+                        expectedMask |= 1 << i;
+                    }
+                }
+            }
+
+            int[] actual = new int[MessageTranslator.NUM_SENSORS];
+            byte[] bytes = ascii(reply);
+            assertEquals(reply, expectedMask, codec.parseReadings(bytes, 0, bytes.length, actual));
+            assertArrayEquals(reply, expected, actual);
+        }
+    }
+
+    @Test
+    public void samplesParseLikeOrgJson() {
+        String sample = "{\"sample\":{\"time\":123456,\"mask\":3,\"values\":[1,-2]}}\n";
+        JSONObject body = new JSONObject(sample).getJSONObject("sample");
+        int[] actual = new int[MessageTranslator.NUM_SENSORS];
+        byte[] bytes = ascii(sample);
+
+        assertTrue(codec.isSample(bytes, 0, bytes.length));
+        assertEquals(body.getInt("mask"), codec.parseSample(bytes, 0, bytes.length, actual));
+        assertEquals(body.getInt("time"), codec.getSampleTime());
+        assertEquals(body.getJSONArray("values").getInt(0), actual[0]);
+        assertEquals(body.getJSONArray("values").getInt(1), actual[1]);
+        assertFalse(codec.isSample(ascii(READINGS[0]), 0, READINGS[0].length()));
+    }
+
+    @Test
+    public void configuredParsesLikeOrgJson() {
+        String reply = "{\"configured\":{\"profile\":2,\"failed\":40,\"skipped\":1}}";
+        JSONObject configured = new JSONObject(reply).getJSONObject("configured");
+        byte[] bytes = ascii(reply);
+        PinProfile.Result result = codec.parseConfigured(bytes, 0, bytes.length);
+
+        assertEquals(configured.getInt("profile"), result.profile);
+        assertEquals(configured.getInt("failed"), result.failed);
+        assertEquals(configured.getInt("skipped") != 0, result.skipped);
+    }
+
+    @Test
+    public void acksAreTheEmptyObject() {
+        for (String ack : new String[]{"{}", "{}\n", " { }\r\n"}) {
+            assertEquals(0, new JSONObject(ack).length());
+            assertTrue(ack, codec.isAck(ascii(ack), 0, ack.length()));
+        }
+        for (String other : new String[]{"{\"a\":1}", "{", "[]", ""}) {
+            assertFalse(other, codec.isAck(ascii(other), 0, other.length()));
+        }
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ Scratch 2.0 Hardware Extension for the CodeShield Arduino Interface.
+
+ Written by Alan Yorinks
+ Copyright (c) 2013 Alan Yorinks All right reserved.
+
+ This program is free software; you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public
+ License as published by the Free Software Foundation; either
+ version 2.1 of the License, or (at your option) any later version.
+
+ This library is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ Lesser General Public License for more details.
+
+ You should have received a copy of the GNU Lesser General Public
+ License along with this library; if not, write to the Free Software
+ Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package codeShieldForScratch;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+/**
+ * Checks that long messages are kept whole up to MAX_LINE and that a
+ * client sending more than that without a terminator is given up on.
+ *
+ * @author afy
+ */
+public class LineFramerTest {
+
+    LineFramer framer = new LineFramer();
+    ArrayList<Integer> lengths = new ArrayList<>();
+
+    LineFramer.Handler handler = new LineFramer.Handler() {
+        @Override
+        public void lineReceived(byte[] buf, int offset, int length) {
+            lengths.add(length);
+        }
+
+        @Override
+        public void policyRequested() {
+        }
+    };
+
+    // read as much as the buffer takes, all of it without a terminator
+    void fill(int count) throws IOException {
+        while (count > 0) {
+            ByteBuffer buffer = framer.getBuffer();
+            byte[] chunk = new byte[Math.min(count, buffer.remaining())];
+            Arrays.fill(chunk, (byte) 'x');
+            buffer.put(chunk);
+            count -= chunk.length;
+            framer.process(handler);
+        }
+    }
+
+    @Test
+    public void longMessageIsKeptWhole() throws IOException {
+        fill(LineFramer.MAX_LINE - 1);
+        framer.getBuffer().put((byte) '\n');
+        framer.process(handler);
+        assertEquals(1, lengths.size());
+        assertEquals(LineFramer.MAX_LINE - 1, (int) lengths.get(0));
+        assertTrue(framer.getBuffer().capacity() <= LineFramer.MAX_LINE);
+    }
+
+    @Test
+    public void endlessMessageIsRefused() throws IOException {
+        fill(LineFramer.MAX_LINE);
+        try {
+            framer.getBuffer();
+            fail("buffer grew past MAX_LINE");
+        } catch (IOException expected) {
+        }
+        assertTrue(lengths.isEmpty());
+    }
+}
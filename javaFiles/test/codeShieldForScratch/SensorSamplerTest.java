@@ -0,0 +1,88 @@
+/*
+ Scratch 2.0 Hardware Extension for the CodeShield Arduino Interface.
+
+ Written by Alan Yorinks
+ Copyright (c) 2013 Alan Yorinks All right reserved.
+
+ This program is free software; you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public
+ License as published by the Free Software Foundation; either
+ version 2.1 of the License, or (at your option) any later version.
+
+ This library is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ Lesser General Public License for more details.
+
+ You should have received a copy of the GNU Lesser General Public
+ License along with this library; if not, write to the Free Software
+ Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package codeShieldForScratch;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import static org.junit.Assert.assertEquals;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks that the replies to the sampler's reads are published when they
+ * arrive, and that a reading taken while an actuator had the pin is held
+ * back once. The replies are handed to the pipeline as if they had come
+ * from the board.
+ *
+ * @author afy
+ */
+public class SensorSamplerTest {
+
+    SerialManager board;
+    SerialPipeline pipeline;
+    SensorSampler sampler;
+    ArrayList<byte[]> written = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        board = new SerialManager("test") {
+            @Override
+            void writeBytes(byte[] toArduino) {
+                written.add(toArduino);
+            }
+        };
+        pipeline = new SerialPipeline(board, SerialPipeline.DEFAULT_WINDOW);
+        sampler = new SensorSampler(pipeline, 50);
+    }
+
+    void answer(String reply) {
+        byte[] bytes = (reply + "\n").getBytes(StandardCharsets.US_ASCII);
+        pipeline.frameReceived(bytes, 0, bytes.length);
+    }
+
+    @Test
+    public void readIsPublishedWhenAnswered() {
+        sampler.run();
+        assertEquals(1, written.size());
+        // nothing more is sent while the read is unanswered
+        sampler.run();
+        assertEquals(1, written.size());
+        answer("{\"pinValues\":{\"mask\":3,\"values\":[10,20]}}");
+        SensorSnapshot snapshot = sampler.getSnapshot();
+        assertEquals(3, snapshot.mask);
+        assertEquals(10, snapshot.values[0]);
+        assertEquals(20, snapshot.values[1]);
+        sampler.run();
+        assertEquals(2, written.size());
+    }
+
+    @Test
+    public void heldReadingIsCountedOnce() {
+        board.getArbiter().hold(MessageTranslator.RELAY);
+        sampler.publish("{\"pinValues\":{\"mask\":3,\"values\":[10,20]}}\n"
+                .getBytes(StandardCharsets.US_ASCII), 0);
+        SensorSnapshot snapshot = sampler.getSnapshot();
+        assertEquals(2, snapshot.mask);
+        assertEquals(0, snapshot.values[0]);
+        assertEquals(20, snapshot.values[1]);
+        assertEquals(1, board.getMetrics().getReadingsHeld());
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ Scratch 2.0 Hardware Extension for the CodeShield Arduino Interface.
+
+ Written by Alan Yorinks
+ Copyright (c) 2013 Alan Yorinks All right reserved.
+
+ This program is free software; you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public
+ License as published by the Free Software Foundation; either
+ version 2.1 of the License, or (at your option) any later version.
+
+ This library is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ Lesser General Public License for more details.
+
+ You should have received a copy of the GNU Lesser General Public
+ License along with this library; if not, write to the Free Software
+ Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package codeShieldForScratch;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks how SerialManager splits what the board sends into frames, and
+ * that a board reset is noticed whichever framing is in use. Bytes are fed
+ * in as if they had come from the port; no port is opened.
+ *
+ * @author afy
+ */
+public class SerialManagerTest {
+
+    static final byte[] ACK = {(byte) BinaryCodec.SYNC, 0};
+    static final byte[] READING = {(byte) BinaryCodec.SYNC, 3, 1, 2, 0};
+
+    SerialManager board;
+    OutputShadow shadow;
+    ArrayList<byte[]> frames = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        board = new SerialManager("test");
+        board.setFrameListener(new FrameListener() {
+            @Override
+            public void frameReceived(byte[] frame, int offset, int length) {
+                byte[] copy = new byte[length];
+                System.arraycopy(frame, offset, copy, 0, length);
+                frames.add(copy);
+            }
+        });
+        shadow = new OutputShadow(board);
+        shadow.wrote(MessageTranslator.WHITE_LED, MessageTranslator.LEDPWM, 200);
+    }
+
+    void receive(byte[] bytes) {
+        board.receiveBytes(bytes, 0, bytes.length);
+    }
+
+    void receive(byte[] bytes, int offset, int length) {
+        board.receiveBytes(bytes, offset, length);
+    }
+
+    // the shadow still knows the white led is at 200
+    boolean shadowValid() {
+        return !shadow.needsWrite(MessageTranslator.WHITE_LED, MessageTranslator.LEDPWM, 200);
+    }
+
+    @Test
+    public void resetIsDetectedInJsonFraming() {
+        receive("{}\n".getBytes(StandardCharsets.US_ASCII));
+        receive(SerialManager.READY_BYTES);
+
+        assertEquals(1, frames.size());
+        assertEquals(1, board.getResetCount());
+        assertFalse(shadowValid());
+    }
+
+    @Test
+    public void resetIsDetectedInBinaryFraming() {
+        board.binary = true;
+        receive(ACK);
+        receive(SerialManager.READY_BYTES);
+        receive(READING);
+
+        assertEquals(2, frames.size());
+        assertArrayEquals(ACK, frames.get(0));
+        assertArrayEquals(READING, frames.get(1));
+        assertEquals(1, board.getResetCount());
+        assertFalse(shadowValid());
+    }
+
+    // the banner arrives in pieces, and nothing is taken until it is whole
+    @Test
+    public void splitBannerIsDetectedInBinaryFraming() {
+        board.binary = true;
+        byte[] banner = SerialManager.READY_BYTES;
+        for (int i = 0; i < banner.length - 1; i++) {
+            receive(banner, i, 1);
+        }
+        assertEquals(0, board.getResetCount());
+        receive(banner, banner.length - 1, 1);
+        assertEquals(1, board.getResetCount());
+        assertTrue(frames.isEmpty());
+    }
+
+    // other text between binary frames is noise and is skipped
+    @Test
+    public void otherTextIsSkippedInBinaryFraming() {
+        board.binary = true;
+        receive("{\"status\":\"busy\"}\r\n".getBytes(StandardCharsets.US_ASCII));
+        receive(ACK);
+
+        assertEquals(1, frames.size());
+        assertArrayEquals(ACK, frames.get(0));
+        assertEquals(0, board.getResetCount());
+        assertTrue(shadowValid());
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ Scratch 2.0 Hardware Extension for the CodeShield Arduino Interface.
+
+ Written by Alan Yorinks
+ Copyright (c) 2013 Alan Yorinks All right reserved.
+
+ This program is free software; you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public
+ License as published by the Free Software Foundation; either
+ version 2.1 of the License, or (at your option) any later version.
+
+ This library is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ Lesser General Public License for more details.
+
+ You should have received a copy of the GNU Lesser General Public
+ License along with this library; if not, write to the Free Software
+ Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package codeShieldForScratch;
+
+import java.util.ArrayList;
+import jssc.SerialPortException;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks that replies are matched to commands, that reads can go out
+ * without anybody waiting for them, and that a board that stops answering
+ * is marked as failed instead of holding up the bridge. Nothing is put on
+ * a wire; replies are handed to the pipeline as if they had been framed.
+ *
+ * @author afy
+ */
+public class SerialPipelineTest {
+
+    static final byte[] ACK = {(byte) BinaryCodec.SYNC, 0};
+    static final byte[] COMMAND = {(byte) BinaryCodec.SYNC, 1, 2};
+
+    SerialManager board;
+    SerialPipeline pipeline;
+    ArrayList<byte[]> written = new ArrayList<>();
+    boolean unplugged = false; // writes fail as if the cable was pulled
+
+    @Before
+    public void setUp() {
+        board = new SerialManager("test") {
+            @Override
+            void writeBytes(byte[] toArduino) throws SerialPortException {
+                if (unplugged) {
+                    throw new SerialPortException("test", "writeBytes", "unplugged");
+                }
+                written.add(toArduino);
+            }
+        };
+        pipeline = new SerialPipeline(board, 2);
+    }
+
+    @After
+    public void tearDown() {
+        SerialManager.REPLY_TIMEOUT = 20000;
+        Thread.interrupted();
+    }
+
+    void answer() {
+        pipeline.frameReceived(ACK, 0, ACK.length);
+    }
+
+    @Test
+    public void repliesAreMatchedInOrder() {
+        PendingReply first = pipeline.submit("first", COMMAND);
+        PendingReply second = pipeline.submit("second", COMMAND);
+        answer();
+        assertTrue(first.isDone());
+        assertFalse(second.isDone());
+        answer();
+        assertTrue(second.awaitAck());
+        assertEquals(0, pipeline.getInFlight());
+    }
+
+    @Test
+    public void listenerGetsTheReplyBeforeItIsDone() {
+        final ArrayList<Boolean> doneWhenCalled = new ArrayList<>();
+        final PendingReply[] reply = new PendingReply[1];
+        reply[0] = pipeline.trySubmit("read", COMMAND, new FrameListener() {
+            @Override
+            public void frameReceived(byte[] frame, int offset, int length) {
+                doneWhenCalled.add(reply[0].isDone());
+            }
+        });
+        assertEquals(1, written.size());
+        answer();
+        assertEquals(1, doneWhenCalled.size());
+        assertFalse(doneWhenCalled.get(0));
+        assertTrue(reply[0].isDone());
+    }
+
+    @Test
+    public void trySubmitDoesNotWaitForAFullWindow() {
+        pipeline.submit("first", COMMAND);
+        pipeline.submit("second", COMMAND);
+        assertNull(pipeline.trySubmit("read", COMMAND, null));
+        assertEquals(2, written.size());
+    }
+
+    @Test
+    public void timeoutMarksTheBoardAsFailed() {
+        PendingReply first = pipeline.submit("first", COMMAND);
+        PendingReply second = pipeline.submit("second", COMMAND);
+        pipeline.timedOut(first);
+        assertTrue(pipeline.isFailed());
+        assertTrue(board.getMetrics().isBoardFailed());
+        assertEquals(1, board.getMetrics().getReplyTimeouts());
+        // everything in flight is given up on and nothing more is written
+        assertTrue(first.isFailed());
+        assertTrue(second.isFailed());
+        assertFalse(second.awaitAck());
+        assertNull(first.awaitBytes());
+        assertEquals(0, pipeline.getInFlight());
+        assertNull(pipeline.trySubmit("read", COMMAND, null));
+        assertTrue(pipeline.submit("third", COMMAND).isFailed());
+        assertEquals(2, written.size());
+    }
+
+    @Test
+    public void boardIsToldOnceWhenItFails() {
+        final ArrayList<String> reasons = new ArrayList<>();
+        pipeline.setLinkListener(new LinkListener() {
+            @Override
+            public void linkFailed(String reason) {
+                reasons.add(reason);
+            }
+        });
+        PendingReply first = pipeline.submit("first", COMMAND);
+        pipeline.timedOut(first);
+        pipeline.linkFailed("write failed");
+        assertEquals(1, reasons.size());
+        pipeline.resume();
+        pipeline.timedOut(pipeline.submit("second", COMMAND));
+        assertEquals(2, reasons.size());
+    }
+
+    @Test
+    public void failedWriteMarksTheBoardAsFailed() {
+        PendingReply first = pipeline.submit("first", COMMAND);
+        unplugged = true;
+        PendingReply second = pipeline.submit("second", COMMAND);
+        assertTrue(pipeline.isFailed());
+        assertTrue(first.isFailed());
+        assertTrue(second.isFailed());
+        assertEquals(0, pipeline.getInFlight());
+    }
+
+    @Test
+    public void lateReplyIsNotTakenForTheNextCommand() {
+        PendingReply first = pipeline.submit("first", COMMAND);
+        pipeline.timedOut(first);
+        PendingReply next = pipeline.submit("next", COMMAND);
+        // the board answers the command given up on after all
+        answer();
+        assertTrue(pipeline.isFailed());
+        assertTrue(next.isFailed());
+        assertFalse(next.awaitAck());
+        assertEquals(1, written.size());
+        // once the board has been reset the window opens again
+        pipeline.resume();
+        assertFalse(pipeline.isFailed());
+        PendingReply after = pipeline.submit("after", COMMAND);
+        answer();
+        assertTrue(after.awaitAck());
+    }
+
+    @Test
+    public void answeredReplyIsNotTimedOut() {
+        PendingReply reply = pipeline.submit("first", COMMAND);
+        answer();
+        pipeline.timedOut(reply);
+        assertFalse(pipeline.isFailed());
+        assertEquals(0, board.getMetrics().getReplyTimeouts());
+    }
+
+    @Test
+    public void fullWindowIsWaitedOnOnlyUntilTheTimeout() {
+        SerialManager.REPLY_TIMEOUT = 200;
+        pipeline.submit("first", COMMAND);
+        pipeline.submit("second", COMMAND);
+        long start = System.nanoTime();
+        PendingReply third = pipeline.submit("third", COMMAND);
+        long waited = (System.nanoTime() - start) / 1000000L;
+        assertTrue(third.isFailed());
+        assertTrue(waited >= 200 && waited < 5000);
+        assertTrue(pipeline.isFailed());
+        assertEquals(2, written.size());
+    }
+
+    @Test
+    public void interruptedSubmitGivesUp() {
+        pipeline.submit("first", COMMAND);
+        pipeline.submit("second", COMMAND);
+        Thread.currentThread().interrupt();
+        PendingReply third = pipeline.submit("third", COMMAND);
+        assertTrue(Thread.interrupted());
+        assertTrue(third.isFailed());
+        assertFalse(pipeline.isFailed());
+        assertEquals(2, written.size());
+    }
+}